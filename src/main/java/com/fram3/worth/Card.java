@@ -1,6 +1,10 @@
 package com.fram3.worth;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 
 /**
  * Card modella una card del servizio
@@ -11,19 +15,95 @@ import java.io.Serializable;
 public class Card implements Serializable {
     private static final long serialVersionUID = 6639799316549652319L;
 
+    /**
+     * enumerazione delle liste in cui può trovarsi una card.
+     * Le transizioni sono salvate usando l'ordinale, quindi i valori vanno solo aggiunti in coda
+     */
+    public enum Status {
+        TODO,
+        INPROGRESS,
+        TOBEREVISED,
+        DONE;
+
+        /**
+         * effettua il parsing del nome di una lista, senza distinzione tra maiuscole e minuscole
+         *
+         * @param list nome della lista
+         * @return stato corrispondente, oppure null se la lista non esiste
+         */
+        public static Status parse(String list) {
+            for (Status status : values())
+                if (status.name().equalsIgnoreCase(list))
+                    return status;
+            return null;
+        }
+    }
+
+    /** formato dei timestamp nella history testuale */
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     /** nome card */
     private final String name;
 
     /** descrizione card */
     private final String description;
 
-    /** storico spostamenti card */
+    /** lista in cui si trova la card */
+    private Status status;
+
+    /**
+     * transizioni della card in ordine di tempo. Ogni transizione è codificata in un long:
+     * i due bit meno significativi contengono l'ordinale dello stato, i restanti il timestamp in millisecondi.
+     * L'array raddoppia quando è pieno, le transizioni valide sono le prime transitionsCount()
+     */
+    private long[] transitions;
+
+    /**
+     * numero di transizioni valide nell'array, 0 se l'array non ha posizioni libere in coda
+     * (card appena creata o letta dalla persistenza). Non viene serializzato: le card vengono
+     * serializzate con le sole transizioni valide, vedi trimmed()
+     */
+    private transient int transitionsCount;
+
+    /** storico testuale delle versioni precedenti, presente solo nelle card persistite prima dell'introduzione delle transizioni */
     private String history;
 
+    /** numero di sequenza nel journal dell'ultima modifica applicata alla card */
+    private long sequence;
+
+    /** true se la card è stata modificata dopo l'ultimo snapshot */
+    private transient boolean dirty;
+
     public Card(String name, String description){
+        this(name, description, System.currentTimeMillis());
+    }
+
+    /**
+     *
+     * @param name nome card
+     * @param description descrizione card
+     * @param time istante di creazione della card in millisecondi
+     */
+    public Card(String name, String description, long time){
+        this.name = name;
+        this.description = description;
+        this.status = Status.TODO;
+        this.transitions = new long[] { transition(Status.TODO, time) };
+    }
+
+    /**
+     *
+     * @param name nome card
+     * @param description descrizione card
+     * @param status lista in cui si trova la card
+     * @param transitions transizioni della card codificate come in {@link #transition(Status, long)}
+     */
+    public Card(String name, String description, Status status, long[] transitions){
         this.name = name;
         this.description = description;
-        history = "TODO";
+        this.status = status;
+        this.transitions = transitions;
     }
 
     /**
@@ -36,31 +116,176 @@ public class Card implements Serializable {
 
     /**
      *
-     * @return storico spostamenti card
+     * @return descrizione card
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     *
+     * @return lista in cui si trova la card in quel momento
+     */
+    public Status getStatus() {
+        migrateHistory();
+        return status;
+    }
+
+    /**
+     *
+     * @return copia delle transizioni della card
+     */
+    public long[] getTransitions() {
+        migrateHistory();
+        return Arrays.copyOf(transitions, transitionsCount());
+    }
+
+    /**
+     *
+     * @return numero di transizioni della card
+     */
+    public int getTransitionsCount() {
+        migrateHistory();
+        return transitionsCount();
+    }
+
+    /**
+     *
+     * @param index posizione della transizione, da 0 a getTransitionsCount() escluso
+     * @return transizione codificata come in {@link #transition(Status, long)}
+     */
+    public long getTransition(int index) {
+        migrateHistory();
+        return transitions[index];
+    }
+
+    /**
+     * sposta la card nella nuova lista registrando la transizione.
+     * Quando l'array delle transizioni è pieno la sua capacità raddoppia, così una sequenza di spostamenti
+     * non copia l'intero storico a ogni spostamento. Va invocato con il lock in scrittura del progetto acquisito
+     *
+     * @param newStatus nuova lista in cui è stata inserita la card
+     * @param time istante dello spostamento in millisecondi
+     */
+    public void moveTo(Status newStatus, long time) {
+        migrateHistory();
+        int count = transitionsCount();
+        if (count == transitions.length)
+            transitions = Arrays.copyOf(transitions, Math.max(4, 2 * count));
+        transitions[count] = transition(newStatus, time);
+        this.transitionsCount = count + 1;
+        this.status = newStatus;
+    }
+
+    /**
+     * restituisce la card da serializzare: la card stessa se l'array delle transizioni non ha posizioni
+     * libere, altrimenti una copia con le sole transizioni valide, così le posizioni libere non vengono scritte
+     *
+     * @return card con l'array delle transizioni pieno
+     */
+    public Card trimmed() {
+        migrateHistory();
+        if (transitionsCount() == transitions.length)
+            return this;
+        Card copy = new Card(name, description, status, getTransitions());
+        copy.setSequence(sequence);
+        return copy;
+    }
+
+    /**
+     * la serializzazione Java scrive la card con le sole transizioni valide, come Gson
+     *
+     * @return card da serializzare al posto di questa
+     */
+    private Object writeReplace() {
+        return trimmed();
+    }
+
+    /**
+     * costruisce lo storico testuale degli spostamenti della card
+     *
+     * @return stringa con la sequenza delle liste in cui è stata la card e gli istanti degli spostamenti
      */
     public String getHistory() {
-        return history;
+        migrateHistory();
+        StringBuilder builder = new StringBuilder();
+        for (long transition : getTransitions()) {
+            if (builder.length() > 0)
+                builder.append(" -> ");
+            builder.append(Status.values()[(int) (transition & 3)]);
+            long time = transition >>> 2;
+            // le transizioni migrate dalla vecchia history non hanno un timestamp
+            if (time != 0)
+                builder.append(" (").append(TIME_FORMAT.format(Instant.ofEpochMilli(time))).append(")");
+        }
+        return builder.toString();
     }
 
     /**
-     * aggiorna lo storico degli spostamenti della card concatenando
-     * alla stringa delle liste in cui è stata la nuova lista in cui si trova
      *
-     * @param newList nuova lista in cui è stata inserita la card
+     * @return numero di sequenza nel journal dell'ultima modifica applicata alla card
      */
-    public void updateHistory(String newList){
-        this.history += " -> " + newList.toUpperCase();
+    public long getSequence() {
+        return sequence;
     }
 
     /**
-     * recupera la lista in cui si trova la card in quel momento prendendo
-     * l'ultima stringa concatenata alla history
      *
-     * @return stringa che indica il nome della lista nella quale si trova la card in quel momento
+     * @param sequence numero di sequenza nel journal dell'ultima modifica applicata alla card
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     *
+     * @return true se la card è stata modificata dopo l'ultimo snapshot
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     *
+     * @param dirty true se la card è stata modificata dopo l'ultimo snapshot
+     */
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * codifica una transizione in un long
+     *
+     * @param status lista di destinazione
+     * @param time istante della transizione in millisecondi
+     * @return transizione codificata
+     */
+    public static long transition(Status status, long time) {
+        return (time << 2) | status.ordinal();
+    }
+
+    /**
+     *
+     * @return numero di transizioni valide nell'array
+     */
+    private int transitionsCount() {
+        return transitionsCount != 0 ? transitionsCount : transitions.length;
+    }
+
+    /**
+     * converte la history testuale delle card persistite dalle versioni precedenti
+     * nello stato e nelle transizioni, senza timestamp
      */
-    public String getLocation(){
-        String[] locations = history.split(" -> ");
-        return locations[locations.length - 1];
+    private void migrateHistory() {
+        if (transitions != null)
+            return;
+        String[] locations = history != null ? history.split(" -> ") : new String[] { Status.TODO.name() };
+        long[] migrated = new long[locations.length];
+        for (int i = 0; i < locations.length; i++)
+            migrated[i] = transition(Status.parse(locations[i]), 0);
+        this.status = Status.parse(locations[locations.length - 1]);
+        this.transitions = migrated;
+        this.history = null;
     }
 
     /**
@@ -70,7 +295,7 @@ public class Card implements Serializable {
     @Override
     public String toString() {
         return "    Name:        " + name + "\n" +
-               "    Status:      " + this.getLocation() + "\n" +
+               "    Status:      " + this.getStatus() + "\n" +
                "    Description: " + description;
     }
 
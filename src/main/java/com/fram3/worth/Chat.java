@@ -1,8 +1,9 @@
 package com.fram3.worth;
 
+import com.fram3.worth.utils.ChatRing;
+
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.ArrayList;
 
 /**
  * Chat modella la chat di un progetto del servizio
@@ -13,6 +14,9 @@ import java.util.ArrayList;
 public class Chat implements Serializable {
     private static final long serialVersionUID = 6728577565832745630L;
 
+    /** numero massimo di messaggi non letti conservati per ogni chat */
+    private static final int HISTORY_CAPACITY = Integer.getInteger("worth.chatHistory", 1024);
+
     /** indirizzo multicast chat */
     private InetAddress address;
 
@@ -22,19 +26,26 @@ public class Chat implements Serializable {
     /** progetto di cui fa parte la chat */
     private final String project;
 
-    /** lista dei messaggi inviati sulla chat */
-    private ArrayList<String> messages;
+    /**
+     * messaggi ricevuti sulla chat e non ancora letti, creati al primo utilizzo perchè
+     * le chat ricevute dal server non passano dal costruttore e non trasportano messaggi
+     */
+    private transient volatile ChatRing messages;
+
+    /** messaggi scartati già segnalati all'utente, usato solo dal thread che legge la chat */
+    private transient long reportedOverflows;
+
+    /** offset da cui proseguire la lettura dello storico della chat salvato dal server */
+    private transient long logOffset;
 
     public Chat(InetAddress address, int port, String project) {
         this.address = address;
         this.port = port;
         this.project = project;
-        messages = new ArrayList<>();
     }
 
     public Chat(String project){
         this.project = project;
-        messages = new ArrayList<>();
     }
 
     /**
@@ -63,25 +74,55 @@ public class Chat implements Serializable {
 
     /**
      *
-     * @return lista di messaggi della chat
+     * @return offset da cui proseguire la lettura dello storico della chat salvato dal server
+     */
+    public long getLogOffset() {
+        return logOffset;
+    }
+
+    /**
+     *
+     * @param logOffset offset da cui proseguire la lettura dello storico della chat salvato dal server
+     */
+    public void setLogOffset(long logOffset) {
+        this.logOffset = logOffset;
+    }
+
+    /**
+     *
+     * @return messaggi della chat non ancora letti
      */
-    public ArrayList<String> getMessages() {
-        return messages;
+    public ChatRing getMessages() {
+        ChatRing ring = messages;
+        if (ring == null) {
+            synchronized (this) {
+                if (messages == null)
+                    messages = new ChatRing(HISTORY_CAPACITY);
+                ring = messages;
+            }
+        }
+        return ring;
     }
 
     /**
-     * stampa i messaggi della chat resettando la lista dei messaggi
-     * per far si che l'utente veda solamente i messaggi non ancora letti
+     * stampa i messaggi della chat consumandoli, per far si che l'utente
+     * veda solamente i messaggi non ancora letti, e quanti ne sono stati persi
+     * perchè la chat era piena dall'ultima lettura
      *
      * @return stringa rappresentante la chat con tutti i suoi messaggi
      */
     @Override
     public String toString() {
+        ChatRing ring = getMessages();
         StringBuilder str = new StringBuilder();
-        for (String message : messages)
-            str.append("< ").append(message).append("\n");
+        long overflows = ring.getOverflows();
+        if (overflows > reportedOverflows) {
+            str.append("< ").append(overflows - reportedOverflows)
+                    .append(" messaggi persi perchè non letti in tempo\n");
+            reportedOverflows = overflows;
+        }
+        ring.drain(message -> str.append("< ").append(message).append("\n"));
         str.append("< " + "Non ci sono altri messaggi");
-        messages = new ArrayList<>();
         return str.toString();
     }
     /**
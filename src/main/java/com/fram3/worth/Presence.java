@@ -0,0 +1,76 @@
+package com.fram3.worth;
+
+import java.io.Serializable;
+
+/**
+ * Presence modella lo stato di un utente registrato come lo vede il client:
+ * il solo nome utente e se è online. È la forma con cui gli utenti registrati
+ * viaggiano verso i client, al posto dell'intero User con la password
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class Presence implements Serializable {
+    private static final long serialVersionUID = -3415296813425707153L;
+
+    /** nome utente */
+    private final String nickname;
+
+    /** status utente */
+    private boolean online;
+
+    public Presence(String nickname, boolean online) {
+        this.nickname = nickname;
+        this.online = online;
+    }
+
+    /**
+     *
+     * @return nome utente
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     *
+     * @return true se l'utente è online, false altrimenti
+     */
+    public boolean isOnline() {
+        return online;
+    }
+
+    /**
+     *
+     * @param online booleano che indica lo stato con il quale si vuole impostare l'utente
+     */
+    public void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    /**
+     *
+     * @param obj oggetto da confrontare
+     * @return true se obj è uguale a this
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Presence))
+            return false;
+        return this.nickname.equals(((Presence) obj).nickname);
+    }
+
+    @Override
+    public int hashCode() {
+        return nickname.hashCode();
+    }
+
+    /**
+     * @return la stringa rappresentante l'utente
+     */
+    @Override
+    public String toString() {
+        String state = (this.online ? "online" : "offline");
+        return nickname + ": " + state;
+    }
+}
@@ -3,6 +3,14 @@ package com.fram3.worth;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Project modella un progetto del servizio
@@ -16,24 +24,51 @@ public class Project implements Serializable {
     /** nome progetto */
     private final String name;
     
-    /** lista di cards nello stato di TODO */
-    private final ArrayList<Card> toDo;
+    /** tutte le cards del progetto indicizzate per nome, in ordine di inserimento */
+    private final LinkedHashMap<String, Card> cards;
 
-    /** lista di cards nello stato di INPROGRESS */
-    private final ArrayList<Card> inProgress;
+    /** numero di cards in ogni lista, indicizzato per ordinale dello stato */
+    private final int[] columnCounts;
 
-    /** lista di cards nello stato di TOBEREVISED */
-    private final ArrayList<Card> toBeRevised;
-
-    /** lista di cards nello stato di DONE */
-    private final ArrayList<Card> done;
-    
-    /** lista di tutte le cards del progetto */
-    private final ArrayList<Card> cards;
-    
     /** lista di tutti i membri del progetto */
     private final ArrayList<String> members;
-    
+
+    /**
+     * board del progetto: per ogni lista le sue cards indicizzate per nome, in ordine di arrivo nella lista.
+     * Non serializzata e ricostruita se necessario
+     */
+    private transient EnumMap<Card.Status, LinkedHashMap<String, Card>> board;
+
+    /** insieme dei membri del progetto per verificarne l'appartenenza, non serializzato e ricostruito se necessario */
+    private transient Set<String> memberSet;
+
+    /** lock del progetto: le letture usano stamp ottimistici, le scritture bloccano solo questo progetto */
+    private transient volatile StampedLock lock;
+
+    /** true se il progetto è stato cancellato, le operazioni in attesa del lock non devono modificarlo */
+    private transient volatile boolean cancelled;
+
+    /** true se le cards del progetto non sono in memoria e vanno ricaricate dalla persistenza */
+    private transient volatile boolean evicted;
+
+    /** numero di volte in cui le cards del progetto sono state scaricate dalla memoria */
+    private transient volatile int evictions;
+
+    /** numero di sequenza nel journal della creazione del progetto, persistito a parte */
+    private transient long sequence;
+
+    /** true se i membri del progetto sono cambiati dopo l'ultimo snapshot */
+    private transient boolean membersDirty;
+
+    /** cards modificate dopo l'ultimo snapshot */
+    private transient ArrayList<Card> dirtyCards;
+
+    /**
+     * true se le modifiche del progetto sono state prese da uno snapshot non ancora scritto sul disco:
+     * finchè la scrittura non termina la persistenza contiene ancora lo stato precedente
+     */
+    private transient boolean snapshotPending;
+
     /** indirizzo multicast della chat di progetto */
     private InetAddress chatAddress;
     
@@ -42,12 +77,12 @@ public class Project implements Serializable {
 
     public Project(String name) {
         this.name = name;
-        this.toDo = new ArrayList<>();
-        this.inProgress = new ArrayList<>();
-        this.toBeRevised = new ArrayList<>();
-        this.done = new ArrayList<>();
-        this.cards = new ArrayList<>();
+        this.cards = new LinkedHashMap<>();
+        this.columnCounts = new int[Card.Status.values().length];
         this.members = new ArrayList<>();
+        this.board = newBoard();
+        this.memberSet = ConcurrentHashMap.newKeySet();
+        this.lock = new StampedLock();
     }
 
     /**
@@ -57,13 +92,14 @@ public class Project implements Serializable {
      */
     public Project(String name, String nickFirstMember) {
         this.name = name;
-        this.toDo = new ArrayList<>();
-        this.inProgress = new ArrayList<>();
-        this.toBeRevised = new ArrayList<>();
-        this.done = new ArrayList<>();
-        this.cards = new ArrayList<>();
+        this.cards = new LinkedHashMap<>();
+        this.columnCounts = new int[Card.Status.values().length];
         this.members = new ArrayList<>(); 
-        this.members.add(nickFirstMember);
+        this.board = newBoard();
+        this.memberSet = ConcurrentHashMap.newKeySet();
+        this.lock = new StampedLock();
+        if (nickFirstMember != null)
+            addMember(nickFirstMember);
     }
 
 
@@ -86,42 +122,267 @@ public class Project implements Serializable {
 
     /**
      * 
-     * @return lista di cards del progetto
+     * @return cards del progetto in ordine di inserimento
+     */
+    public Collection<Card> getCards() {
+        return cards.values();
+    }
+
+    /**
+     *
+     * @return numero di cards del progetto
+     */
+    public int getCardsCount() {
+        return cards.size();
+    }
+
+    /**
+     *
+     * @param status stato delle cards da contare
+     * @return numero di cards nella lista indicata
+     */
+    public int getCount(Card.Status status) {
+        return columnCounts[status.ordinal()];
+    }
+
+    /**
+     *
+     * @param nickname nome utente
+     * @return true se l'utente è membro del progetto
+     */
+    public boolean isMember(String nickname) {
+        return memberSet().contains(nickname);
+    }
+
+    /**
+     *
+     * @return insieme concorrente dei membri del progetto, che può essere letto senza il lock del progetto
+     */
+    public Set<String> getMemberSet() {
+        return memberSet();
+    }
+
+    /**
+     * aggiunge un membro al progetto
+     *
+     * @param nickname nome utente da aggiungere
+     * @return true se l'utente è stato aggiunto, false se era già membro
+     */
+    public boolean addMember(String nickname) {
+        if (!memberSet().add(nickname))
+            return false;
+        members.add(nickname);
+        membersDirty = true;
+        return true;
+    }
+
+    /**
+     *
+     * @param cardName nome card
+     * @return la card del progetto con quel nome, oppure null se non esiste
+     */
+    public Card getCard(String cardName) {
+        return cards.get(cardName);
+    }
+
+    /**
+     * aggiunge una card al progetto, nella lista delle cards e nella lista in cui si trova
+     *
+     * @param card card da aggiungere
+     * @return true se la card è stata aggiunta, false se esisteva già una card con quel nome
+     */
+    public boolean addCard(Card card) {
+        if (cards.putIfAbsent(card.getName(), card) != null)
+            return false;
+        board().get(card.getStatus()).put(card.getName(), card);
+        columnCounts[card.getStatus().ordinal()]++;
+        markDirty(card);
+        return true;
+    }
+
+    /**
+     * sposta in tempo costante una card del progetto dalla sua lista attuale alla lista indicata
+     * registrando la transizione nella card
+     *
+     * @param card card del progetto da spostare
+     * @param status lista di destinazione
+     * @param time istante dello spostamento in millisecondi
+     */
+    public void moveCard(Card card, Card.Status status, long time) {
+        Card.Status source = card.getStatus();
+        board().get(source).remove(card.getName());
+        columnCounts[source.ordinal()]--;
+        card.moveTo(status, time);
+        board().get(status).put(card.getName(), card);
+        columnCounts[status.ordinal()]++;
+        markDirty(card);
+    }
+
+    /**
+     *
+     * @param status stato delle cards della lista
+     * @return cards nella lista indicata, in ordine di arrivo nella lista
+     */
+    public Collection<Card> getColumn(Card.Status status) {
+        return Collections.unmodifiableCollection(board().get(status).values());
+    }
+
+    /**
+     * restituisce il lock del progetto, creandolo se il progetto è stato deserializzato
+     *
+     * @return lock del progetto
+     */
+    public StampedLock getLock() {
+        StampedLock result = lock;
+        if (result == null) {
+            synchronized (this) {
+                if (lock == null)
+                    lock = new StampedLock();
+                result = lock;
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return numero di sequenza nel journal della creazione del progetto
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     *
+     * @param sequence numero di sequenza nel journal della creazione del progetto
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     *
+     * @return true se il progetto è stato modificato dopo l'ultimo snapshot
+     */
+    public boolean isDirty() {
+        return membersDirty || (dirtyCards != null && !dirtyCards.isEmpty());
+    }
+
+    /**
+     * azzera il flag dei membri modificati. Va invocato con il lock in scrittura acquisito
+     *
+     * @return true se i membri erano stati modificati dopo l'ultimo snapshot
+     */
+    public boolean takeMembersDirty() {
+        boolean dirty = membersDirty;
+        membersDirty = false;
+        return dirty;
+    }
+
+    /**
+     * azzera i flag delle cards modificate. Va invocato con il lock in scrittura acquisito
+     *
+     * @return cards modificate dopo l'ultimo snapshot
+     */
+    public ArrayList<Card> takeDirtyCards() {
+        ArrayList<Card> dirty = dirtyCards != null ? dirtyCards : new ArrayList<>();
+        for (Card card : dirty)
+            card.setDirty(false);
+        dirtyCards = new ArrayList<>();
+        return dirty;
+    }
+
+    /**
+     * segna di nuovo come modificati i membri e le cards che non è stato possibile scrivere nello snapshot.
+     * Va invocato con il lock in scrittura acquisito
+     *
+     * @param members true se i membri vanno riscritti
+     * @param cards cards da riscrivere
+     */
+    public void markDirty(boolean members, Collection<Card> cards) {
+        if (members)
+            membersDirty = true;
+        for (Card card : cards)
+            markDirty(card);
+    }
+
+    /**
+     * segna l'inizio o la fine della scrittura delle modifiche del progetto in uno snapshot.
+     * Va invocato con il lock in scrittura acquisito
+     *
+     * @param pending true quando lo snapshot prende le modifiche, false quando la scrittura è terminata
+     */
+    public void setSnapshotPending(boolean pending) {
+        this.snapshotPending = pending;
+    }
+
+    /**
+     * Va invocato con il lock in scrittura acquisito
+     *
+     * @return true se le cards possono essere scaricate dalla memoria perchè la persistenza
+     *         contiene il loro stato attuale
      */
-    public ArrayList<Card> getCards() {
-        return cards;
+    public boolean isEvictable() {
+        return !isDirty() && !snapshotPending && !cancelled;
     }
 
     /**
      *
-     * @return lista TODO
+     * @return true se il progetto è stato cancellato
      */
-    public ArrayList<Card> getToDo() {
-        return toDo;
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * segna il progetto come cancellato. Va invocato con il lock in scrittura acquisito
+     */
+    public void setCancelled() {
+        this.cancelled = true;
     }
 
     /**
      *
-     * @return lista INPROGRESS
+     * @return true se le cards del progetto non sono in memoria
      */
-    public ArrayList<Card> getInProgress() {
-        return inProgress;
+    public boolean isEvicted() {
+        return evicted;
     }
 
     /**
      *
-     * @return lista TOBEREVISED
+     * @return numero di volte in cui le cards del progetto sono state scaricate dalla memoria
+     */
+    public int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * scarica dalla memoria le cards del progetto, che restano solo nella persistenza.
+     * Va invocato con il lock in scrittura acquisito e solo se isEvictable()
      */
-    public ArrayList<Card> getToBeRevised() {
-        return toBeRevised;
+    public void evict() {
+        cards.clear();
+        Arrays.fill(columnCounts, 0);
+        board = newBoard();
+        dirtyCards = null;
+        evictions++;
+        evicted = true;
     }
 
     /**
+     * rimette in memoria le cards del progetto lette dalla persistenza, senza segnarle come modificate.
+     * Va invocato con il lock in scrittura acquisito
      *
-     * @return lista DONE
+     * @param loaded cards del progetto, nell'ordine in cui erano state inserite
      */
-    public ArrayList<Card> getDone() {
-        return done;
+    public void hydrate(Collection<Card> loaded) {
+        for (Card card : loaded) {
+            cards.put(card.getName(), card);
+            board().get(card.getStatus()).put(card.getName(), card);
+            columnCounts[card.getStatus().ordinal()]++;
+        }
+        evicted = false;
     }
 
     /**
@@ -157,20 +418,57 @@ public class Project implements Serializable {
     }
 
     /**
-     * effettua il parsing del nome della lista ritornando la lista effettiva
-     * @param list nome della lista da parsare
-     * @return lista richiesta
+     * segna la card come modificata, per riscriverla al prossimo snapshot
+     *
+     * @param card card modificata
+     */
+    private void markDirty(Card card) {
+        if (card.isDirty())
+            return;
+        card.setDirty(true);
+        if (dirtyCards == null)
+            dirtyCards = new ArrayList<>();
+        dirtyCards.add(card);
+    }
+
+    /**
+     * restituisce la board, ricostruendola se il progetto è stato deserializzato
+     *
+     * @return board del progetto
+     */
+    private EnumMap<Card.Status, LinkedHashMap<String, Card>> board() {
+        if (board == null) {
+            EnumMap<Card.Status, LinkedHashMap<String, Card>> rebuilt = newBoard();
+            for (Card card : cards.values())
+                rebuilt.get(card.getStatus()).put(card.getName(), card);
+            board = rebuilt;
+        }
+        return board;
+    }
+
+    /**
+     *
+     * @return board vuota con una lista per ogni stato
+     */
+    private static EnumMap<Card.Status, LinkedHashMap<String, Card>> newBoard() {
+        EnumMap<Card.Status, LinkedHashMap<String, Card>> board = new EnumMap<>(Card.Status.class);
+        for (Card.Status status : Card.Status.values())
+            board.put(status, new LinkedHashMap<>());
+        return board;
+    }
+
+    /**
+     * restituisce l'insieme dei membri, ricostruendolo se il progetto è stato deserializzato
+     *
+     * @return insieme dei membri
      */
-    public ArrayList<Card> parseList(String list) {
-        ArrayList<Card> parsedList;
-        switch (list.toUpperCase()) {
-            case "TODO" : parsedList = this.getToDo(); break;
-            case "INPROGRESS" : parsedList = this.getInProgress(); break;
-            case "TOBEREVISED" : parsedList = this.getToBeRevised(); break;
-            case "DONE" : parsedList = this.getDone(); break;
-            default : parsedList = null;
+    private Set<String> memberSet() {
+        if (memberSet == null) {
+            Set<String> set = ConcurrentHashMap.newKeySet();
+            set.addAll(members);
+            memberSet = set;
         }
-        return parsedList;
+        return memberSet;
     }
 
     /**
@@ -194,4 +492,13 @@ public class Project implements Serializable {
         return this.name.equals(((Project) obj).getName());
     }
 
+    /**
+     *
+     * @return hash del progetto, coerente con equals
+     */
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
+
 }
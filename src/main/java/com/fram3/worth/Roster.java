@@ -0,0 +1,109 @@
+package com.fram3.worth;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Roster modella la lista completa degli utenti registrati inviata ai client,
+ * nel login e nelle risincronizzazioni delle callbacks.
+ * I nomi utente sono in un array e lo stato online dell'i-esimo utente è
+ * l'i-esimo bit di una bitmap di long, quindi ogni utente costa il suo nome più un bit
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class Roster implements Serializable {
+    private static final long serialVersionUID = 2466085011795290451L;
+
+    /** nomi degli utenti registrati */
+    private final String[] nicknames;
+
+    /** bitmap dello stato online degli utenti, nello stesso ordine dei nomi */
+    private final long[] online;
+
+    public Roster(String[] nicknames, long[] online) {
+        this.nicknames = nicknames;
+        this.online = online;
+    }
+
+    /**
+     * costruisce il roster dagli utenti registrati
+     *
+     * @param users utenti registrati al servizio
+     */
+    public Roster(Collection<User> users) {
+        ArrayList<String> names = new ArrayList<>(users.size());
+        long[] bits = new long[words(users.size())];
+        //la collezione può crescere mentre la si scorre, la bitmap si allarga di conseguenza
+        for (User user : users) {
+            int index = names.size();
+            if (index >> 6 >= bits.length)
+                bits = Arrays.copyOf(bits, words(index + 1));
+            boolean userOnline;
+            synchronized (user) {
+                userOnline = user.isOnline();
+            }
+            if (userOnline)
+                bits[index >> 6] |= 1L << index;
+            names.add(user.getNickname());
+        }
+        this.nicknames = names.toArray(new String[0]);
+        this.online = bits;
+    }
+
+    /**
+     *
+     * @return numero di utenti registrati
+     */
+    public int size() {
+        return nicknames.length;
+    }
+
+    /**
+     *
+     * @return nomi degli utenti registrati
+     */
+    public String[] getNicknames() {
+        return nicknames;
+    }
+
+    /**
+     *
+     * @return bitmap dello stato online degli utenti
+     */
+    public long[] getOnline() {
+        return online;
+    }
+
+    /**
+     *
+     * @param index posizione dell'utente nel roster
+     * @return true se l'utente è online, false altrimenti
+     */
+    public boolean isOnline(int index) {
+        return (online[index >> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * espande il roster nella lista degli utenti usata dal client
+     *
+     * @return lista degli utenti registrati con il loro stato
+     */
+    public ArrayList<Presence> toPresences() {
+        ArrayList<Presence> presences = new ArrayList<>(nicknames.length);
+        for (int i = 0; i < nicknames.length; i++)
+            presences.add(new Presence(nicknames[i], isOnline(i)));
+        return presences;
+    }
+
+    /**
+     *
+     * @param count numero di utenti
+     * @return numero di long necessari per la bitmap
+     */
+    private static int words(int count) {
+        return (count + 63) >> 6;
+    }
+}
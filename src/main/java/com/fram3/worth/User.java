@@ -2,11 +2,7 @@ package com.fram3.worth;
 
 import com.fram3.worth.client.ClientImpl;
 
-import java.io.IOException;
 import java.io.Serializable;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /**
@@ -30,8 +26,8 @@ public class User implements Serializable {
     /** status utente */
     private boolean online;
 
-    /** lista utenti registrati al servizio (aggiornata tramite callbacks) */
-    private ArrayList<User> users;
+    /** lista utenti registrati al servizio con il loro stato (aggiornata tramite callbacks) */
+    private ArrayList<Presence> users;
 
     /** lista chat dei progetti di cui fa parte l'utente */
     private ArrayList<Chat> chats;
@@ -72,7 +68,7 @@ public class User implements Serializable {
      *
      * @return lista degli utenti registrati al servizio
      */
-    public ArrayList<User> getUsers() {
+    public ArrayList<Presence> getUsers() {
         return users;
     }
 
@@ -81,9 +77,9 @@ public class User implements Serializable {
      *
      * @return lista degli utenti online in quel momento
      */
-    public ArrayList<User> getOnlineUsers() {
-        ArrayList<User> onlineUsers = new ArrayList<>();
-        for (User user : users) {
+    public ArrayList<Presence> getOnlineUsers() {
+        ArrayList<Presence> onlineUsers = new ArrayList<>();
+        for (Presence user : users) {
             if(user.isOnline())
                 onlineUsers.add(user);
         }
@@ -119,10 +115,59 @@ public class User implements Serializable {
      *
      * @param usersUpdate lista aggiornata dalla callback contenente gli utenti registrati al servizio
      */
-    public void setUsersList(ArrayList<User> usersUpdate) {
+    public void setUsersList(ArrayList<Presence> usersUpdate) {
         this.users = usersUpdate;
     }
 
+    /**
+     * metodo utilizzato nelle callbacks per aggiungere un nuovo utente registrato alla lista locale dell'utente
+     *
+     * @param nickname nome dell'utente registrato
+     */
+    public void addUser(String nickname) {
+        Presence registered = new Presence(nickname, false);
+        if (!this.users.contains(registered))
+            this.users.add(registered);
+    }
+
+    /**
+     * metodo utilizzato nelle callbacks per aggiornare lo stato di un utente nella lista locale dell'utente
+     *
+     * @param nickname nome dell'utente
+     * @param online nuovo stato dell'utente
+     */
+    public void setUserOnline(String nickname, boolean online) {
+        int userIndex = this.users.indexOf(new Presence(nickname, false));
+        if (userIndex != -1)
+            this.users.get(userIndex).setOnline(online);
+    }
+
+    /**
+     * metodo utilizzato nelle callbacks per aggiungere la chat di un nuovo progetto
+     * alla lista locale dell'utente e iniziare a riceverne i messaggi
+     *
+     * @param chat chat del progetto di cui l'utente è diventato membro
+     */
+    public void addChat(Chat chat) {
+        if (this.chats.contains(chat))
+            return;
+        this.chats.add(chat);
+        client.joinChat(chat);
+    }
+
+    /**
+     * metodo utilizzato nelle callbacks per rimuovere la chat di un progetto cancellato
+     * dalla lista locale dell'utente e smettere di riceverne i messaggi
+     *
+     * @param projectName nome del progetto cancellato
+     */
+    public void removeChat(String projectName) {
+        int chatIndex = this.chats.indexOf(new Chat(projectName));
+        if (chatIndex == -1)
+            return;
+        client.leaveChat(this.chats.remove(chatIndex));
+    }
+
     /**
      * metodo utilizzato nelle callbacks per aggiornare la lista di chats locale dell'utente
      *
@@ -134,19 +179,19 @@ public class User implements Serializable {
         //dire che il progetto relativo a quella chat è stato cancellato
         for (Chat chat : this.chats) {
             if (!chatsUpdate.contains(chat))
-                client.interruptSniffer(chat);
+                client.leaveChat(chat);
         }
         ArrayList<Chat> updatedChats = new ArrayList<>();
         for (Chat chat : chatsUpdate) {
             int chatIndex = this.chats.indexOf(chat);
             //se è una chat di un progetto di cui l'utente era già membro allora lascio la chat originale
-            //perchè non vogliamo perdere i messaggi sniffati e memorizzati nella chat fino a quel momento
+            //perchè non vogliamo perdere i messaggi ricevuti e memorizzati nella chat fino a quel momento
             if (chatIndex != -1)
                 updatedChats.add(this.chats.get(chatIndex));
-                // altrimenti la aggiungo quella nuova e avvio lo sniffer dei messaggi
+                // altrimenti la aggiungo quella nuova e inizio a riceverne i messaggi
             else {
                 updatedChats.add(chat);
-                client.startSniffer(chat);
+                client.joinChat(chat);
             }
         }
         //i progetti cancellati sono stati scartati dai due foreach
@@ -162,25 +207,6 @@ public class User implements Serializable {
         System.out.println(this.chats.get(this.chats.indexOf(new Chat(projectName))));
     }
 
-    /**
-     * invia un messaggio nella chat di progetto
-     *
-     * @param projectName nome progetto della chat in cui si vuole inviare il messaggio
-     * @param message messaggio da inviare
-     */
-    public void sendChatMsg(String projectName, String message) {
-        String chatMsg = this.nickname + " ha detto: " + "\"" + message + "\"";
-        byte[] buf = chatMsg.getBytes(StandardCharsets.UTF_8);
-        int chatIndex = this.chats.indexOf(new Chat(projectName));
-        Chat chat = this.chats.get(chatIndex);
-        DatagramPacket packet = new DatagramPacket(buf, buf.length, chat.getAddress(), chat.getPort());
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      *
      * @param obj oggetto da confrontare
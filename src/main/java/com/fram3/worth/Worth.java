@@ -2,6 +2,8 @@ package com.fram3.worth;
 
 import com.fram3.worth.utils.Message;
 
+import java.util.ArrayList;
+
 /**
  * Worth è l'interfaccia del servizio che include le operazioni offerte
  * ed i tipi di richieste e responsi possibili
@@ -25,7 +27,15 @@ public interface Worth {
         SHOW_CARD,
         ADD_CARD,
         MOVE_CARD,
-        CANCEL_PROJECT
+        CANCEL_PROJECT,
+        BATCH,
+        HANDSHAKE,
+        GET_CARD_HISTORY,
+        REGISTER,
+        SUBSCRIBE,              //callbacks inviate sulla connessione tcp
+        RESYNC,                 //risincronizzazione delle callbacks inviate sulla connessione tcp
+        SEND_CHAT,
+        READ_CHAT
     }
 
     /**
@@ -46,7 +56,23 @@ public interface Worth {
         MOVE_FORBIDDEN,         //move_card
         UNKNOWN_ERROR,          //logout
         CANCEL_FORBIDDEN,       //cancel_project
-        UNABLE_CREATE_PROJECT   //create_project (indirizzi multicast esauriti)
+        UNABLE_CREATE_PROJECT,  //create_project (indirizzi multicast esauriti)
+        INVALID_NAME            //create_project, add_card (nome non utilizzabile come nome di file)
+    }
+
+    /**
+     * enumerazione di tipi di eventi inviati dal server sulla connessione tcp,
+     * corrispondenti alle callbacks dell'interfaccia Client
+     */
+    enum EventType {
+        USERS,                  //risincronizzazione degli utenti registrati
+        CHATS,                  //risincronizzazione delle chat dell'utente
+        USER_REGISTERED,
+        USER_ONLINE,
+        USER_OFFLINE,
+        PROJECT_JOINED,
+        PROJECT_CANCELLED,
+        CHAT_MESSAGE            //messaggio di chat inoltrato dal server al posto del multicast
     }
 
     /**
@@ -123,6 +149,16 @@ public interface Worth {
      */
     Message showCard(String nickname, String projectName, String cardName);
 
+    /**
+     * recupera lo storico degli spostamenti della card richiesta
+     *
+     * @param nickname nome utente che ha richiesto lo storico
+     * @param projectName nome progetto a cui appartiene la card
+     * @param cardName nome card richiesta
+     * @return messaggio da inviare al client contenente lo storico testuale della card
+     */
+    Message getCardHistory(String nickname, String projectName, String cardName);
+
     /**
      * aggiunge la card con i dettagli forniti al progetto
      * e invia un messaggio nella chat di progetto indicando l'operazione eseguita
@@ -157,4 +193,38 @@ public interface Worth {
      * @return messaggio contentente il responso per l'operazione richiesta
      */
     Message cancelProject(String nickname, String projectName);
+
+    /**
+     * esegue una sequenza di operazioni sulle card e sui membri di un progetto
+     * e invia un unico messaggio riassuntivo nella chat di progetto
+     *
+     * @param nickname nome utente che ha richiesto le operazioni
+     * @param projectName nome progetto su cui eseguire le operazioni
+     * @param operations operazioni da eseguire (ADD_CARD, MOVE_CARD, ADD_MEMBER)
+     * @return messaggio contenente il responso di ogni operazione, nello stesso ordine delle operazioni
+     */
+    Message batch(String nickname, String projectName, ArrayList<Message> operations);
+
+    /**
+     * registra un messaggio dell'utente nello storico della chat di progetto
+     * e lo invia nella chat di progetto
+     *
+     * @param nickname nome utente che invia il messaggio
+     * @param projectName nome progetto della chat
+     * @param text testo del messaggio
+     * @return messaggio contentente il responso per l'operazione richiesta
+     */
+    Message sendChat(String nickname, String projectName, String text);
+
+    /**
+     * recupera dallo storico della chat di progetto una pagina di messaggi
+     * a partire dall'offset indicato
+     *
+     * @param nickname nome utente che ha richiesto i messaggi
+     * @param projectName nome progetto della chat
+     * @param offset offset del primo messaggio da leggere
+     * @return messaggio da inviare al client contenente i messaggi letti
+     *         e l'offset del messaggio successivo all'ultimo letto
+     */
+    Message readChat(String nickname, String projectName, long offset);
 }
@@ -1,13 +1,20 @@
 package com.fram3.worth;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
+import com.fram3.worth.server.ChatLog;
+import com.fram3.worth.server.Journal;
+import com.fram3.worth.server.ProjectCache;
 import com.fram3.worth.server.ServerImpl;
+import com.fram3.worth.utils.ChatAddressAllocator;
+import com.fram3.worth.utils.ChatPublisher;
 import com.fram3.worth.utils.Message;
 import com.fram3.worth.utils.SecurePassword;
 
@@ -23,47 +30,246 @@ public class WorthImpl implements Worth {
     /** server che gestisce il servizio */
     private final ServerImpl server;
 
-    /** ultimo indirizzo di chat assegnato */
-    private String multicastAddress;
+    /** indirizzi e porte delle chat dei progetti */
+    private final ChatAddressAllocator chatAddresses;
 
-    /** ultima porta per il servizio di multicast assegnata */
-    private int multicastPort;
+    /** utenti registrati indicizzati per nickname */
+    private final ConcurrentHashMap<String, User> registeredUsers;
 
-    /** lista di utenti registrati */
-    private final ArrayList<User> registeredUsers;
+    /** progetti creati indicizzati per nome */
+    private final ConcurrentHashMap<String, Project> createdProjects;
 
-    /** lista dei progetti creati */
-    private final ArrayList<Project> createdProjects;
+    /** indice inverso: per ogni nickname i nomi dei progetti di cui l'utente è membro */
+    private final ConcurrentHashMap<String, Set<String>> userProjects;
+
+    /** journal su cui registrare le modifiche, null durante il caricamento e il replay */
+    private volatile Journal journal;
+
+    /** progetti con le cards in memoria, null se le cards di tutti i progetti restano sempre in memoria */
+    private volatile ProjectCache projectCache;
+
+    /** storico dei messaggi delle chat dei progetti, null se i messaggi non vengono registrati */
+    private volatile ChatLog chatLog;
+
+    /** numero di sequenza del record del journal in corso di replay */
+    private long replaySequence;
+
+    /** true se gli utenti registrati sono cambiati dopo l'ultimo snapshot */
+    private final AtomicBoolean usersDirty;
+
+    /** nomi dei progetti cancellati dopo l'ultimo snapshot */
+    private final ConcurrentLinkedQueue<String> removedProjects;
 
     public WorthImpl(ServerImpl server) {
         this.server = server;
-        //indirizzo di partenza per le chat multicast
-        //ad ogni nuovo indirizzo assegnato aggiorniamo questa stringa
-        //la quale rappresenterà l'ultimo indirizzo di multicast assegnato
-        multicastAddress = "239.0.0.0";
-        //porta di partenza per servizio di multicast
-        //ad ogni nuova porta assegnato aggiorniamo questo valore
-        //il quale rappresenterà l'ultima porta per multicast assegnata
-        multicastPort = 10000;
-        registeredUsers = new ArrayList<>();
-        createdProjects = new ArrayList<>();
+        //le chat usano gli indirizzi da 239.0.0.1 e le porte da worth.chatPortBase (di default 10000),
+        //al più worth.chatPorts porte (di default fino alla 65535)
+        int chatPortBase = Integer.getInteger("worth.chatPortBase", 10000);
+        chatAddresses = new ChatAddressAllocator(chatPortBase,
+                Integer.getInteger("worth.chatPorts", 65536 - chatPortBase));
+        registeredUsers = new ConcurrentHashMap<>();
+        createdProjects = new ConcurrentHashMap<>();
+        userProjects = new ConcurrentHashMap<>();
+        usersDirty = new AtomicBoolean();
+        removedProjects = new ConcurrentLinkedQueue<>();
+    }
+
+
+    /**
+     *
+     * @return gli utenti registrati
+     */
+    public Collection<User> getRegisteredUsers() {
+        return registeredUsers.values();
+    }
+
+    /**
+     *
+     * @return i progetti creati
+     */
+    public Collection<Project> getCreatedProjects() {
+        return createdProjects.values();
+    }
+
+    /**
+     * costruisce la lista delle chat dei progetti di cui l'utente è membro dall'indice inverso
+     *
+     * @param nickname nome utente
+     * @return chat dei progetti di cui l'utente è membro
+     */
+    public ArrayList<Chat> getMemberChats(String nickname) {
+        ArrayList<Chat> chats = new ArrayList<>();
+        for (String projectName : userProjects.getOrDefault(nickname, Set.of())) {
+            Project project = createdProjects.get(projectName);
+            if (project != null)
+                chats.add(new Chat(project.getChatAddress(), project.getChatPort(), project.getName()));
+        }
+        return chats;
     }
 
+    /**
+     *
+     * @param nickname nome utente
+     * @return true se l'utente è registrato ed ha effettuato il login
+     */
+    public boolean isOnline(String nickname) {
+        User user = registeredUsers.get(nickname);
+        if (user == null)
+            return false;
+        synchronized (user) {
+            return user.isOnline();
+        }
+    }
 
     /**
      *
-     * @return la lista degli utenti registrati
+     * @param journal journal su cui registrare da ora in poi le modifiche allo stato del servizio
      */
-    public ArrayList<User> getRegisteredUsers() {
-        return registeredUsers;
+    public void setJournal(Journal journal) {
+        this.journal = journal;
     }
 
     /**
+     * legge il numero di sequenza dell'ultimo record del journal per uno snapshot.
+     * Registrazioni, creazioni e cancellazioni scrivono il record nel journal prima di modificare la mappa,
+     * sotto il monitor della mappa: acquisendo gli stessi monitor ogni record incluso nella sequenza
+     * restituita è già visibile nelle mappe che lo snapshot scriverà
      *
-     * @return la lista dei progetti creati
+     * @return numero di sequenza dell'ultimo record le cui modifiche sono visibili
      */
-    public ArrayList<Project> getCreatedProjects() {
-        return createdProjects;
+    public long getSnapshotSequence() {
+        synchronized (registeredUsers) {
+            synchronized (createdProjects) {
+                return journal.getLastSequence();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param projectCache progetti con le cards in memoria, da cui caricare le cards dei progetti scaricati
+     */
+    public void setProjectCache(ProjectCache projectCache) {
+        this.projectCache = projectCache;
+    }
+
+    /**
+     *
+     * @param chatLog storico in cui registrare i messaggi delle chat dei progetti
+     */
+    public void setChatLog(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * registra un nuovo utente al servizio
+     *
+     * @param user utente da registrare
+     * @return true se l'utente è stato registrato, false se esisteva già un utente con quel nickname
+     */
+    public boolean registerUser(User user) {
+        // l'utente diventa visibile solo dopo essere stato registrato nel journal,
+        // così nessun record che lo riguarda può precedere quello della sua registrazione
+        synchronized (registeredUsers) {
+            if (registeredUsers.containsKey(user.getNickname()))
+                return false;
+            Message entry = new Message(RequestType.REGISTER);
+            entry.setNickname(user.getNickname());
+            entry.setPassword(user.getPassword());
+            log(entry);
+            registeredUsers.put(user.getNickname(), user);
+            usersDirty.set(true);
+        }
+        sync();
+        return true;
+    }
+
+    /**
+     * riapplica una modifica letta dal journal, senza notificare i client
+     * e senza registrarla di nuovo. Usato solo all'avvio del server.
+     * Le modifiche già incluse nello snapshot vengono riconosciute dai numeri di sequenza
+     * salvati con progetti e cards e vengono ignorate
+     *
+     * @param entry modifica da riapplicare
+     * @param sequence numero di sequenza del record nel journal
+     */
+    public void apply(Message entry, long sequence) {
+        replaySequence = sequence;
+        if (entry.getRequest() == RequestType.REGISTER) {
+            registerUser(new User(entry.getNickname(), entry.getPassword()));
+            return;
+        }
+        if (entry.getRequest() == RequestType.CREATE_PROJECT) {
+            insertProject(entry.getNickname(), entry.getProjectName());
+            return;
+        }
+        Project project = createdProjects.get(entry.getProjectName());
+        // il record riguarda un progetto omonimo cancellato prima della creazione di quello attuale
+        if (project == null || project.getSequence() > sequence)
+            return;
+        switch (entry.getRequest()) {
+            case ADD_MEMBER:
+                writeProject(project, () -> addMemberToProject(project, entry.getNewMember()));
+                break;
+            case ADD_CARD:
+                writeProject(project, () -> addCardToProject(project, entry.getCardName(),
+                        entry.getDescription(), entry.getTimestamp()));
+                break;
+            case MOVE_CARD:
+                hydrate(project);
+                Card card = project.getCard(entry.getCardName());
+                // lo spostamento è già incluso nello snapshot della card
+                if (card != null && card.getSequence() >= sequence)
+                    break;
+                writeProject(project, () -> moveCardInProject(project, entry.getCardName(),
+                        entry.getSourceList(), entry.getDestList(), entry.getTimestamp()));
+                break;
+            case CANCEL_PROJECT:
+                if (removeProject(project) == ResponseType.OK)
+                    releaseChatAddress(project);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * azzera il flag degli utenti modificati
+     *
+     * @return true se gli utenti registrati sono cambiati dopo l'ultimo snapshot
+     */
+    public boolean takeUsersDirty() {
+        return usersDirty.getAndSet(false);
+    }
+
+    /**
+     * segna gli utenti registrati come modificati, per riscriverli al prossimo snapshot
+     */
+    public void markUsersDirty() {
+        usersDirty.set(true);
+    }
+
+    /**
+     * preleva i nomi dei progetti cancellati dopo l'ultimo snapshot
+     *
+     * @return nomi dei progetti cancellati, nell'ordine di cancellazione
+     */
+    public ArrayList<String> takeRemovedProjects() {
+        ArrayList<String> removed = new ArrayList<>();
+        String name;
+        while ((name = removedProjects.poll()) != null)
+            removed.add(name);
+        return removed;
+    }
+
+    /**
+     * aggiunge ai progetti creati un progetto caricato dalla persistenza
+     *
+     * @param project progetto da aggiungere
+     */
+    public void addProject(Project project) {
+        createdProjects.put(project.getName(), project);
+        for (String member : project.getMembers())
+            indexMember(member, project.getName());
     }
 
     /**
@@ -76,25 +282,26 @@ public class WorthImpl implements Worth {
     @Override
     public Message login(String nickname, String password) {
         Message message = new Message();
-        User tmp = new User(nickname, password);
-        int index = registeredUsers.indexOf(tmp);
+        User user = registeredUsers.get(nickname);
         //utente non registrato
-        if (index == -1) {
+        if (user == null) {
             message.setResponse(ResponseType.NOT_REGISTERED);
         } else
             try {   //check password
-                if (!SecurePassword.check(password, registeredUsers.get(index).getPassword())) {
+                if (!SecurePassword.check(password, user.getPassword())) {
                     message.setResponse(ResponseType.WRONG_PASSW);
-                } else if (registeredUsers.get(index).isOnline()) {
-                    message.setResponse(ResponseType.ALREADY_LOGGED);
                 } else {
-                    //sincronizzazione sulla lista perchè può essere modificata concorrentemente
-                    //dai thread che eseguono i task RequestHandler
-                    synchronized (registeredUsers) {
-                        registeredUsers.get(index).setOnline(true);
+                    //controllo e modifica atomici perchè lo stesso utente può
+                    //tentare il login da più client concorrentemente
+                    synchronized (user) {
+                        if (user.isOnline()) {
+                            message.setResponse(ResponseType.ALREADY_LOGGED);
+                            return message;
+                        }
+                        user.setOnline(true);
                     }
-                    User user = registeredUsers.get(index);
-                    message.setUser(user);
+                    //al client bastano i nomi e lo stato degli utenti, non gli User con le password
+                    message.setRoster(new Roster(registeredUsers.values()));
                     message.setResponse(ResponseType.OK);
                 }
             } catch (Exception e) {
@@ -113,10 +320,10 @@ public class WorthImpl implements Worth {
     @Override 
     public Message logout(String nickname) {
         Message message = new Message();
-        int index = registeredUsers.indexOf(new User(nickname, null));
-        if (index != -1) {
-            synchronized (registeredUsers) {
-                registeredUsers.get(index).setOnline(false);
+        User user = registeredUsers.get(nickname);
+        if (user != null) {
+            synchronized (user) {
+                user.setOnline(false);
             }
             message.setResponse(ResponseType.OK);
             return message;
@@ -135,14 +342,19 @@ public class WorthImpl implements Worth {
     @Override 
     public Message listProjects(String nickname) {
         Message message = new Message();
-        //costruiamo la lista dei progetti dell'utente
-        ArrayList<Project> userProjects = new ArrayList<>();
-        for (Project project : createdProjects) {
-            if (project.getMembers().contains(nickname))
-                userProjects.add(project);
+        //costruiamo la lista dei progetti dell'utente dall'indice inverso
+        ArrayList<Project> projects = new ArrayList<>();
+        for (String projectName : userProjects.getOrDefault(nickname, Set.of())) {
+            Project project = createdProjects.get(projectName);
+            if (project == null)
+                continue;
+            // copio il progetto in modo che le scritture concorrenti non modifichino la risposta
+            Project copy = readProject(project, () -> copyOf(project));
+            if (copy != null)
+                projects.add(copy);
         }
         message.setResponse(ResponseType.OK);
-        message.setProjects(userProjects);
+        message.setProjects(projects);
         return message;
     }
 
@@ -158,23 +370,19 @@ public class WorthImpl implements Worth {
     @Override 
     public Message createProject(String nickname, String projectName) {
         Message message = new Message();
-        Project project = new Project(projectName, nickname);
-        if (!bindChatAddress(project)) {
-            message.setResponse(ResponseType.UNABLE_CREATE_PROJECT);
+        if (!isValidProjectName(projectName)) {
+            message.setResponse(ResponseType.INVALID_NAME);
             return message;
         }
-        // controllo e modifica atomici
-        synchronized (createdProjects) {
-            if (createdProjects.contains(project)) {
-                message.setResponse(ResponseType.PROJECT_EXISTS);
-            } else {
-                //aggiorno la lista di tutti i progetti lato server
-                createdProjects.add(project);
-                message.setResponse(ResponseType.OK);
-                server.updateClientChats();
-                sendChatMsg(project, nickname + " ha creato il progetto " + projectName);
-            }
+        ResponseType response = insertProject(nickname, projectName);
+        if (response != ResponseType.OK) {
+            message.setResponse(response);
+            return message;
         }
+        message.setResponse(ResponseType.OK);
+        Project project = createdProjects.get(projectName);
+        server.notifyProjectJoined(project, nickname);
+        sendChatMsg(project, nickname + " ha creato il progetto " + projectName);
         return message;
     }
 
@@ -191,35 +399,19 @@ public class WorthImpl implements Worth {
     @Override 
     public Message addMember(String nickname, String projectName, String nickNewMember) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza del progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
-            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // controllo esistenza negli utenti registrati del nuovo membro
-        int newMemberIndex = registeredUsers.indexOf(new User(nickNewMember, null));
-        if (newMemberIndex == -1) {
-            message.setResponse(ResponseType.NOT_REGISTERED);
+        ResponseType response = writeProject(project, () -> addMemberToProject(project, nickNewMember));
+        if (response != ResponseType.OK) {
+            message.setResponse(response);
             return message;
         }
-        synchronized (createdProjects) {
-            // controllo che il nuovo membro non sia già membro del progetto
-            if (project.getMembers().contains(nickNewMember)) {
-                message.setResponse(ResponseType.MEMBER_EXISTS);
-                return message;
-            }
-            // modifico nella lista createdProject (aggiungo il nuovo membro al progetto)
-            project.getMembers().add(nickNewMember);
-        }
         message.setResponse(ResponseType.OK);
-        server.updateClientChats();
+        server.notifyProjectJoined(project, nickNewMember);
         sendChatMsg(project, nickname + " ha aggiunto un nuovo membro: " + nickNewMember);
         return message;
     }
@@ -235,20 +427,14 @@ public class WorthImpl implements Worth {
     @Override 
     public Message showMembers(String nickname, String projectName) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza del progetto
-        if (projectIndex == -1) {
-            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
-            return message;
-        }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
         message.setResponse(ResponseType.OK);
-        message.setMembers(project.getMembers());
+        message.setMembers(readProject(project, () -> new ArrayList<>(project.getMembers())));
         return message;
     }
 
@@ -263,20 +449,24 @@ public class WorthImpl implements Worth {
     @Override 
     public Message showCards(String nickname, String projectName) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
-            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
+        // copio le cards in modo che le scritture concorrenti non modifichino la risposta
+        ArrayList<Card> cards = readProject(project, () -> {
+            ArrayList<Card> copy = new ArrayList<>(project.getCardsCount());
+            for (Card card : project.getCards())
+                copy.add(summaryOf(card));
+            return copy;
+        });
+        // le cards del progetto non sono in memoria e non è stato possibile leggerle
+        if (cards == null) {
+            message.setResponse(ResponseType.UNKNOWN_ERROR);
             return message;
         }
-
-        ArrayList<Card> cards = new ArrayList<>(project.getCards());
         message.setResponse(ResponseType.OK);
         message.setCards(cards);
         return message;
@@ -294,27 +484,54 @@ public class WorthImpl implements Worth {
     @Override 
     public Message showCard(String nickname, String projectName, String cardName) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        Card card = readProject(project, () -> summaryOf(project.getCard(cardName)));
+        // controllo esistenza della carta nel progetto
+        if (card == null) {
+            message.setResponse(ResponseType.NONEXISTENT_CARD);
+            return message;
+        }
+        // scrivo la carta nel messaggio
+        message.setResponse(ResponseType.OK);
+        message.setCard(card);
+        return message;
+    }
+
+
+    /**
+     * recupera lo storico degli spostamenti della card richiesta,
+     * costruendone la rappresentazione testuale solo in questo momento
+     *
+     * @param nickname nome utente che ha richiesto lo storico
+     * @param projectName nome progetto a cui appartiene la card
+     * @param cardName nome card richiesta
+     * @return messaggio da inviare al client contenente lo storico testuale della card
+     */
+    @Override
+    public Message getCardHistory(String nickname, String projectName, String cardName) {
+        Message message = new Message();
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        int cardIndex = project.getCards().indexOf(new Card(cardName, null));
+        String history = readProject(project, () -> {
+            Card card = project.getCard(cardName);
+            return card != null ? card.getHistory() : null;
+        });
         // controllo esistenza della carta nel progetto
-        if (cardIndex == -1) {
+        if (history == null) {
             message.setResponse(ResponseType.NONEXISTENT_CARD);
             return message;
         }
-        // scrivo la carta nel messaggio
         message.setResponse(ResponseType.OK);
-        message.setCard(project.getCards().get(cardIndex));
+        message.setHistory(history);
         return message;
     }
 
@@ -332,28 +549,21 @@ public class WorthImpl implements Worth {
     @Override 
     public Message addCard(String nickname, String projectName, String cardName, String description) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
-            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
+        if (!isValidName(cardName)) {
+            message.setResponse(ResponseType.INVALID_NAME);
             return message;
         }
-        synchronized (createdProjects) {
-            // controllo se la carta esiste già
-            Card card = new Card(cardName, description);
-            if (project.getCards().contains(card)) {
-                message.setResponse(ResponseType.CARD_EXISTS);
-                return message;
-            }
-            // la aggiungo al progetto (nella lista delle carte totali e nella lista to_do)
-            project.getCards().add(card);
-            project.getToDo().add(card);
+        ResponseType response = writeProject(project, () -> addCardToProject(project, cardName, description,
+                System.currentTimeMillis()));
+        if (response != ResponseType.OK) {
+            message.setResponse(response);
+            return message;
         }
         message.setResponse(ResponseType.OK);
         sendChatMsg(project, nickname + " ha aggiunto la carta " + cardName);
@@ -375,86 +585,18 @@ public class WorthImpl implements Worth {
     @Override 
     public Message moveCard(String nickname, String projectName, String cardName, String sourceList, String destList) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
-            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // prendo il riferimento alla lista di partenza
-        ArrayList<Card> sList;
-        switch (sourceList) {
-            case "todo" : sList = createdProjects.get(projectIndex).getToDo(); break;
-            case "inprogress" : sList = createdProjects.get(projectIndex).getInProgress(); break;
-            case "toberevised" : sList = createdProjects.get(projectIndex).getToBeRevised(); break;
-            case "done" : sList = createdProjects.get(projectIndex).getDone(); break;
-            default :
-                message.setResponse(ResponseType.NONEXISTENT_LIST);
-                return message;
-        }
-        // prendo il riferimento alla lista di destinazione
-        ArrayList<Card> dList;
-        switch (destList) {
-            case "todo" : dList = createdProjects.get(projectIndex).getToDo(); break;
-            case "inprogress" : dList = createdProjects.get(projectIndex).getInProgress(); break;
-            case "toberevised" : dList = createdProjects.get(projectIndex).getToBeRevised(); break;
-            case "done" : dList = createdProjects.get(projectIndex).getDone(); break;
-            default :
-                message.setResponse(ResponseType.NONEXISTENT_LIST);
-                return message;
-        }
-        // controllo che lista di partenza e di destinazione non siano uguali
-        if (sourceList.equals(destList)) {
-            message.setResponse(ResponseType.CARD_EXISTS);
+        ResponseType response = writeProject(project, () -> moveCardInProject(project, cardName, sourceList, destList,
+                System.currentTimeMillis()));
+        if (response != ResponseType.OK) {
+            message.setResponse(response);
             return message;
         }
-        // controllo che siano rispettati i vincoli sullo spostamento
-        switch (destList) {
-            case "todo" :
-                message.setResponse(ResponseType.MOVE_FORBIDDEN);
-                return message;
-                
-            case "inprogress" :
-                if (sourceList.equals("done")) {
-                    message.setResponse(ResponseType.MOVE_FORBIDDEN);
-                    return message;
-                }
-                break;
-            case "toberevised" :
-                if (!sourceList.equals("inprogress")) {
-                    message.setResponse(ResponseType.MOVE_FORBIDDEN);
-                    return message;
-                }
-                break;
-            case "done" :
-                if (sourceList.equals("todo")){
-                    message.setResponse(ResponseType.MOVE_FORBIDDEN);
-                    return message;
-                }
-                break;
-            default :
-        }
-        synchronized (createdProjects) {
-            // controllo che la carta da spostare sia effettivamente nella lista di partenza
-            int cardIndex = sList.indexOf(new Card(cardName, null));
-            if (cardIndex == -1) {
-                message.setResponse(ResponseType.NONEXISTENT_CARD);
-                return message;
-            }
-            // sposto la carta da sourceList a destList, e aggiorno la sua history
-            Card card = sList.remove(cardIndex);
-            card.updateHistory(destList);
-            dList.add(card);
-            // aggiorno anche nella lista di tutte le carte create
-            int cardIndex2 = project.getCards().indexOf(card);
-            project.getCards().set(cardIndex2, card);
-        }
         // ritorno il messaggio per il client
         message.setResponse(ResponseType.OK);
         sendChatMsg(project, nickname + " ha spostato la carta " + cardName + 
@@ -474,96 +616,640 @@ public class WorthImpl implements Worth {
     @Override 
     public Message cancelProject(String nickname, String projectName) {
         Message message = new Message();
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // controllo esistenza progetto
-        if (projectIndex == -1) {
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        Project project = createdProjects.get(projectIndex);
-        // controllo appartenenza dell'utente al progetto
-        if (!project.getMembers().contains(nickname)) {
+        ResponseType response = removeProject(project);
+        if (response != ResponseType.OK) {
+            message.setResponse(response);
+            return message;
+        }
+        message.setResponse(ResponseType.OK);
+        server.notifyProjectCancelled(project);
+        releaseChatAddress(project);
+        return message;
+    }
+
+    /**
+     * esegue una sequenza di operazioni sulle card e sui membri di un progetto
+     * acquisendo il lock una sola volta per tutta la sequenza.
+     * Al termine invia nella chat di progetto un unico messaggio riassuntivo delle operazioni eseguite
+     *
+     * @param nickname nome utente che ha richiesto le operazioni
+     * @param projectName nome progetto su cui eseguire le operazioni
+     * @param operations operazioni da eseguire (ADD_CARD, MOVE_CARD, ADD_MEMBER)
+     * @return messaggio contenente il responso di ogni operazione, nello stesso ordine delle operazioni
+     */
+    @Override
+    public Message batch(String nickname, String projectName, ArrayList<Message> operations) {
+        Message message = new Message();
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
             message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        // controllo che tutte le carte siano nella lista DONE
-        boolean ok = true;
-        for (Card card : project.getCards()) {
-            if (!card.getLocation().equals("DONE")) {
-                ok = false;
-                break;
+        if (operations == null) {
+            message.setResponse(ResponseType.UNKNOWN_ERROR);
+            return message;
+        }
+        // le operazioni non valide vengono riconosciute prima di prendere il lock, così non possono
+        // interrompere la sequenza dopo che le precedenti sono state applicate e registrate nel journal
+        boolean[] valid = new boolean[operations.size()];
+        for (int i = 0; i < valid.length; i++)
+            valid[i] = isValidOperation(operations.get(i));
+        ArrayList<ResponseType> responses = new ArrayList<>();
+        ArrayList<String> newMembers = new ArrayList<>();
+        int addedCards = 0, movedCards = 0, addedMembers = 0;
+        long time = System.currentTimeMillis();
+        StampedLock lock = project.getLock();
+        long stamp = hydrate(project) ? lockHydrated(project, true) : 0L;
+        if (stamp == 0L) {
+            message.setResponse(ResponseType.UNKNOWN_ERROR);
+            return message;
+        }
+        try {
+            if (project.isCancelled()) {
+                message.setResponse(ResponseType.NONEXISTENT_PROJECT);
+                return message;
             }
+            for (int i = 0; i < valid.length; i++) {
+                Message operation = operations.get(i);
+                if (!valid[i]) {
+                    responses.add(ResponseType.UNKNOWN_ERROR);
+                    continue;
+                }
+                ResponseType response;
+                switch (operation.getRequest()) {
+                    case ADD_CARD:
+                        response = isValidName(operation.getCardName())
+                                ? addCardToProject(project, operation.getCardName(), operation.getDescription(), time)
+                                : ResponseType.INVALID_NAME;
+                        if (response == ResponseType.OK) addedCards++;
+                        break;
+                    case MOVE_CARD:
+                        response = moveCardInProject(project, operation.getCardName(),
+                                operation.getSourceList(), operation.getDestList(), time);
+                        if (response == ResponseType.OK) movedCards++;
+                        break;
+                    case ADD_MEMBER:
+                        response = addMemberToProject(project, operation.getNewMember());
+                        if (response == ResponseType.OK) {
+                            addedMembers++;
+                            newMembers.add(operation.getNewMember());
+                        }
+                        break;
+                    default:
+                        response = ResponseType.UNKNOWN_ERROR;
+                }
+                responses.add(response);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        message.setResponse(ResponseType.OK);
+        message.setResponses(responses);
+        for (String newMember : newMembers)
+            server.notifyProjectJoined(project, newMember);
+        if (addedCards + movedCards + addedMembers > 0)
+            sendChatMsg(project, nickname + " ha eseguito " + (addedCards + movedCards + addedMembers) +
+                    " operazioni: carte aggiunte " + addedCards + ", carte spostate " + movedCards +
+                    ", membri aggiunti " + addedMembers);
+        return message;
+    }
+
+    /**
+     * controlla che l'operazione di una sequenza sia di un tipo ammesso e abbia tutti i campi richiesti
+     *
+     * @param operation operazione della sequenza
+     * @return true se l'operazione può essere eseguita
+     */
+    private static boolean isValidOperation(Message operation) {
+        if (operation == null || operation.getRequest() == null)
+            return false;
+        switch (operation.getRequest()) {
+            case ADD_CARD:
+                return operation.getCardName() != null && operation.getDescription() != null;
+            case MOVE_CARD:
+                return operation.getCardName() != null && operation.getSourceList() != null
+                        && operation.getDestList() != null;
+            case ADD_MEMBER:
+                return operation.getNewMember() != null;
+            default:
+                return false;
         }
-        if (!ok) {
-            message.setResponse(ResponseType.CANCEL_FORBIDDEN);
+    }
+
+    /**
+     * controlla che il nome di un progetto o di una card possa essere usato come nome di file
+     * nella directory dei dati: non può essere vuoto, iniziare con un punto come i file nascosti
+     * e il cestino dei progetti cancellati, o contenere separatori di path
+     *
+     * @param name nome da controllare
+     * @return true se il nome è ammesso
+     */
+    private static boolean isValidName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith(".")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * controlla che il nome di un progetto sia ammesso e non coincida con uno dei file
+     * salvati accanto alle directory dei progetti (utenti, numero di sequenza, snapshot e file temporanei)
+     *
+     * @param name nome del progetto da controllare
+     * @return true se il nome è ammesso
+     */
+    private static boolean isValidProjectName(String name) {
+        return isValidName(name) && !name.endsWith(".json") && !name.endsWith(".pack") && !name.endsWith(".tmp");
+    }
+
+    /**
+     * registra un messaggio dell'utente nello storico della chat di progetto
+     * e lo invia nella chat di progetto, in multicast o sulle connessioni dei membri online.
+     * Il messaggio viene codificato una sola volta per lo storico e per la chat
+     *
+     * @param nickname nome utente che invia il messaggio
+     * @param projectName nome progetto della chat
+     * @param text testo del messaggio
+     * @return messaggio contentente il responso per l'operazione richiesta
+     */
+    @Override
+    public Message sendChat(String nickname, String projectName, String text) {
+        Message message = new Message();
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
+            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
             return message;
         }
-        // cancello il progetto
-        createdProjects.remove(project);
+        byte[] datagram = ChatPublisher.userMessage(nickname, text);
+        recordChatMsg(project, datagram);
+        server.publishChatMsg(project, datagram);
         message.setResponse(ResponseType.OK);
-        server.updateClientChats();
         return message;
     }
 
     /**
-     * associa al progetto un indirizzo multicast per la chat
+     * recupera dallo storico della chat di progetto una pagina di messaggi
+     * a partire dall'offset indicato. Se i messaggi a partire dall'offset non sono più conservati
+     * la pagina parte dal più vecchio disponibile
      *
-     * @param project nome progetto da associare all'indirizzo della chat
-     * @return true se riesce ad associare l'indirizzo, altrimenti false
+     * @param nickname nome utente che ha richiesto i messaggi
+     * @param projectName nome progetto della chat
+     * @param offset offset del primo messaggio da leggere
+     * @return messaggio da inviare al client contenente i messaggi letti
+     *         e l'offset del messaggio successivo all'ultimo letto
      */
-    public synchronized boolean bindChatAddress(Project project) {
-        //split di "\\." perche' "." splitta con tutti i caratteri
-        String[] strAddress = multicastAddress.split("\\.");
-        int[] address = new int[strAddress.length];
-        for (int i = 0; i < address.length; i++)
-            address[i] = Integer.parseInt(strAddress[i]);
-        //incremento indirizzo a partire dall'ultimo indirizzo assegnato
-        if (address[3] < 255) {
-            address[3]++;
-        } else if (address[2] < 255) {
-            address[2]++;
-            address[3] = 0;
-        } else if (address[1] < 255) {
-            address[1]++;
-            address[2] = 0;
-            address[3] = 0;
-        }
-        else return false; //indirizzi nel range da 239.0.0.0 a 239.255.255.255 tutti assegnati
-
-        StringBuilder chatAddress = new StringBuilder();
-        for (int i = 0; i < address.length - 1; i++) {
-            chatAddress.append(address[i]).append(".");
-        }
-        chatAddress.append(address[address.length - 1]);
+    @Override
+    public Message readChat(String nickname, String projectName, long offset) {
+        Message message = new Message();
+        Project project = createdProjects.get(projectName);
+        // controllo esistenza del progetto e appartenenza dell'utente al progetto
+        if (project == null || !project.isMember(nickname)) {
+            message.setResponse(ResponseType.NONEXISTENT_PROJECT);
+            return message;
+        }
+        ArrayList<String> messages = new ArrayList<>();
+        ChatLog current = chatLog;
+        if (current == null) {
+            message.setOffset(offset);
+        } else {
+            // il lock in lettura impedisce che la lettura riapra lo storico di un progetto appena cancellato
+            StampedLock lock = project.getLock();
+            long stamp = lock.readLock();
+            try {
+                if (project.isCancelled()) {
+                    message.setResponse(ResponseType.NONEXISTENT_PROJECT);
+                    return message;
+                }
+                message.setOffset(current.read(projectName, offset, messages));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        message.setChatMessages(messages);
+        message.setResponse(ResponseType.OK);
+        return message;
+    }
+
+    /**
+     * aggiunge il nuovo membro al progetto.
+     * Va invocato con il lock in scrittura del progetto acquisito
+     *
+     * @param project progetto a cui aggiungere il membro
+     * @param nickNewMember nome utente del membro da aggiungere
+     * @return responso dell'operazione
+     */
+    private ResponseType addMemberToProject(Project project, String nickNewMember) {
+        // controllo esistenza negli utenti registrati del nuovo membro
+        if (!registeredUsers.containsKey(nickNewMember))
+            return ResponseType.NOT_REGISTERED;
+        // controllo che il nuovo membro non sia già membro del progetto
+        if (!project.addMember(nickNewMember))
+            return ResponseType.MEMBER_EXISTS;
+        indexMember(nickNewMember, project.getName());
+        Message entry = new Message(RequestType.ADD_MEMBER);
+        entry.setProjectName(project.getName());
+        entry.setNewMember(nickNewMember);
+        log(entry);
+        return ResponseType.OK;
+    }
+
+    /**
+     * aggiunge la card al progetto, nella lista delle carte totali e nella lista to_do.
+     * Va invocato con il lock in scrittura del progetto acquisito
+     *
+     * @param project progetto a cui aggiungere la card
+     * @param cardName nome card da aggiungere
+     * @param description descrizione card da aggiungere
+     * @param time istante di creazione della card in millisecondi
+     * @return responso dell'operazione
+     */
+    private ResponseType addCardToProject(Project project, String cardName, String description, long time) {
+        // la aggiungo se non esiste già una carta con lo stesso nome
+        if (!project.addCard(new Card(cardName, description, time)))
+            return ResponseType.CARD_EXISTS;
+        Message entry = new Message(RequestType.ADD_CARD);
+        entry.setProjectName(project.getName());
+        entry.setCardName(cardName);
+        entry.setDescription(description);
+        entry.setTimestamp(time);
+        project.getCard(cardName).setSequence(log(entry));
+        return ResponseType.OK;
+    }
+
+    /**
+     * sposta la card, se consentito, da una lista di partenza a una di destinazione.
+     * Va invocato con il lock in scrittura del progetto acquisito
+     *
+     * @param project progetto di cui fa parte la card
+     * @param cardName nome card da spostare
+     * @param sourceList lista di partenza da cui spostare la card
+     * @param destList lista di destinazione in cui spostare la card
+     * @param time istante dello spostamento in millisecondi
+     * @return responso dell'operazione
+     */
+    private ResponseType moveCardInProject(Project project, String cardName, String sourceList, String destList,
+                                           long time) {
+        // ricavo lo stato della lista di partenza e di quella di destinazione
+        Card.Status source = Card.Status.parse(sourceList);
+        Card.Status dest = Card.Status.parse(destList);
+        if (source == null || dest == null)
+            return ResponseType.NONEXISTENT_LIST;
+        // controllo che lista di partenza e di destinazione non siano uguali
+        if (source == dest)
+            return ResponseType.CARD_EXISTS;
+        // controllo che siano rispettati i vincoli sullo spostamento
+        switch (dest) {
+            case TODO :
+                return ResponseType.MOVE_FORBIDDEN;
+            case INPROGRESS :
+                if (source == Card.Status.DONE)
+                    return ResponseType.MOVE_FORBIDDEN;
+                break;
+            case TOBEREVISED :
+                if (source != Card.Status.INPROGRESS)
+                    return ResponseType.MOVE_FORBIDDEN;
+                break;
+            case DONE :
+                if (source == Card.Status.TODO)
+                    return ResponseType.MOVE_FORBIDDEN;
+                break;
+            default :
+        }
+        // controllo che la carta da spostare esista e sia effettivamente nella lista di partenza
+        Card card = project.getCard(cardName);
+        if (card == null || card.getStatus() != source)
+            return ResponseType.NONEXISTENT_CARD;
+        // sposto la carta da sourceList a destList in tempo costante, registrando la transizione
+        project.moveCard(card, dest, time);
+        Message entry = new Message(RequestType.MOVE_CARD);
+        entry.setProjectName(project.getName());
+        entry.setCardName(cardName);
+        entry.setSourceList(sourceList);
+        entry.setDestList(destList);
+        entry.setTimestamp(time);
+        card.setSequence(log(entry));
+        return ResponseType.OK;
+    }
+
+    /**
+     * crea il progetto e gli associa un indirizzo per la chat.
+     * Il progetto diventa visibile solo dopo essere stato registrato nel journal,
+     * così nessun record che lo riguarda può precedere quello della sua creazione
+     *
+     * @param nickname nome utente che crea il progetto
+     * @param projectName nome progetto da creare
+     * @return responso dell'operazione
+     */
+    private ResponseType insertProject(String nickname, String projectName) {
+        Project project = new Project(projectName, nickname);
+        if (!bindChatAddress(project))
+            return ResponseType.UNABLE_CREATE_PROJECT;
+        // controllo e modifica atomici, il lock globale serializza solo creazioni e cancellazioni
+        synchronized (createdProjects) {
+            if (createdProjects.containsKey(projectName)) {
+                releaseChatAddress(project);
+                return ResponseType.PROJECT_EXISTS;
+            }
+            Message entry = new Message(RequestType.CREATE_PROJECT);
+            entry.setNickname(nickname);
+            entry.setProjectName(projectName);
+            project.setSequence(log(entry));
+            createdProjects.put(projectName, project);
+            indexMember(nickname, projectName);
+        }
+        return ResponseType.OK;
+    }
 
+    /**
+     * cancella il progetto se tutte le sue card sono nella lista DONE
+     *
+     * @param project progetto da cancellare
+     * @return responso dell'operazione
+     */
+    private ResponseType removeProject(Project project) {
+        // per controllare le liste servono le cards del progetto
+        if (!hydrate(project))
+            return ResponseType.UNKNOWN_ERROR;
+        // il lock globale serializza la cancellazione con le creazioni,
+        // quello del progetto con le scritture in corso sul progetto stesso
+        synchronized (createdProjects) {
+            StampedLock lock = project.getLock();
+            long stamp = lockHydrated(project, true);
+            if (stamp == 0L)
+                return ResponseType.UNKNOWN_ERROR;
+            try {
+                if (project.isCancelled())
+                    return ResponseType.NONEXISTENT_PROJECT;
+                // controllo che tutte le carte siano nella lista DONE
+                if (project.getCount(Card.Status.DONE) != project.getCardsCount())
+                    return ResponseType.CANCEL_FORBIDDEN;
+                Message entry = new Message(RequestType.CANCEL_PROJECT);
+                entry.setProjectName(project.getName());
+                log(entry);
+                // cancello il progetto, la sua directory verrà rimossa al prossimo snapshot
+                project.setCancelled();
+                createdProjects.remove(project.getName());
+                removedProjects.add(project.getName());
+                for (String member : project.getMembers())
+                    unindexMember(member, project.getName());
+                // con il lock ancora acquisito nessun messaggio può ricreare lo storico cancellato
+                // e nessun progetto omonimo può essere creato prima della sua rimozione
+                removeChatLog(project);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        return ResponseType.OK;
+    }
+
+    /**
+     * registra una modifica nel journal, se presente.
+     * Va invocato con il lock della risorsa modificata acquisito. Le richieste dei client vengono
+     * confermate dal RequestHandler solo dopo che il journal le ha scritte su disco
+     *
+     * @param entry modifica da registrare
+     * @return numero di sequenza del record, durante il replay quello del record riapplicato
+     */
+    private long log(Message entry) {
+        Journal current = journal;
+        if (current != null)
+            return current.append(entry);
+        return replaySequence;
+    }
+
+    /**
+     * attende che le modifiche registrate nel journal siano su disco.
+     * Va invocato dopo aver rilasciato i lock, prima di rispondere a chi non passa dal RequestHandler
+     */
+    private void sync() {
+        Journal current = journal;
+        if (current != null)
+            current.sync();
+    }
+
+    /**
+     * esegue una modifica del progetto con il lock in scrittura del solo progetto,
+     * così che scritture su progetti diversi non si blocchino a vicenda
+     *
+     * @param project progetto da modificare
+     * @param writer modifica da eseguire
+     * @return responso della modifica, NONEXISTENT_PROJECT se nel frattempo il progetto è stato cancellato
+     */
+    private ResponseType writeProject(Project project, Supplier<ResponseType> writer) {
+        StampedLock lock = project.getLock();
+        long stamp = hydrate(project) ? lockHydrated(project, true) : 0L;
+        if (stamp == 0L)
+            return ResponseType.UNKNOWN_ERROR;
         try {
-            project.setChatAddress(InetAddress.getByName(chatAddress.toString()));
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+            if (project.isCancelled())
+                return ResponseType.NONEXISTENT_PROJECT;
+            return writer.get();
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        //aggiornamento ultime assegnazioni
-        project.setChatPort(multicastPort++);
-        multicastAddress = chatAddress.toString();
+    }
+
+    /**
+     * esegue una lettura del progetto con uno stamp ottimistico, senza bloccare.
+     * Se nel frattempo c'è stata una scrittura la lettura viene ripetuta con il lock in lettura
+     *
+     * @param project progetto da leggere
+     * @param reader lettura da eseguire, deve restituire una copia dei dati letti
+     * @return risultato della lettura, null se le cards del progetto non sono in memoria
+     *         e non è stato possibile leggerle dalla persistenza
+     */
+    private <T> T readProject(Project project, Supplier<T> reader) {
+        if (!hydrate(project))
+            return null;
+        StampedLock lock = project.getLock();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                T result = reader.get();
+                // le cards scaricate dopo il caricamento invalidano lo stamp, lo scaricamento prende il lock
+                if (!project.isEvicted() && lock.validate(stamp))
+                    return result;
+            } catch (RuntimeException e) {
+                // lettura inconsistente a causa di una scrittura concorrente, la ripeto col lock
+            }
+        }
+        stamp = lockHydrated(project, false);
+        if (stamp == 0L)
+            return null;
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * garantisce che le cards del progetto siano in memoria, leggendole dalla persistenza se necessario.
+     * Va invocato senza lock del progetto acquisiti
+     *
+     * @param project progetto usato da una richiesta
+     * @return false se non è stato possibile leggere le cards del progetto, true altrimenti
+     */
+    private boolean hydrate(Project project) {
+        ProjectCache cache = projectCache;
+        return cache == null || cache.hydrate(project);
+    }
+
+    /**
+     * acquisisce il lock del progetto con le cards in memoria. Se le cards sono state scaricate
+     * tra il caricamento e l'acquisizione del lock, il lock viene rilasciato e le cards ricaricate
+     *
+     * @param project progetto da bloccare
+     * @param write true per il lock in scrittura, false per quello in lettura
+     * @return stamp del lock acquisito, 0 se non è stato possibile leggere le cards (nessun lock acquisito)
+     */
+    private long lockHydrated(Project project, boolean write) {
+        StampedLock lock = project.getLock();
+        while (true) {
+            long stamp = write ? lock.writeLock() : lock.readLock();
+            if (!project.isEvicted() || project.isCancelled())
+                return stamp;
+            lock.unlock(stamp);
+            if (!hydrate(project))
+                return 0L;
+        }
+    }
 
+    /**
+     * copia il progetto con membri, cards e indirizzo della chat, da inviare al client
+     *
+     * @param project progetto da copiare, letto sotto lo stamp o il lock del progetto
+     * @return copia del progetto
+     */
+    private static Project copyOf(Project project) {
+        Project copy = new Project(project.getName());
+        for (String member : project.getMembers())
+            copy.addMember(member);
+        for (Card card : project.getCards())
+            copy.addCard(new Card(card.getName(), card.getDescription(), card.getStatus(),
+                    card.getTransitions()));
+        copy.setChatAddress(project.getChatAddress());
+        copy.setChatPort(project.getChatPort());
+        return copy;
+    }
+
+    /**
+     * copia la card senza le transizioni, che vengono inviate solo con GET_CARD_HISTORY
+     *
+     * @param card card da copiare
+     * @return copia della card, oppure null se la card è null
+     */
+    private static Card summaryOf(Card card) {
+        if (card == null)
+            return null;
+        return new Card(card.getName(), card.getDescription(), card.getStatus(), new long[0]);
+    }
+
+    /**
+     * aggiunge il progetto all'indice inverso dei progetti dell'utente
+     *
+     * @param nickname nome utente membro del progetto
+     * @param projectName nome progetto
+     */
+    private void indexMember(String nickname, String projectName) {
+        userProjects.computeIfAbsent(nickname, k -> ConcurrentHashMap.newKeySet()).add(projectName);
+    }
+
+    /**
+     * rimuove il progetto dall'indice inverso dei progetti dell'utente
+     *
+     * @param nickname nome utente membro del progetto
+     * @param projectName nome progetto
+     */
+    private void unindexMember(String nickname, String projectName) {
+        Set<String> projects = userProjects.get(nickname);
+        if (projects != null)
+            projects.remove(projectName);
+    }
+
+    /**
+     * associa al progetto un indirizzo multicast e una porta per la chat,
+     * riusando quelli dei progetti cancellati quando i nuovi sono esauriti
+     *
+     * @param project nome progetto da associare all'indirizzo della chat
+     * @return true se riesce ad associare l'indirizzo, altrimenti false
+     */
+    public boolean bindChatAddress(Project project) {
+        int slot = chatAddresses.allocate();
+        //indirizzi nel range da 239.0.0.1 a 239.255.255.255 o porte tutti assegnati
+        if (slot == -1)
+            return false;
+        project.setChatAddress(chatAddresses.address(slot));
+        project.setChatPort(chatAddresses.port(slot));
         return true;
     }
 
+    /**
+     * rilascia l'indirizzo e la porta della chat del progetto, che potranno essere riassegnati
+     *
+     * @param project progetto cancellato o non creato
+     */
+    private void releaseChatAddress(Project project) {
+        int slot = chatAddresses.slotOf(project.getChatPort());
+        if (slot != -1)
+            chatAddresses.release(slot);
+    }
+
     /**
      * metodo privato utilizzato per l'invio di un messaggio da parte del servizio
-     * alla chat di progetto, in seguito ad un'operazione che ha modificato lo stato del progetto
+     * alla chat di progetto, in seguito ad un'operazione che ha modificato lo stato del progetto.
+     * Il messaggio viene registrato nello storico e accodato nel publisher condiviso, o nelle connessioni
+     * dei membri online con worth.chatTransport=tcp, senza bloccare l'operazione
      *
      * @param project nome progetto della chat in cui inviare il messaggio
      * @param message messaggio da inviare
      */
     private void sendChatMsg(Project project, String message) {
-        String chatMsg = "Messaggio da WORTH: " + "\"" + message + "\"";
-        byte[] buf = chatMsg.getBytes();
-        DatagramPacket packet = new DatagramPacket(buf, buf.length, project.getChatAddress(), project.getChatPort());
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
+        byte[] datagram = ChatPublisher.systemMessage(message);
+        recordChatMsg(project, datagram);
+        server.publishChatMsg(project, datagram);
+    }
+
+    /**
+     * registra un messaggio nello storico della chat di progetto, se presente.
+     * Il lock in lettura del progetto serializza l'aggiunta con la cancellazione del progetto,
+     * che rimuove lo storico con il lock in scrittura: un messaggio arrivato dopo la cancellazione
+     * non ricrea lo storico, che altrimenti verrebbe ereditato da un progetto omonimo.
+     * Non va invocato con il lock del progetto acquisito
+     *
+     * @param project progetto della chat
+     * @param datagram messaggio codificato
+     */
+    private void recordChatMsg(Project project, byte[] datagram) {
+        ChatLog current = chatLog;
+        if (current == null)
+            return;
+        StampedLock lock = project.getLock();
+        long stamp = lock.readLock();
+        try {
+            if (!project.isCancelled())
+                current.append(project.getName(), datagram);
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
+    /**
+     * cancella lo storico della chat del progetto cancellato, se presente.
+     * Va invocato con il lock in scrittura del progetto acquisito
+     *
+     * @param project progetto cancellato
+     */
+    private void removeChatLog(Project project) {
+        ChatLog current = chatLog;
+        if (current != null)
+            current.remove(project.getName());
+    }
+
 }
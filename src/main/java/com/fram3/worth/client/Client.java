@@ -1,7 +1,7 @@
 package com.fram3.worth.client;
 
-import com.fram3.worth.Project;
-import com.fram3.worth.User;
+import com.fram3.worth.Chat;
+import com.fram3.worth.Roster;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -10,7 +10,9 @@ import java.util.ArrayList;
 /**
  * Client è l'interfaccia remota usata dal server per effettuare le callbacks.
  * Tramite RMI sull'istanza del client esportata, il server notifica il client
- * in seguito a cambiamenti di stato riguardanti utenti e progetti
+ * in seguito a cambiamenti di stato riguardanti utenti e progetti.
+ * Le callbacks trasportano solo le variazioni e riportano un numero di versione progressivo:
+ * un client che trova un salto di versione richiede al server una risincronizzazione completa
  *
  * @author Francesco Amodeo
  * @version 1.0
@@ -18,22 +20,69 @@ import java.util.ArrayList;
 public interface Client extends Remote {
 
     /**
-     * notifica il client in seguito ad un cambiamento di stato degli utenti registrati.
+     * risincronizza la lista degli utenti registrati del client.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata degli utenti registrati
+     * callbacks, subito dopo la registrazione e quando il client ha perso delle variazioni
      *
-     * @param registeredUsers lista degli utenti registrati al servizio aggiornata
+     * @param roster utenti registrati al servizio con il loro stato
+     * @param version numero di versione della callback
      * @throws RemoteException -
      */
-    void notifyUserEvent(ArrayList<User> registeredUsers) throws RemoteException;
+    void notifyUserEvent(Roster roster, long version) throws RemoteException;
 
     /**
-     * notifica il client in seguito ad un cambiamento di stato dei progetti.
+     * risincronizza la lista delle chat dei progetti di cui l'utente del client è membro.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata dei progetti
+     * callbacks, subito dopo la registrazione e quando il client ha perso delle variazioni
      *
-     * @param createdProjects lista dei progetti creati nel servizio aggiornata
+     * @param chats chat dei progetti di cui l'utente è membro
+     * @param version numero di versione della callback
      * @throws RemoteException -
      */
-    void notifyChatsEvent(ArrayList<Project> createdProjects) throws RemoteException;
+    void notifyChatsEvent(ArrayList<Chat> chats, long version) throws RemoteException;
+
+    /**
+     * notifica il client che un nuovo utente si è registrato al servizio
+     *
+     * @param nickname nome dell'utente registrato
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    void userRegistered(String nickname, long version) throws RemoteException;
+
+    /**
+     * notifica il client che un utente è online
+     *
+     * @param nickname nome dell'utente
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    void userOnline(String nickname, long version) throws RemoteException;
+
+    /**
+     * notifica il client che un utente è offline
+     *
+     * @param nickname nome dell'utente
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    void userOffline(String nickname, long version) throws RemoteException;
+
+    /**
+     * notifica il client che il suo utente è diventato membro di un progetto
+     *
+     * @param chat chat del progetto
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    void projectJoined(Chat chat, long version) throws RemoteException;
+
+    /**
+     * notifica il client che un progetto di cui il suo utente è membro è stato cancellato
+     *
+     * @param projectName nome del progetto cancellato
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    void projectCancelled(String projectName, long version) throws RemoteException;
 }
@@ -1,19 +1,24 @@
 package com.fram3.worth.client;
 
+import com.fram3.worth.Card;
 import com.fram3.worth.Chat;
+import com.fram3.worth.Presence;
+import com.fram3.worth.Roster;
 import com.fram3.worth.User;
 import com.fram3.worth.Project;
 import com.fram3.worth.server.Server;
 import com.fram3.worth.Worth.RequestType;
 import com.fram3.worth.Worth.ResponseType;
-import com.fram3.worth.utils.ChatSniffer;
+import com.fram3.worth.utils.BufferPool;
+import com.fram3.worth.utils.ChatReceiver;
+import com.fram3.worth.utils.FrameDecoder;
 import com.fram3.worth.utils.Message;
+import com.fram3.worth.utils.MessageCodec;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -21,8 +26,8 @@ import java.rmi.registry.Registry;
 import java.rmi.server.RemoteObject;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-
-import com.google.gson.Gson;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * ClientImpl implementa l'interfaccia remota Client
@@ -34,6 +39,9 @@ import com.google.gson.Gson;
 public class ClientImpl extends RemoteObject implements Client {
     private static final long serialVersionUID = 4975715027275449432L;
 
+    /** responso fittizio accodato dal reader quando la connessione con il server si chiude */
+    private static final Message DISCONNECTED = new Message();
+
     /** porta servizio di registry */
     private final int registryPort;
 
@@ -46,22 +54,72 @@ public class ClientImpl extends RemoteObject implements Client {
     /** bool che indica se l'utente è loggato */
     private boolean loggedIn = false;
 
-    /** lista di riferimenti dei thread che eseguono il task ChatSniffer */
-    private final ArrayList<Thread> sniffers;
+    /** receiver dei messaggi delle chat dei progetti dell'utente, attivo solo mentre l'utente è loggato */
+    private ChatReceiver chatReceiver;
 
     /** socket channel client */
     private SocketChannel socketChannel;
 
+    /** decoder dei messaggi ricevuti sul socket channel */
+    private FrameDecoder decoder;
+
+    /** versione del protocollo proposta al server all'apertura della connessione */
+    private final int protocolVersion;
+
+    /** codifica dei messaggi negoziata con il server */
+    private MessageCodec codec;
+
+    /** identificativo dell'ultima richiesta inviata al server */
+    private long lastRequestId;
+
+    /** dimensione massima in bytes di un messaggio ricevuto dal server */
+    private final int maxFrameSize;
+
     /** stub client registrato per le callbacks */
     private Client stub;
 
+    /** numero di versione dell'ultima callback applicata */
+    private long callbackVersion;
+
+    /** true se è stata richiesta al server una risincronizzazione completa non ancora arrivata */
+    private boolean resyncPending;
+
+    /** true se il client chiede al server le callbacks come eventi sulla connessione tcp */
+    private final boolean pushRequested;
+
+    /** true se nella sessione corrente le callbacks arrivano come eventi sulla connessione tcp, false se tramite RMI */
+    private boolean pushCallbacks;
+
+    /** true se i messaggi di chat arrivano come eventi sulla connessione tcp invece che in multicast */
+    private final boolean relayedChats;
+
+    /** thread che legge responsi ed eventi dal socket channel, solo con le callbacks sulla connessione tcp */
+    private Thread reader;
+
+    /** responsi letti dal reader in attesa di essere consumati */
+    private final LinkedBlockingQueue<Message> replies;
+
+    /** lock delle scritture sul socket channel, su cui scrivono sia il client che il reader */
+    private final Object writeLock;
+
     /** definisce i metodi remoti del server */
     private Server server;
 
     public ClientImpl(){
         registryPort = 9876;
         serverPort = 6789;
-        sniffers = new ArrayList<>();
+        maxFrameSize = Integer.getInteger("worth.maxFrameSize", 16 * 1024 * 1024);
+        //con worth.protocolVersion=0 il client resta sulla codifica JSON, utile per il debug
+        protocolVersion = Integer.getInteger("worth.protocolVersion", MessageCodec.LATEST_VERSION);
+        //con worth.callbackTransport=rmi il client esporta il proprio stub e riceve le callbacks tramite RMI
+        //se il server rifiuta le callbacks sulla connessione il client ripiega su RMI
+        pushRequested = !"rmi".equals(System.getProperty("worth.callbackTransport", "push"));
+        //con worth.chatTransport=tcp il client non si unisce ai gruppi multicast e riceve i messaggi di chat
+        //dal server come eventi, insieme alle callbacks (richiede le callbacks sulla connessione,
+        //altrimenti il client ripiega sui gruppi multicast)
+        relayedChats = "tcp".equals(System.getProperty("worth.chatTransport", "multicast"));
+        replies = new LinkedBlockingQueue<>();
+        writeLock = new Object();
     }
 
     /**
@@ -73,43 +131,171 @@ public class ClientImpl extends RemoteObject implements Client {
     }
 
     /**
-     * notifica il client in seguito ad un cambiamento di stato degli utenti registrati.
+     * risincronizza la lista degli utenti registrati del client.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata degli utenti registrati
+     * callbacks, subito dopo la registrazione e quando il client ha perso delle variazioni
      *
-     * @param registeredUsers lista degli utenti registrati al servizio aggiornata
+     * @param roster utenti registrati al servizio con il loro stato
+     * @param version numero di versione della callback
      * @throws RemoteException -
      */
     @Override
-    public void notifyUserEvent(ArrayList<User> registeredUsers) throws RemoteException {
+    public void notifyUserEvent(Roster roster, long version) throws RemoteException {
         synchronized (user.getUsers()) {
             //setto la lista locale dell'user con la lista aggiornata tramite callback
-            user.setUsersList(registeredUsers);
+            user.setUsersList(roster.toPresences());
         }
+        resynced(version);
     }
 
     /**
-     * notifica il client in seguito ad un cambiamento di stato dei progetti.
+     * risincronizza la lista delle chat dei progetti di cui l'utente del client è membro.
      * Il server invoca il metodo sullo stub del client, ricevuto nel momento della registrazione alle
-     * callbacks, passando come parametro la lista aggiornata dei progetti
+     * callbacks, subito dopo la registrazione e quando il client ha perso delle variazioni
      *
-     * @param createdProjects lista dei progetti creati nel servizio aggiornata
+     * @param chats chat dei progetti di cui l'utente è membro
+     * @param version numero di versione della callback
      * @throws RemoteException -
      */
     @Override
-    public void notifyChatsEvent(ArrayList<Project> createdProjects) throws RemoteException {
-        //costruisco la lista di chat che interessano l'user
-        ArrayList<Chat> userChats = new ArrayList<>();
-        for (Project project : createdProjects) {
-            if (project.getMembers().contains(user.getNickname()))
-                userChats.add(new Chat(project.getChatAddress(), project.getChatPort(), project.getName()));
-        }
+    public void notifyChatsEvent(ArrayList<Chat> chats, long version) throws RemoteException {
         synchronized (user.getChats()) {
             //setto la lista locale delle chat dell'user con la lista aggiornata tramite callback
-            user.setChats(userChats);
+            user.setChats(chats);
+        }
+        resynced(version);
+    }
+
+    /**
+     * aggiunge un nuovo utente registrato alla lista locale dell'utente
+     *
+     * @param nickname nome dell'utente registrato
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    @Override
+    public void userRegistered(String nickname, long version) throws RemoteException {
+        if (!inSequence(version))
+            return;
+        synchronized (user.getUsers()) {
+            user.addUser(nickname);
+        }
+    }
+
+    /**
+     * segna l'utente come online nella lista locale dell'utente
+     *
+     * @param nickname nome dell'utente
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    @Override
+    public void userOnline(String nickname, long version) throws RemoteException {
+        if (!inSequence(version))
+            return;
+        synchronized (user.getUsers()) {
+            user.setUserOnline(nickname, true);
+        }
+    }
+
+    /**
+     * segna l'utente come offline nella lista locale dell'utente
+     *
+     * @param nickname nome dell'utente
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    @Override
+    public void userOffline(String nickname, long version) throws RemoteException {
+        if (!inSequence(version))
+            return;
+        synchronized (user.getUsers()) {
+            user.setUserOnline(nickname, false);
+        }
+    }
+
+    /**
+     * aggiunge la chat del progetto alla lista locale dell'utente e inizia a riceverne i messaggi
+     *
+     * @param chat chat del progetto
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    @Override
+    public void projectJoined(Chat chat, long version) throws RemoteException {
+        if (!inSequence(version))
+            return;
+        synchronized (user.getChats()) {
+            user.addChat(chat);
+        }
+    }
+
+    /**
+     * rimuove la chat del progetto cancellato dalla lista locale dell'utente e smette di riceverne i messaggi
+     *
+     * @param projectName nome del progetto cancellato
+     * @param version numero di versione della callback
+     * @throws RemoteException -
+     */
+    @Override
+    public void projectCancelled(String projectName, long version) throws RemoteException {
+        if (!inSequence(version))
+            return;
+        synchronized (user.getChats()) {
+            user.removeChat(projectName);
         }
     }
 
+    /**
+     * controlla che la variazione ricevuta sia la successiva all'ultima applicata.
+     * Se il client ha perso delle variazioni la variazione viene scartata e viene richiesta
+     * al server una risincronizzazione completa, una sola volta fino al suo arrivo
+     *
+     * @param version numero di versione della callback
+     * @return true se la variazione va applicata, false altrimenti
+     * @throws RemoteException errore nella richiesta di risincronizzazione
+     */
+    private synchronized boolean inSequence(long version) throws RemoteException {
+        if (!resyncPending && version == callbackVersion + 1) {
+            callbackVersion = version;
+            return true;
+        }
+        if (!resyncPending) {
+            resyncPending = true;
+            requestResync();
+        }
+        return false;
+    }
+
+    /**
+     * richiede al server una risincronizzazione completa delle callbacks, tramite RMI oppure
+     * con una richiesta sulla connessione tcp di cui il reader scarta il responso
+     *
+     * @throws RemoteException errore nell'invocazione remota
+     */
+    private void requestResync() throws RemoteException {
+        if (!pushCallbacks) {
+            server.resyncCallbacks(stub);
+            return;
+        }
+        try {
+            //senza identificativo il reader riconosce e scarta il responso
+            writeToServer(new Message(RequestType.RESYNC));
+        } catch (IOException e) {
+            //la connessione è caduta, il reader se ne accorgerà alla prossima lettura
+        }
+    }
+
+    /**
+     * registra l'arrivo di una risincronizzazione completa
+     *
+     * @param version numero di versione della callback
+     */
+    private synchronized void resynced(long version) {
+        callbackVersion = version;
+        resyncPending = false;
+    }
+
     /**
      * avvia il client.
      * Il client recupera il riferimento dello stub del server dal servizio di registry
@@ -142,6 +328,7 @@ public class ClientImpl extends RemoteObject implements Client {
             boolean exit = false;
             while (!exit) {
                 socketChannel = SocketChannel.open();
+                decoder = new FrameDecoder(BufferPool.shared(), maxFrameSize);
                 //l'user sarà null fin quando l'utente non si è loggato
                 while (!loggedIn && !exit)
                     //prima fase (pre-login)
@@ -159,11 +346,14 @@ public class ClientImpl extends RemoteObject implements Client {
             try { //quando il server viene chiuso prima del client viene lanciata una IOException
                   //se quest'ultimo era loggato prima di chiudere il client
                   //chiudo il canale e interrompo il thread dell'oggetto esportato
-                  //e quelli degli sniffer delle chat dell'utente
+                  //e quello del receiver delle chat dell'utente
                 if(loggedIn) {
-                    UnicastRemoteObject.unexportObject(this, false);
+                    if (stub != null)
+                        UnicastRemoteObject.unexportObject(this, false);
+                    stub = null;
                     socketChannel.close();
-                    interruptAllSniffers();
+                    stopReader();
+                    leaveAllChats();
                     user = null;
                     loggedIn = false;
                 }
@@ -203,8 +393,10 @@ public class ClientImpl extends RemoteObject implements Client {
      * @return stringa contentente il responso per l'operazione richiesta
      */
     public String login(String nickname, String password) throws IOException {
-        if (!socketChannel.isConnected())
+        if (!socketChannel.isConnected()) {
             socketChannel.connect(new InetSocketAddress("localhost", serverPort));
+            negotiateProtocol();
+        }
 
         Message message = new Message(RequestType.LOGIN);
         message.setNickname(nickname);
@@ -214,15 +406,40 @@ public class ClientImpl extends RemoteObject implements Client {
         Message receivedMsg = receiveFromServer();
         switch (receivedMsg.getResponse()) {
             case OK :
-                user = receivedMsg.getUser();
-                //se l'user != null l'operazione di login è andata buon fine
-                //e il server ci ha mandato il riferimento all'user
-                if (user != null) {
+                //se il roster != null l'operazione di login è andata buon fine
+                //e il server ci ha mandato i nomi e lo stato degli utenti registrati
+                if (receivedMsg.getRoster() != null) {
+                    user = new User(nickname, null);
+                    user.setOnline(true);
+                    user.setUsersList(receivedMsg.getRoster().toPresences());
                     loggedIn = true;
                     user.setClient(this);
-                    //esportazione stub client da passare al server per le callbacks
-                    stub = (Client) UnicastRemoteObject.exportObject(this, 0);
-                    server.registerForCallback(stub);
+                    resynced(0);
+                    //le chat dei progetti arrivano con le callbacks e vengono aggiunte al receiver
+                    if (!relayedChats) {
+                        chatReceiver = new ChatReceiver();
+                        chatReceiver.start();
+                    }
+                    pushCallbacks = false;
+                    if (pushRequested) {
+                        //da qui in poi i messaggi vengono letti dal reader, che separa responsi ed eventi
+                        startReader();
+                        sendToServer(new Message(RequestType.SUBSCRIBE));
+                        pushCallbacks = receiveFromServer().getResponse() == ResponseType.OK;
+                        if (!pushCallbacks)
+                            System.err.println("< Il server non invia le callbacks sulla connessione, uso RMI");
+                    }
+                    //senza callbacks sulla connessione i messaggi di chat non possono essere inoltrati dal server
+                    if (relayedChats && !pushCallbacks) {
+                        System.err.println("< Chat inoltrate non disponibili, uso i gruppi multicast");
+                        chatReceiver = new ChatReceiver();
+                        chatReceiver.start();
+                    }
+                    if (!pushCallbacks) {
+                        //esportazione stub client da passare al server per le callbacks
+                        stub = (Client) UnicastRemoteObject.exportObject(this, 0);
+                        server.registerForCallback(stub, nickname);
+                    }
                     return "ok";
                 }
                 break;
@@ -239,6 +456,24 @@ public class ClientImpl extends RemoteObject implements Client {
     }
 
 
+    /**
+     * negozia con il server la versione del protocollo da usare sulla connessione appena aperta.
+     * La richiesta HANDSHAKE e il suo responso viaggiano con la codifica JSON,
+     * i messaggi successivi con la codifica della versione scelta dal server
+     *
+     * @throws IOException errore durante la comunicazione con il server
+     */
+    private void negotiateProtocol() throws IOException {
+        codec = MessageCodec.forVersion(MessageCodec.JSON_VERSION);
+        if (protocolVersion == MessageCodec.JSON_VERSION)
+            return;
+        Message message = new Message(RequestType.HANDSHAKE);
+        message.setProtocolVersion(protocolVersion);
+        sendToServer(message);
+        Message receivedMsg = receiveFromServer();
+        codec = MessageCodec.forVersion(receivedMsg.getProtocolVersion());
+    }
+
     /**
      * richiede il logout dell'utente
      *
@@ -258,11 +493,16 @@ public class ClientImpl extends RemoteObject implements Client {
             switch (receivedMsg.getResponse()) {
                 case OK :
                     loggedIn = false;
-                    server.unregisterForCallback(stub);
-                    UnicastRemoteObject.unexportObject(this, false);
-                    interruptAllSniffers();
-                    user = null;
+                    if (stub != null) {
+                        server.unregisterForCallback(stub);
+                        UnicastRemoteObject.unexportObject(this, false);
+                        stub = null;
+                    }
+                    leaveAllChats();
+                    //il reader termina alla chiusura del canale, dopo aver gestito gli ultimi eventi
                     socketChannel.close();
+                    stopReader();
+                    user = null;
                     return "ok";
                     
                 case UNKNOWN_ERROR : 
@@ -281,7 +521,7 @@ public class ClientImpl extends RemoteObject implements Client {
      * @return stringa contenente il responso per l'operazione richiesta
      */
     public String listUsers() {
-        ArrayList<User> users = user.getUsers();
+        ArrayList<Presence> users = user.getUsers();
         if (!users.isEmpty()) {
             String msg = users.size() == 1 ? 
                 "Attualmente c'è "+ users.size() +" utente registrato a WORTH":
@@ -299,7 +539,7 @@ public class ClientImpl extends RemoteObject implements Client {
      * @return stringa contenente il responso per l'operazione richiesta
      */
     public String listOnlineUsers() {
-        ArrayList<User> onlineUsers = user.getOnlineUsers();
+        ArrayList<Presence> onlineUsers = user.getOnlineUsers();
         if (!onlineUsers.isEmpty()) {
             String msg = onlineUsers.size() == 1 ? 
                 "In questo momento c'è "+ onlineUsers.size() +" utente online" :
@@ -364,6 +604,9 @@ public class ClientImpl extends RemoteObject implements Client {
             case PROJECT_EXISTS : 
                 return "Esiste già un progetto con questo nome";
                 
+            case INVALID_NAME : 
+                return "Nome del progetto non valido";
+                
             default : return "Errore: errore nella comunicazione con il server";
         }
     }
@@ -394,6 +637,60 @@ public class ClientImpl extends RemoteObject implements Client {
     
     }
 
+    /**
+     * richiede l'aggiunta di più card al progetto inviando tutte le richieste senza attendere
+     * i singoli responsi, in modo da non pagare un round trip per ogni card
+     *
+     * @param projectName nome progetto al quale bisogna aggiungere le card
+     * @param cards coppie nome card e descrizione da aggiungere
+     * @return stringa contentente il responso per l'operazione richiesta
+     */
+    public String addCards(String projectName, ArrayList<String[]> cards) throws IOException {
+        ArrayList<Message> requests = new ArrayList<>();
+        for (String[] card : cards) {
+            Message message = new Message(RequestType.ADD_CARD);
+            message.setProjectName(projectName);
+            message.setCardName(card[0]);
+            message.setDescription(card[1]);
+            message.setNickname(user.getNickname());
+            requests.add(message);
+        }
+        ArrayList<Message> replies = sendPipelined(requests);
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < replies.size(); i++) {
+            switch (replies.get(i).getResponse()) {
+                case OK : break;
+                case NONEXISTENT_PROJECT : return "Non sei membro di un progetto di nome " + projectName;
+                case CARD_EXISTS : errors.append("La card ").append(cards.get(i)[0]).append(" esiste già\n"); break;
+                case INVALID_NAME : errors.append("Nome della card ").append(cards.get(i)[0]).append(" non valido\n"); break;
+                default : return "Errore: errore nella comunicazione con il server";
+            }
+        }
+        return errors.length() == 0 ? "ok" : errors.toString().trim();
+    }
+
+    /**
+     * richiede l'esecuzione di una sequenza di operazioni sul progetto con una sola richiesta BATCH.
+     * Il server esegue le operazioni in ordine e risponde con il responso di ognuna
+     *
+     * @param projectName nome progetto su cui eseguire le operazioni
+     * @param operations operazioni da eseguire (ADD_CARD, MOVE_CARD, ADD_MEMBER)
+     * @return responsi delle operazioni nello stesso ordine, oppure null se l'utente non è membro del progetto
+     * @throws IOException errore durante la comunicazione con il server
+     */
+    public ArrayList<ResponseType> batch(String projectName, ArrayList<Message> operations) throws IOException {
+        Message message = new Message(RequestType.BATCH);
+        message.setProjectName(projectName);
+        message.setNickname(user.getNickname());
+        message.setOperations(operations);
+        sendToServer(message);
+
+        Message receivedMsg = receiveFromServer();
+        if (receivedMsg.getResponse() != ResponseType.OK)
+            return null;
+        return receivedMsg.getResponses();
+    }
+
     /**
      * richiede la lista dei membri del progetto e la stampa usando
      * printFormattedUsers() di ClientViewController
@@ -412,9 +709,9 @@ public class ClientImpl extends RemoteObject implements Client {
         switch (receivedMsg.getResponse()) {
             case OK :
                 if (!receivedMsg.getMembers().isEmpty()) {
-                    ArrayList<User> members = new ArrayList<>();
+                    ArrayList<Presence> members = new ArrayList<>();
                     for (String memberName : receivedMsg.getMembers()) {
-                        int memberIndex = user.getUsers().indexOf(new User(memberName, null));
+                        int memberIndex = user.getUsers().indexOf(new Presence(memberName, false));
                         members.add(user.getUsers().get(memberIndex));
                     } 
                     String msg = receivedMsg.getMembers().size() == 1 ? 
@@ -516,6 +813,7 @@ public class ClientImpl extends RemoteObject implements Client {
             case OK : return "ok";
             case NONEXISTENT_PROJECT : return "Non sei membro di un progetto di nome " + projectName;
             case CARD_EXISTS : return "La card " + cardName + " esiste già";
+            case INVALID_NAME : return "Nome della card " + cardName + " non valido";
             default : return "Errore: errore nella comunicazione con il server";
         }
     
@@ -558,7 +856,7 @@ public class ClientImpl extends RemoteObject implements Client {
     }
 
     /**
-     * richiede la card e ne stampa lo storico degli spostamenti utilizzando
+     * richiede lo storico degli spostamenti della card e lo stampa utilizzando
      * il metodo printCardHistory() di ClientViewController
      * @param projectName nome progetto di cui fa parte la card
      * @param cardName nome card
@@ -567,8 +865,7 @@ public class ClientImpl extends RemoteObject implements Client {
      */
     public String getCardHistory(String projectName, String cardName) throws IOException {
 
-        //chiedo al server la card e da questa mi prenderò la history
-        Message message = new Message(RequestType.SHOW_CARD);
+        Message message = new Message(RequestType.GET_CARD_HISTORY);
         message.setProjectName(projectName);
         message.setNickname(user.getNickname());
         message.setCardName(cardName);
@@ -577,7 +874,7 @@ public class ClientImpl extends RemoteObject implements Client {
         Message receivedMsg = receiveFromServer();
         switch (receivedMsg.getResponse()) {
             case OK : 
-                ClientViewController.printCardHistory(receivedMsg.getCard());
+                ClientViewController.printCardHistory(receivedMsg.getHistory());
                 return "ok";
             case NONEXISTENT_PROJECT :
                 return "Non sei membro di un progetto di nome " + projectName;
@@ -589,17 +886,32 @@ public class ClientImpl extends RemoteObject implements Client {
     }
 
     /**
-     * invia un messaggio sulla chat di progetto
+     * invia un messaggio sulla chat di progetto tramite il server,
+     * che lo registra nello storico della chat prima di inviarlo ai membri
      * @param projectName nome progetto relativo alla chat su cui inviare il messaggio
      * @param message messaggio da inviare
      * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
      */
-    public String sendChatMsg(String projectName, String message) {
+    public String sendChatMsg(String projectName, String message) throws IOException {
         if (!user.getChats().contains(new Chat(projectName))) {
             return "Non sei membro di un progetto di nome " + projectName;
         }
-        user.sendChatMsg(projectName, message);
-        return "ok";
+        Message request = new Message(RequestType.SEND_CHAT);
+        request.setProjectName(projectName);
+        request.setNickname(user.getNickname());
+        request.setText(message);
+        sendToServer(request);
+
+        Message receivedMsg = receiveFromServer();
+        switch (receivedMsg.getResponse()) {
+            case OK :
+                return "ok";
+            case NONEXISTENT_PROJECT :
+                return "Non sei membro di un progetto di nome " + projectName;
+            default :
+                return "Errore: errore nella comunicazione con il server";
+        }
     }
 
     /**
@@ -617,6 +929,45 @@ public class ClientImpl extends RemoteObject implements Client {
         return "ok";
     }
 
+    /**
+     * richiede al server una pagina dello storico della chat di progetto e la stampa utilizzando
+     * il metodo printChatLog() di ClientViewController. Senza offset la lettura prosegue
+     * da dove si era fermata la precedente, così dopo una riconnessione si recuperano
+     * solo i messaggi successivi all'ultimo letto
+     *
+     * @param projectName nome progetto relativo alla chat da leggere
+     * @param offset offset del primo messaggio da leggere, -1 per proseguire dall'ultima lettura
+     * @return stringa contenente il responso per l'operazione richiesta
+     * @throws IOException -
+     */
+    public String readChatLog(String projectName, long offset) throws IOException {
+        int chatIndex = user.getChats().indexOf(new Chat(projectName));
+        if (chatIndex == -1) {
+            return "Non sei membro di un progetto di nome " + projectName;
+        }
+        Chat chat = user.getChats().get(chatIndex);
+        Message message = new Message(RequestType.READ_CHAT);
+        message.setProjectName(projectName);
+        message.setNickname(user.getNickname());
+        message.setOffset(offset >= 0 ? offset : chat.getLogOffset());
+        sendToServer(message);
+
+        Message receivedMsg = receiveFromServer();
+        switch (receivedMsg.getResponse()) {
+            case OK :
+                ArrayList<String> messages = receivedMsg.getChatMessages() != null
+                        ? receivedMsg.getChatMessages() : new ArrayList<>();
+                chat.setLogOffset(receivedMsg.getOffset());
+                ClientViewController.printChatLog(messages, receivedMsg.getOffset() - messages.size(),
+                        receivedMsg.getOffset());
+                return "ok";
+            case NONEXISTENT_PROJECT :
+                return "Non sei membro di un progetto di nome " + projectName;
+            default :
+                return "Errore: errore nella comunicazione con il server";
+        }
+    }
+
     /**
      * richiede la cancellazione del progetto
      *
@@ -644,100 +995,226 @@ public class ClientImpl extends RemoteObject implements Client {
     }
 
     /**
-     * invia al server un messaggio per una richiesta, facendo una gathering write sul
-     * socket channel su cui è stata stabilita la connessione. Scrive due buffer, il primo
-     * per indicare la dimensione del messaggio inviato, il secondo per il messaggio vero e proprio
+     * invia al server una sequenza di richieste senza attendere i singoli responsi
+     * e poi riceve tutti i responsi, associandoli alle richieste tramite il loro identificativo.
+     * Il server elabora le richieste di una connessione nell'ordine in cui le ha ricevute
+     *
+     * @param requests richieste da inviare
+     * @return responsi nello stesso ordine delle richieste
+     * @throws IOException errore durante la comunicazione con il server
+     */
+    public ArrayList<Message> sendPipelined(ArrayList<Message> requests) throws IOException {
+        long firstRequestId = lastRequestId + 1;
+        for (Message request : requests)
+            sendToServer(request);
+        Message[] replies = new Message[requests.size()];
+        for (int i = 0; i < replies.length; i++) {
+            Message reply = receiveFromServer();
+            int index = (int) (reply.getRequestId() - firstRequestId);
+            if (index < 0 || index >= replies.length)
+                throw new IOException("Errore: responso per una richiesta sconosciuta " + reply.getRequestId());
+            replies[index] = reply;
+        }
+        ArrayList<Message> orderedReplies = new ArrayList<>();
+        Collections.addAll(orderedReplies, replies);
+        return orderedReplies;
+    }
+
+    /**
+     * invia al server un messaggio per una richiesta, scrivendo sul socket channel su cui è
+     * stata stabilita la connessione la dimensione del messaggio seguita dal messaggio vero e proprio,
+     * serializzato con la codifica negoziata
      *
      * @param message messaggio da inviare
      * @throws IOException errore durante la scrittura sul canale
      */
     private void sendToServer(Message message) throws IOException {
-        Gson gson = new Gson();
-        String str = gson.toJson(message);
-        byte[] byteArray = str.getBytes(StandardCharsets.UTF_8);
-        //mando il messaggio al server come array di buffer
-        //in un metto la dimensione del messaggio
-        //e nell'altro il messaggio stesso
+        message.setRequestId(++lastRequestId);
+        writeToServer(message);
+    }
+
+    /**
+     * scrive il messaggio sul socket channel così com'è. Le scritture del client e
+     * del reader sono serializzate, così i messaggi non si mescolano sul canale
+     *
+     * @param message messaggio da inviare
+     * @throws IOException errore durante la scrittura sul canale
+     */
+    private void writeToServer(Message message) throws IOException {
+        //il buffer contiene la dimensione del messaggio seguita dal messaggio stesso
         //in questo modo chi lo riceve alloca i buffer solo con lo spazio necessario
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        sizeBuffer.putInt(byteArray.length);
-        sizeBuffer.flip();
-        ByteBuffer dataBuffer = ByteBuffer.wrap(byteArray);
-        //gathering write
-        socketChannel.write(new ByteBuffer[] { sizeBuffer, dataBuffer });
+        ByteBuffer buffer = codec.encode(message, BufferPool.shared());
+        try {
+            synchronized (writeLock) {
+                while (buffer.hasRemaining())
+                    socketChannel.write(buffer);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
     }
 
     /**
-     * riceve dal server un messaggio, facendo due read sul socket channel su
-     * cui è stata stabilita la connessione. Legge due buffer, il primo
-     * conterrà la dimensione del messaggio inviato, utile per allocare il secondo
-     * buffer della dimensione esatta per contenere il messaggio vero e proprio
+     * riceve dal server il responso della richiesta in corso. Se il reader è attivo
+     * lo prende dalla coda dei responsi letti, altrimenti lo legge direttamente dal canale
      *
      * @return responso in seguito ad una richiesta al server
-     * @throws IOException errore nella fase di lettura sul canale
+     * @throws IOException errore nella fase di lettura sul canale oppure server disconnesso
      */
     private Message receiveFromServer() throws IOException {
-        //ricevo dal server il messaggio di risposta
-        //so esattamente di che dimensione allocare i buffer per
-        //per le due read dal canale
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        if (socketChannel.read(sizeBuffer) == -1)
+        if (reader == null)
+            return readFromServer();
+        Message reply;
+        try {
+            reply = replies.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Errore: attesa del responso interrotta", e);
+        }
+        if (reply == DISCONNECTED) {
+            //lo rimetto in coda per le eventuali letture successive
+            replies.add(DISCONNECTED);
             throw new IOException("Errore: server disconnesso");
+        }
+        return reply;
+    }
 
-        sizeBuffer.flip();
-        int size = sizeBuffer.getInt();
-        ByteBuffer dataBuffer = ByteBuffer.allocate(size);
-        socketChannel.read(dataBuffer);
-        dataBuffer.flip();
-        StringBuilder stringBuilder = new StringBuilder();
-        while (dataBuffer.hasRemaining()) {
-            stringBuilder.append(StandardCharsets.UTF_8.decode(dataBuffer).toString());
+    /**
+     * avvia il reader, che da questo momento è l'unico a leggere dal socket channel
+     */
+    private void startReader() {
+        replies.clear();
+        reader = new Thread(this::readMessages, "Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * attende la terminazione del reader, da invocare dopo aver chiuso il socket channel
+     */
+    private void stopReader() {
+        if (reader == null)
+            return;
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        //deserializzo il messaggio ricevuto
-        String received = stringBuilder.toString();
-        Gson gson = new Gson();
-        return gson.fromJson(received, Message.class);
+        reader = null;
     }
 
     /**
-     * avvia un thread che esegue il task ChatSniffer e lo aggiunge alla lista degli sniffers
+     * ciclo del reader: legge i messaggi dal socket channel, applica gli eventi come callbacks
+     * e accoda i responsi per il client. Alla chiusura della connessione accoda DISCONNECTED
+     */
+    private void readMessages() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                Message message = readFromServer();
+                if (message.getEvent() != null)
+                    handleEvent(message);
+                else if (message.getRequestId() != 0)
+                    replies.add(message);
+                //i responsi senza identificativo sono delle risincronizzazioni richieste dal reader stesso
+            }
+        } catch (IOException e) {
+            replies.add(DISCONNECTED);
+        }
+    }
+
+    /**
+     * applica un evento ricevuto sulla connessione tcp invocando la callback corrispondente
+     *
+     * @param event evento inviato dal server
+     * @throws RemoteException errore nella richiesta di risincronizzazione
+     */
+    private void handleEvent(Message event) throws RemoteException {
+        long version = event.getVersion();
+        switch (event.getEvent()) {
+            case USERS : notifyUserEvent(event.getRoster(), version); break;
+            case CHATS : notifyChatsEvent(event.getChats(), version); break;
+            case USER_REGISTERED : userRegistered(event.getNickname(), version); break;
+            case USER_ONLINE : userOnline(event.getNickname(), version); break;
+            case USER_OFFLINE : userOffline(event.getNickname(), version); break;
+            case PROJECT_JOINED : projectJoined(event.getChats().get(0), version); break;
+            case PROJECT_CANCELLED : projectCancelled(event.getProjectName(), version); break;
+            case CHAT_MESSAGE : receiveChatMsg(event.getProjectName(), event.getText()); break;
+        }
+    }
+
+    /**
+     * memorizza un messaggio di chat inoltrato dal server nella chat del progetto.
+     * Invocato solo dal reader, l'unico produttore dei messaggi delle chat quando il receiver multicast
+     * non è attivo. Un messaggio di un progetto di cui il client non ha ancora ricevuto la chat viene
+     * scartato, resta comunque disponibile nello storico della chat
+     *
+     * @param projectName nome progetto della chat
+     * @param text messaggio ricevuto
+     */
+    private void receiveChatMsg(String projectName, String text) {
+        synchronized (user.getChats()) {
+            int chatIndex = user.getChats().indexOf(new Chat(projectName));
+            if (chatIndex != -1)
+                user.getChats().get(chatIndex).getMessages().offer(text);
+        }
+    }
+
+    /**
+     * legge dal server un messaggio tramite il decoder della connessione, che legge
+     * dal socket channel prima la dimensione del messaggio e poi il messaggio vero e proprio,
+     * continuando a leggere finchè entrambi non sono arrivati per intero
+     *
+     * @return messaggio ricevuto dal server
+     * @throws IOException errore nella fase di lettura sul canale
+     */
+    private Message readFromServer() throws IOException {
+        ByteBuffer dataBuffer;
+        try {
+            dataBuffer = decoder.readFully(socketChannel);
+        } catch (IOException e) {
+            throw new IOException("Errore: server disconnesso", e);
+        }
+        try {
+            //deserializzo il messaggio ricevuto
+            return codec.decode(dataBuffer);
+        } finally {
+            BufferPool.shared().release(dataBuffer);
+        }
+    }
+
+    /**
+     * aggiunge la chat al receiver, che si unisce al suo gruppo multicast.
      * Utilizzato nel momento in cui l'user viene aggiunto a un nuovo progetto e quindi vuole
      * iniziare a memorizzare i messaggi inviati su quella chat
      *
-     * @param chat chat da sniffare
+     * @param chat chat da ricevere
      */
-    public void startSniffer(Chat chat) {
-        Thread snifferThread = new Thread(new ChatSniffer(chat, user));
-        snifferThread.setName(chat.getProject());
-        sniffers.add(snifferThread);
-        snifferThread.start();
+    public void joinChat(Chat chat) {
+        if (chatReceiver != null)
+            chatReceiver.join(chat);
     }
 
     /**
-     * interrompe un thread che esegue il task ChatSniffer e lo rimuove alla lista degli sniffers
+     * rimuove la chat dal receiver, che lascia il suo gruppo multicast.
      * Utilizzato nel momento in cui viene cancellato un progetto dell'user, quindi non vorrà
      * più ricevere e memorizzare i messaggi inviati su quella chat
-     * @param chat chat di cui interrompere lo sniffer
+     * @param chat chat da non ricevere più
      */
-    public void interruptSniffer(Chat chat) {
-        for (Thread thread : sniffers) {
-            if (thread.getName().equals(chat.getProject())) {
-                thread.interrupt();
-                sniffers.remove(thread);
-                break;
-            }
-        }
+    public void leaveChat(Chat chat) {
+        if (chatReceiver != null)
+            chatReceiver.leave(chat);
     }
 
     /**
-     * interrompe tutti gli sniffer, cioè smette di ricevere tutti i messaggi dalle chat di progetto
+     * chiude il receiver, cioè smette di ricevere tutti i messaggi dalle chat di progetto
      * di cui fa parte l'utente. Utilizzato nel momento quando si deve chiudere il client, cioè in seguito
      * ad un'operazione di logout oppure dopo la disconnessione dal server
      */
-    private void interruptAllSniffers() {
-        for (Thread thread : sniffers) {
-            thread.interrupt();
-        }
+    private void leaveAllChats() {
+        if (chatReceiver != null)
+            chatReceiver.close();
+        chatReceiver = null;
     }
 
     /**
@@ -748,12 +1225,8 @@ public class ClientImpl extends RemoteObject implements Client {
      */
     private int countIncompletedCards(ArrayList<Project> projects){
         int cardsCount = 0;
-        for (Project project : projects) {
-            if (project.getDone().isEmpty())
-                cardsCount += project.getCards().size();
-            else
-                cardsCount += project.getCards().size() - project.getDone().size();
-        }
+        for (Project project : projects)
+            cardsCount += project.getCardsCount() - project.getCount(Card.Status.DONE);
         return cardsCount;
     }
 }
\ No newline at end of file
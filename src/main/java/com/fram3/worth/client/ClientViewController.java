@@ -4,7 +4,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 
-import com.fram3.worth.User;
+import com.fram3.worth.Presence;
 import com.fram3.worth.Card;
 import com.fram3.worth.Project;
 
@@ -321,6 +321,30 @@ class ClientViewController {
                 if (!response.equals("ok"))
                     System.out.println("< " + response);
                 break;
+            case "read_chat" :
+                if (words.length != 2 && words.length != 3) {
+                    System.out.println("< Il comando read_chat deve avere come argomenti il nome del progetto "
+                            + "ed eventualmente l'offset del primo messaggio");
+                    System.out.println("< Digita \"help\" per rivedere la lista dei comandi disponibili");
+                    break;
+                }
+                projectName = words[1];
+                long offset = -1;
+                if (words.length == 3) {
+                    try {
+                        offset = Long.parseLong(words[2]);
+                    } catch (NumberFormatException e) {
+                        offset = -2;
+                    }
+                }
+                if (offset < -1) {
+                    System.out.println("< L'offset deve essere un numero non negativo");
+                    break;
+                }
+                response = worth.readChatLog(projectName, offset);
+                if (!response.equals("ok"))
+                    System.out.println("< " + response);
+                break;
             case "cancel_project" :
                 if (words.length != 2) {
                     System.out.println("< Il comando cancel_project deve avere un argomento");
@@ -366,9 +390,9 @@ class ClientViewController {
             int distance = maxNameLength - project.getName().length();
             indent = indent.repeat(distance);
             System.out.println("    Project: " + project.getName() + indent + "     Members: "+ project.getMembers().size() + 
-                "     Cards: "+ project.getCards().size() +
-                "     TODO: " + project.getToDo().size()+ "     INPROGRESS: " + project.getInProgress().size() + 
-                "     TOBEREVISED: "+ project.getToBeRevised().size() + "     DONE : " + project.getDone().size());
+                "     Cards: "+ project.getCardsCount() +
+                "     TODO: " + project.getCount(Card.Status.TODO) + "     INPROGRESS: " + project.getCount(Card.Status.INPROGRESS) + 
+                "     TOBEREVISED: "+ project.getCount(Card.Status.TOBEREVISED) + "     DONE : " + project.getCount(Card.Status.DONE));
         }
     }
 
@@ -377,16 +401,16 @@ class ClientViewController {
      * @param users lista di utenti da stampare
      * @param message messaggio da includere nella stampa
      */
-    static void printFormattedUsers(ArrayList<User> users, String message) {
+    static void printFormattedUsers(ArrayList<Presence> users, String message) {
         
         int maxNameLength = 0;
-        for (User user : users) {
+        for (Presence user : users) {
             if(user.getNickname().length() > maxNameLength)
                 maxNameLength = user.getNickname().length();
         }
 
         System.out.println("< " + message + ":");
-        for (User member : users) {
+        for (Presence member : users) {
             String indent = " ";
             int distance = maxNameLength - member.getNickname().length();
             indent = indent.repeat(distance);
@@ -412,7 +436,7 @@ class ClientViewController {
             String indent = " ";
             int distance = maxNameLength - card.getName().length();
             indent = indent.repeat(distance);
-            System.out.println("    Card: " + card.getName() + " " + indent + "    Status: " + card.getLocation());
+            System.out.println("    Card: " + card.getName() + " " + indent + "    Status: " + card.getStatus());
         }
     }
 
@@ -427,11 +451,26 @@ class ClientViewController {
 
     /**
      * stampa lo storico di una card
-     * @param card card di cui stampare lo storico
+     * @param history storico testuale della card
      */
-    static void printCardHistory(Card card){
+    static void printCardHistory(String history){
         System.out.println("< Sequenza spostamenti card:");
-        System.out.println("    " + card.getHistory());
+        System.out.println("    " + history);
+    }
+
+    /**
+     * stampa una pagina dello storico della chat
+     * @param messages messaggi letti
+     * @param first offset del primo messaggio letto
+     * @param next offset da cui continuare la lettura
+     */
+    static void printChatLog(ArrayList<String> messages, long first, long next){
+        for (int i = 0; i < messages.size(); i++)
+            System.out.println("< [" + (first + i) + "] " + messages.get(i));
+        if (messages.isEmpty())
+            System.out.println("< Non ci sono altri messaggi nello storico");
+        else
+            System.out.println("< Continua con read_chat dall'offset " + next);
     }
 
     /**
@@ -501,6 +540,8 @@ class ClientViewController {
         System.out.println("    Invia il messaggio nella chat del progetto.");
         System.out.print("    receive             <project_name>                             ");
         System.out.println("    Visualizza i messaggi della chat del progetto.");
+        System.out.print("    read_chat           <project_name> [offset]                    ");
+        System.out.println("    Visualizza lo storico della chat salvato dal server.");
         System.out.print("    cancel_project      <project_name>                             ");
         System.out.println("    Cancella il progetto.");
         System.out.print("    logout              <nickname>                                 ");
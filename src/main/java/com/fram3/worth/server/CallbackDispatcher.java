@@ -0,0 +1,424 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.Chat;
+import com.fram3.worth.Roster;
+import com.fram3.worth.client.Client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * CallbackDispatcher modella l'invio asincrono delle callbacks RMI ai clients registrati.
+ * Le callbacks trasportano solo le variazioni (utente registrato, online o offline, progetto a cui
+ * l'utente è stato aggiunto o cancellato) e ogni client riceve solo quelle dei progetti di cui è membro.
+ * Chi modifica lo stato accoda le variazioni nella coda limitata di ogni client interessato e accoda
+ * il client nella coda limitata dei thread di invio, senza attendere le invocazioni remote.
+ * Ogni client viene servito da un solo thread alla volta e ogni callback riporta un numero di versione
+ * progressivo per client: se la coda del client si riempie le variazioni in coda vengono scartate e sostituite
+ * da un'unica risincronizzazione completa, che il client può richiedere anche se trova un salto di versione.
+ * Un client che non risponde entro il timeout delle invocazioni remote viene deregistrato
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class CallbackDispatcher {
+
+    /**
+     * Event modella una variazione da inviare a un client
+     */
+    private interface Event {
+
+        /**
+         * invia la variazione al client
+         *
+         * @param client stub del client
+         * @param version numero di versione della callback
+         * @throws RemoteException errore nell'invocazione remota
+         */
+        void deliver(Client client, long version) throws RemoteException;
+    }
+
+    /** fornisce il roster aggiornato degli utenti registrati */
+    private final Supplier<Roster> usersSupplier;
+
+    /** fornisce le chat dei progetti di cui è membro l'utente indicato */
+    private final Function<String, ArrayList<Chat>> chatsSupplier;
+
+    /** clients registrati per le callbacks indicizzati per stub */
+    private final ConcurrentHashMap<Client, Subscriber> subscribers;
+
+    /** clients registrati per le callbacks indicizzati per nickname dell'utente */
+    private final ConcurrentHashMap<String, Subscriber> subscribersByNickname;
+
+    /** thread che invocano le callbacks, con una coda limitata di clients da servire */
+    private final ThreadPoolExecutor workers;
+
+    /** clients rifiutati dalla coda piena, serviti appena un thread si libera */
+    private final ConcurrentLinkedQueue<Subscriber> deferred;
+
+    /** numero massimo di variazioni in coda per ogni client prima di passare a una risincronizzazione */
+    private final int backlog;
+
+    /** versione corrente della lista degli utenti registrati */
+    private final AtomicLong usersVersion;
+
+    /** ultimo roster degli utenti costruito, condiviso dalle risincronizzazioni di tutti i clients */
+    private volatile Snapshot usersSnapshot;
+
+    /** callbacks invocate */
+    private final AtomicLong delivered;
+
+    /** variazioni accorpate in una risincronizzazione */
+    private final AtomicLong coalesced;
+
+    /** clients deregistrati perchè non raggiungibili */
+    private final AtomicLong dropped;
+
+    CallbackDispatcher(Supplier<Roster> usersSupplier, Function<String, ArrayList<Chat>> chatsSupplier,
+                       int threads, int queueCapacity, int backlog) {
+        this.usersSupplier = usersSupplier;
+        this.chatsSupplier = chatsSupplier;
+        this.subscribers = new ConcurrentHashMap<>();
+        this.subscribersByNickname = new ConcurrentHashMap<>();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "Callback");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.deferred = new ConcurrentLinkedQueue<>();
+        this.backlog = Math.max(1, backlog);
+        this.usersVersion = new AtomicLong();
+        this.usersSnapshot = new Snapshot(-1, null);
+        this.delivered = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * registra il client dell'utente, che riceverà appena possibile una risincronizzazione completa
+     *
+     * @param client stub del client da registrare
+     * @param nickname nome dell'utente che usa il client
+     * @return false se il client era già registrato, true altrimenti
+     */
+    boolean register(Client client, String nickname) {
+        Subscriber subscriber = new Subscriber(client, nickname);
+        if (subscribers.putIfAbsent(client, subscriber) != null)
+            return false;
+        Subscriber previous = subscribersByNickname.put(nickname, subscriber);
+        if (previous != null)
+            subscribers.remove(previous.client, previous);
+        schedule(subscriber);
+        return true;
+    }
+
+    /**
+     * deregistra il client, le callbacks in coda per il client vengono scartate
+     *
+     * @param client stub del client da deregistrare
+     * @return nickname dell'utente del client, null se il client non era registrato
+     */
+    String unregister(Client client) {
+        Subscriber subscriber = subscribers.remove(client);
+        if (subscriber == null)
+            return null;
+        subscribersByNickname.remove(subscriber.nickname, subscriber);
+        return subscriber.nickname;
+    }
+
+    /**
+     *
+     * @param nickname nome utente
+     * @return stub del client registrato dall'utente, null se l'utente non ha un client registrato
+     */
+    Client getClient(String nickname) {
+        Subscriber subscriber = subscribersByNickname.get(nickname);
+        return subscriber != null ? subscriber.client : null;
+    }
+
+    /**
+     * richiede l'invio di una risincronizzazione completa al client
+     *
+     * @param client stub del client
+     */
+    void resync(Client client) {
+        Subscriber subscriber = subscribers.get(client);
+        if (subscriber != null)
+            publish(subscriber, null);
+    }
+
+    /**
+     * notifica a tutti i clients la registrazione di un nuovo utente
+     *
+     * @param nickname nome dell'utente registrato
+     */
+    void userRegistered(String nickname) {
+        usersVersion.incrementAndGet();
+        publishAll((client, version) -> client.userRegistered(nickname, version));
+    }
+
+    /**
+     * notifica a tutti i clients che l'utente è online
+     *
+     * @param nickname nome dell'utente
+     */
+    void userOnline(String nickname) {
+        usersVersion.incrementAndGet();
+        publishAll((client, version) -> client.userOnline(nickname, version));
+    }
+
+    /**
+     * notifica a tutti i clients che l'utente è offline
+     *
+     * @param nickname nome dell'utente
+     */
+    void userOffline(String nickname) {
+        usersVersion.incrementAndGet();
+        publishAll((client, version) -> client.userOffline(nickname, version));
+    }
+
+    /**
+     * notifica all'utente, se ha un client registrato, che è diventato membro del progetto
+     *
+     * @param nickname nome dell'utente aggiunto al progetto
+     * @param chat chat del progetto
+     */
+    void projectJoined(String nickname, Chat chat) {
+        Subscriber subscriber = subscribersByNickname.get(nickname);
+        if (subscriber != null)
+            publish(subscriber, (client, version) -> client.projectJoined(chat, version));
+    }
+
+    /**
+     * notifica ai membri del progetto con un client registrato che il progetto è stato cancellato
+     *
+     * @param members membri del progetto
+     * @param projectName nome del progetto cancellato
+     */
+    void projectCancelled(Collection<String> members, String projectName) {
+        for (String member : members) {
+            Subscriber subscriber = subscribersByNickname.get(member);
+            if (subscriber != null)
+                publish(subscriber, (client, version) -> client.projectCancelled(projectName, version));
+        }
+    }
+
+    /**
+     * interrompe i thread di invio, le callbacks in coda vengono scartate
+     */
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     *
+     * @return callbacks invocate
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     *
+     * @return variazioni accorpate in una risincronizzazione
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     *
+     * @return clients deregistrati perchè non raggiungibili
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private void publishAll(Event event) {
+        for (Subscriber subscriber : subscribers.values())
+            publish(subscriber, event);
+    }
+
+    /**
+     * accoda la variazione per il client e accoda il client per l'invio. Se la coda del client è piena
+     * le variazioni vengono sostituite da una risincronizzazione completa
+     *
+     * @param subscriber client a cui inviare la variazione
+     * @param event variazione da inviare, null per una risincronizzazione completa
+     */
+    private void publish(Subscriber subscriber, Event event) {
+        synchronized (subscriber) {
+            if (subscriber.resync) {
+                coalesced.incrementAndGet();
+            } else if (event == null || subscriber.pending.size() >= backlog) {
+                coalesced.addAndGet(subscriber.pending.size());
+                subscriber.pending.clear();
+                subscriber.resync = true;
+            } else {
+                subscriber.pending.add(event);
+            }
+        }
+        schedule(subscriber);
+    }
+
+    /**
+     * accoda il client per l'invio se non è già in coda
+     *
+     * @param subscriber client da accodare
+     */
+    private void schedule(Subscriber subscriber) {
+        if (!subscriber.scheduled.compareAndSet(false, true))
+            return;
+        try {
+            workers.execute(() -> deliver(subscriber));
+        } catch (RejectedExecutionException e) {
+            //coda piena: il client verrà servito dal primo thread che si libera o alla prossima variazione
+            subscriber.scheduled.set(false);
+            if (!workers.isShutdown())
+                deferred.add(subscriber);
+        }
+    }
+
+    /**
+     * serve il client e poi i clients rimasti fuori dalla coda piena
+     *
+     * @param subscriber client da servire
+     */
+    private void deliver(Subscriber subscriber) {
+        serve(subscriber);
+        Subscriber next;
+        while ((next = deferred.poll()) != null) {
+            if (next.scheduled.compareAndSet(false, true))
+                serve(next);
+        }
+    }
+
+    /**
+     * invia al client le variazioni in coda, nell'ordine in cui sono state accodate, finchè ce ne sono
+     *
+     * @param subscriber client da servire
+     */
+    private void serve(Subscriber subscriber) {
+        try {
+            while (subscribers.get(subscriber.client) == subscriber) {
+                Event event;
+                boolean resync;
+                synchronized (subscriber) {
+                    resync = subscriber.resync;
+                    subscriber.resync = false;
+                    event = resync ? null : subscriber.pending.poll();
+                    if (!resync && event == null) {
+                        //una variazione accodata dopo questo controllo troverà il client fuori coda
+                        subscriber.scheduled.set(false);
+                        break;
+                    }
+                }
+                if (resync) {
+                    subscriber.client.notifyUserEvent(users(), ++subscriber.version);
+                    subscriber.client.notifyChatsEvent(chatsSupplier.apply(subscriber.nickname), ++subscriber.version);
+                    delivered.addAndGet(2);
+                } else {
+                    event.deliver(subscriber.client, ++subscriber.version);
+                    delivered.incrementAndGet();
+                }
+            }
+        } catch (RemoteException e) {
+            //il client non risponde o non è più raggiungibile
+            deregister(subscriber, "non raggiungibile");
+        } catch (RuntimeException e) {
+            //errore nel costruire roster o chat: il client resterebbe in coda per sempre senza ricevere
+            //variazioni, lo deregistro come se non fosse raggiungibile così che possa registrarsi di nuovo
+            e.printStackTrace();
+            deregister(subscriber, "non aggiornabile");
+        }
+    }
+
+    /**
+     * rimuove il client dalle callbacks in seguito a un errore di invio
+     *
+     * @param subscriber client da rimuovere
+     * @param reason motivo della rimozione, da riportare nel log
+     */
+    private void deregister(Subscriber subscriber, String reason) {
+        if (subscribers.remove(subscriber.client, subscriber)) {
+            subscribersByNickname.remove(subscriber.nickname, subscriber);
+            dropped.incrementAndGet();
+            System.out.println("Server: client di " + subscriber.nickname
+                    + " " + reason + ", deregistrato dalle callbacks");
+        }
+    }
+
+    /**
+     * restituisce il roster aggiornato degli utenti, costruendolo una sola volta per ogni versione
+     *
+     * @return roster degli utenti registrati
+     */
+    private synchronized Roster users() {
+        long version = usersVersion.get();
+        if (usersSnapshot.version < version)
+            usersSnapshot = new Snapshot(version, usersSupplier.get());
+        return usersSnapshot.users;
+    }
+
+    /**
+     * Subscriber modella un client registrato per le callbacks con le variazioni da inviargli
+     */
+    private static class Subscriber {
+
+        /** stub del client */
+        private final Client client;
+
+        /** nome dell'utente che usa il client */
+        private final String nickname;
+
+        /** true se il client è in coda o in corso di invio */
+        private final AtomicBoolean scheduled;
+
+        /** variazioni da inviare, protette dal lock del subscriber */
+        private final ArrayDeque<Event> pending;
+
+        /** true se al client va inviata una risincronizzazione completa al posto delle variazioni */
+        private boolean resync;
+
+        /** numero di versione dell'ultima callback inviata, usato solo dal thread che serve il client */
+        private long version;
+
+        Subscriber(Client client, String nickname) {
+            this.client = client;
+            this.nickname = nickname;
+            this.scheduled = new AtomicBoolean();
+            this.pending = new ArrayDeque<>();
+            this.resync = true;
+        }
+    }
+
+    /**
+     * Snapshot modella il roster degli utenti inviato nelle risincronizzazioni con la sua versione
+     */
+    private static class Snapshot {
+
+        /** versione del roster */
+        private final long version;
+
+        /** utenti registrati con il loro stato */
+        private final Roster users;
+
+        Snapshot(long version, Roster users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+}
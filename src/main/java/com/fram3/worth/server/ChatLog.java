@@ -0,0 +1,368 @@
+package com.fram3.worth.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChatLog modella lo storico persistente dei messaggi delle chat dei progetti.
+ * Ogni progetto ha il proprio log in append, diviso in segmenti di segmentSize byte che prendono il nome
+ * dall'offset del primo messaggio; i segmenti sono mappati in memoria, così i messaggi non occupano lo heap
+ * e vengono scritti su disco dal sistema operativo. Di ogni progetto vengono conservati al più maxSegments
+ * segmenti, quando se ne apre uno nuovo il più vecchio viene cancellato.
+ * L'offset di un messaggio è la sua posizione nel log del progetto: un client legge i messaggi
+ * successivi all'ultimo offset letto a pagine di al più pageSize messaggi.
+ *
+ * Formato di un messaggio: [int lunghezza][messaggio in UTF-8]. Una lunghezza 0 indica la fine del segmento,
+ * la lunghezza viene scritta dopo il messaggio così un messaggio interrotto da un crash non viene letto
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ChatLog {
+
+    /** dimensione dell'intestazione di un messaggio */
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    /** estensione dei segmenti */
+    private static final String SEGMENT_SUFFIX = ".chat";
+
+    /** directory che contiene una directory di segmenti per ogni progetto */
+    private final Path directory;
+
+    /** dimensione di un segmento */
+    private final int segmentSize;
+
+    /** numero massimo di segmenti conservati per progetto */
+    private final int maxSegments;
+
+    /** numero massimo di messaggi restituiti da una lettura */
+    private final int pageSize;
+
+    /** log dei progetti aperti indicizzati per nome del progetto */
+    private final ConcurrentHashMap<String, ProjectLog> logs;
+
+    ChatLog(Path directory, int segmentSize, int maxSegments, int pageSize) {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE * 2, segmentSize);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.pageSize = Math.max(1, pageSize);
+        this.logs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * aggiunge un messaggio in coda al log del progetto
+     *
+     * @param projectName nome progetto della chat
+     * @param message messaggio già codificato in UTF-8
+     * @return offset assegnato al messaggio, -1 se il messaggio non è stato registrato
+     */
+    public long append(String projectName, byte[] message) {
+        //un messaggio deve poter stare in un segmento vuoto, seguito dalla lunghezza 0 di fine segmento
+        if (message.length == 0 || message.length + 2 * HEADER_SIZE > segmentSize)
+            return -1;
+        try {
+            return log(projectName).append(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * legge i messaggi del progetto a partire dall'offset indicato, al più una pagina.
+     * Se i messaggi a partire dall'offset non sono più conservati la lettura parte dal più vecchio disponibile
+     *
+     * @param projectName nome progetto della chat
+     * @param offset offset del primo messaggio da leggere
+     * @param messages lista in cui aggiungere i messaggi letti
+     * @return offset del messaggio successivo all'ultimo letto
+     */
+    public long read(String projectName, long offset, ArrayList<String> messages) {
+        try {
+            return log(projectName).read(Math.max(0, offset), messages);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return offset;
+        }
+    }
+
+    /**
+     * cancella il log del progetto, in seguito alla sua cancellazione
+     *
+     * @param projectName nome progetto cancellato
+     */
+    public void remove(String projectName) {
+        ProjectLog log = logs.remove(projectName);
+        try {
+            if (log != null)
+                log.delete();
+            else
+                deleteSegments(directory.resolve(projectName));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * forza la scrittura su disco dei segmenti in cui sono stati aggiunti messaggi
+     */
+    void flush() {
+        for (ProjectLog log : logs.values())
+            log.flush();
+    }
+
+    /**
+     *
+     * @param projectName nome progetto della chat
+     * @return log del progetto, aperto al primo utilizzo
+     * @throws IOException errore nell'apertura dei segmenti
+     */
+    private ProjectLog log(String projectName) throws IOException {
+        ProjectLog log = logs.get(projectName);
+        if (log != null)
+            return log;
+        ProjectLog opened = new ProjectLog(directory.resolve(projectName));
+        log = logs.putIfAbsent(projectName, opened);
+        return log != null ? log : opened;
+    }
+
+    /**
+     * cancella i segmenti di un log non aperto e la sua directory
+     *
+     * @param path directory del log
+     * @throws IOException errore nella cancellazione
+     */
+    private static void deleteSegments(Path path) throws IOException {
+        if (!Files.isDirectory(path))
+            return;
+        for (Path segment : segments(path))
+            Files.delete(segment);
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     *
+     * @param path directory del log di un progetto
+     * @return segmenti del log in ordine di offset
+     * @throws IOException errore nella lettura della directory
+     */
+    private static ArrayList<Path> segments(Path path) throws IOException {
+        ArrayList<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(path))
+            return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        segments.sort(Comparator.comparingLong(ChatLog::firstOffset));
+        return segments;
+    }
+
+    /**
+     *
+     * @param segment segmento del log
+     * @return offset del primo messaggio del segmento
+     */
+    private static long firstOffset(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * ProjectLog modella il log della chat di un progetto. Le scritture e le letture
+     * sono serializzate sul log, log di progetti diversi non si bloccano a vicenda
+     */
+    private class ProjectLog {
+
+        /** directory dei segmenti */
+        private final Path path;
+
+        /** segmenti conservati in ordine di offset, l'ultimo è quello in scrittura */
+        private final ArrayList<Segment> segments;
+
+        /** offset che verrà assegnato al prossimo messaggio */
+        private long nextOffset;
+
+        /** true se sono stati aggiunti messaggi dopo l'ultima scrittura su disco */
+        private boolean dirty;
+
+        /** true dopo la cancellazione del progetto, i messaggi successivi vengono scartati */
+        private boolean deleted;
+
+        /**
+         * apre i segmenti esistenti del log. I messaggi dell'ultimo segmento vengono contati
+         * fino alla prima lunghezza non valida, da cui riprendono le scritture
+         *
+         * @param path directory dei segmenti
+         * @throws IOException errore nell'apertura dei segmenti
+         */
+        ProjectLog(Path path) throws IOException {
+            this.path = path;
+            this.segments = new ArrayList<>();
+            for (Path file : ChatLog.segments(path)) {
+                //i segmenti precedenti all'ultimo sono chiusi, vengono letti fino alla lunghezza 0
+                Segment segment = new Segment(file, firstOffset(file));
+                segment.position = segmentSize;
+                segments.add(segment);
+            }
+            if (segments.isEmpty())
+                return;
+            Segment last = segments.get(segments.size() - 1);
+            int position = 0;
+            int count = 0;
+            int length;
+            while (position + HEADER_SIZE <= segmentSize && (length = last.buffer.getInt(position)) > 0
+                    && position + HEADER_SIZE + length <= segmentSize) {
+                position += HEADER_SIZE + length;
+                count++;
+            }
+            last.position = position;
+            nextOffset = last.firstOffset + count;
+        }
+
+        /**
+         * scrive il messaggio in coda all'ultimo segmento, aprendone uno nuovo se non c'è spazio
+         *
+         * @param message messaggio codificato
+         * @return offset assegnato al messaggio, -1 se il progetto è stato cancellato
+         * @throws IOException errore nell'apertura di un nuovo segmento
+         */
+        synchronized long append(byte[] message) throws IOException {
+            if (deleted)
+                return -1;
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last == null || last.position + 2 * HEADER_SIZE + message.length > segmentSize)
+                last = roll();
+            ByteBuffer view = last.buffer.duplicate();
+            view.position(last.position + HEADER_SIZE);
+            view.put(message);
+            last.buffer.putInt(last.position, message.length);
+            last.position += HEADER_SIZE + message.length;
+            dirty = true;
+            return nextOffset++;
+        }
+
+        /**
+         * legge al più una pagina di messaggi a partire dall'offset indicato
+         *
+         * @param offset offset del primo messaggio da leggere
+         * @param messages lista in cui aggiungere i messaggi letti
+         * @return offset del messaggio successivo all'ultimo letto
+         */
+        synchronized long read(long offset, ArrayList<String> messages) {
+            if (segments.isEmpty() || offset >= nextOffset)
+                return Math.min(offset, nextOffset);
+            //i messaggi nei segmenti cancellati non sono più disponibili
+            offset = Math.max(offset, segments.get(0).firstOffset);
+            int index = segments.size() - 1;
+            while (segments.get(index).firstOffset > offset)
+                index--;
+            int read = 0;
+            for (; index < segments.size() && read < pageSize; index++) {
+                Segment segment = segments.get(index);
+                ByteBuffer view = segment.buffer.duplicate();
+                int position = 0;
+                long current = segment.firstOffset;
+                while (position + HEADER_SIZE <= segment.position && read < pageSize) {
+                    int length = view.getInt(position);
+                    //un segmento chiuso prima di essere pieno termina con la lunghezza 0
+                    if (length <= 0 || position + HEADER_SIZE + length > segment.position)
+                        break;
+                    if (current >= offset) {
+                        view.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+                        messages.add(StandardCharsets.UTF_8.decode(view).toString());
+                        view.clear();
+                        read++;
+                    }
+                    position += HEADER_SIZE + length;
+                    current++;
+                }
+            }
+            return offset + read;
+        }
+
+        /**
+         * apre un nuovo segmento a partire dal prossimo offset e cancella i segmenti oltre il limite
+         *
+         * @return segmento aperto
+         * @throws IOException errore nell'apertura del segmento
+         */
+        private Segment roll() throws IOException {
+            Files.createDirectories(path);
+            Path file = path.resolve(String.format("%020d", nextOffset) + SEGMENT_SUFFIX);
+            Segment segment = new Segment(file, nextOffset);
+            segments.add(segment);
+            while (segments.size() > maxSegments) {
+                //la mappatura resta valida fino al garbage collector anche dopo la cancellazione del file
+                Files.deleteIfExists(segments.remove(0).file);
+            }
+            return segment;
+        }
+
+        /**
+         * forza la scrittura su disco dell'ultimo segmento, l'unico in cui vengono aggiunti messaggi
+         */
+        synchronized void flush() {
+            if (!dirty || segments.isEmpty())
+                return;
+            segments.get(segments.size() - 1).buffer.force();
+            dirty = false;
+        }
+
+        /**
+         * cancella tutti i segmenti e la directory del log
+         *
+         * @throws IOException errore nella cancellazione
+         */
+        synchronized void delete() throws IOException {
+            deleted = true;
+            segments.clear();
+            deleteSegments(path);
+        }
+    }
+
+    /**
+     * Segment modella un segmento del log mappato in memoria
+     */
+    private class Segment {
+
+        /** file del segmento */
+        private final Path file;
+
+        /** offset del primo messaggio del segmento */
+        private final long firstOffset;
+
+        /** contenuto del segmento mappato in memoria */
+        private final MappedByteBuffer buffer;
+
+        /** posizione in cui verrà scritto il prossimo messaggio, fine dei messaggi da leggere */
+        private int position;
+
+        /**
+         * mappa il segmento in memoria, creandolo della dimensione di un segmento se non esiste.
+         * Il canale può essere chiuso subito, la mappatura resta valida
+         *
+         * @param file file del segmento
+         * @param firstOffset offset del primo messaggio del segmento
+         * @throws IOException errore nell'apertura del file
+         */
+        Segment(Path file, long firstOffset) throws IOException {
+            this.file = file;
+            this.firstOffset = firstOffset;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        }
+    }
+}
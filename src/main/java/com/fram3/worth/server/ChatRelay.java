@@ -0,0 +1,85 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.client.Client;
+import com.fram3.worth.utils.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatRelay modella l'invio dei messaggi delle chat sulle connessioni tcp dei clients,
+ * in alternativa ai gruppi multicast quando la rete non li instrada.
+ * Un messaggio arriva già codificato in UTF-8 e viene serializzato una sola volta per ogni codifica usata
+ * dai destinatari, in un buffer in sola lettura condiviso fuori dal pool: ogni membro online iscritto alle
+ * callbacks sulla connessione riceve un duplicato del buffer, che ha una propria posizione ma lo stesso
+ * contenuto, accodato come evento CHAT_MESSAGE. Il buffer viene liberato dal garbage collector
+ * quando l'ultima connessione lo ha scritto.
+ * Ogni destinatario ha un limite di bytes accodati: se il client non li legge i messaggi successivi
+ * vengono scartati solo per lui, senza rallentare gli altri, e il client può recuperarli dallo storico della chat
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class ChatRelay {
+
+    /** dispatcher delle callbacks, da cui ricavare le connessioni dei membri online */
+    private final CallbackDispatcher callbacks;
+
+    /** bytes accodati in una connessione oltre i quali i messaggi di chat per quel client vengono scartati */
+    private final long maxQueuedBytes;
+
+    /** messaggi accodati nelle connessioni dei destinatari */
+    private final AtomicLong relayed;
+
+    /** messaggi scartati perchè il destinatario non leggeva o la sua connessione era chiusa */
+    private final AtomicLong dropped;
+
+    ChatRelay(CallbackDispatcher callbacks, long maxQueuedBytes) {
+        this.callbacks = callbacks;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.relayed = new AtomicLong();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * invia il messaggio a tutti i membri del progetto iscritti alle callbacks sulla connessione tcp
+     *
+     * @param projectName nome progetto della chat
+     * @param members membri del progetto, da una collezione che può essere letta durante le modifiche
+     * @param text messaggio da inviare, già codificato in UTF-8
+     */
+    void relay(String projectName, Collection<String> members, byte[] text) {
+        //al più un buffer per codifica, le codifiche sono istanze condivise
+        IdentityHashMap<MessageCodec, ByteBuffer> frames = new IdentityHashMap<>(2);
+        for (String member : members) {
+            Client client = callbacks.getClient(member);
+            if (!(client instanceof PushClient))
+                continue;
+            PushClient subscriber = (PushClient) client;
+            ByteBuffer frame = frames.computeIfAbsent(subscriber.getCodec(),
+                    codec -> codec.encodeChatMessage(projectName, text).asReadOnlyBuffer());
+            if (subscriber.pushShared(frame, maxQueuedBytes))
+                relayed.incrementAndGet();
+            else
+                dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return messaggi accodati nelle connessioni dei destinatari
+     */
+    long getRelayed() {
+        return relayed.get();
+    }
+
+    /**
+     *
+     * @return messaggi scartati perchè il destinatario non leggeva o la sua connessione era chiusa
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,285 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.utils.BufferPool;
+import com.fram3.worth.utils.FrameDecoder;
+import com.fram3.worth.utils.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection modella lo stato di una connessione tcp con un client,
+ * inserito come attachment della chiave del relativo canale.
+ * Il client può inviare più richieste senza attendere i responsi: le richieste vengono
+ * accodate ed elaborate in ordine da un solo RequestHandler alla volta, i responsi vengono
+ * accodati nello stesso ordine e scritti dal reactor che possiede il canale.
+ * Se il client si iscrive alle callbacks sulla connessione, gli eventi vengono accodati
+ * insieme ai responsi e il client li distingue dal tipo di evento
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class Connection {
+
+    /** numero massimo di buffer scritti con una singola gathering write */
+    private static final int WRITE_BATCH = 16;
+
+    /** decoder dei messaggi ricevuti dal client */
+    private final FrameDecoder decoder;
+
+    /** pool dei buffer dei messaggi */
+    private final BufferPool pool;
+
+    /** richieste ricevute e non ancora elaborate */
+    private final ArrayDeque<ByteBuffer> requests;
+
+    /** responsi da inviare, ognuno composto da dimensione messaggio e messaggio */
+    private final ConcurrentLinkedQueue<ByteBuffer> responses;
+
+    /** array riutilizzato dal reactor per le gathering write */
+    private final ByteBuffer[] writeBatch;
+
+    /** numero massimo di richieste in attesa prima di sospendere la lettura dal canale */
+    private final int maxPendingRequests;
+
+    /** numero di richieste ricevute di cui non è stato ancora accodato il responso */
+    private int pendingRequests;
+
+    /** true se un RequestHandler sta elaborando le richieste della connessione */
+    private boolean handlerRunning;
+
+    /** codifica dei messaggi, JSON finchè il client non negozia un'altra versione del protocollo */
+    private volatile MessageCodec codec;
+
+    /** true se la connessione va chiusa dopo aver inviato i responsi accodati (logout) */
+    private volatile boolean closing;
+
+    /** bytes di responsi ed eventi accodati e non ancora scritti sul canale */
+    private final AtomicLong queuedBytes;
+
+    /** utente che ha effettuato il login sulla connessione, null se nessuno */
+    private volatile String nickname;
+
+    /** client iscritto alle callbacks sulla connessione, null se il client usa RMI */
+    private volatile PushClient subscriber;
+
+    Connection(BufferPool pool, int maxFrameSize, int maxPendingRequests) {
+        this.decoder = new FrameDecoder(pool, maxFrameSize);
+        this.pool = pool;
+        this.requests = new ArrayDeque<>();
+        this.responses = new ConcurrentLinkedQueue<>();
+        this.writeBatch = new ByteBuffer[WRITE_BATCH];
+        this.maxPendingRequests = maxPendingRequests;
+        this.codec = MessageCodec.forVersion(MessageCodec.JSON_VERSION);
+        this.queuedBytes = new AtomicLong();
+    }
+
+    /**
+     *
+     * @return utente che ha effettuato il login sulla connessione, null se nessuno
+     */
+    String getNickname() {
+        return nickname;
+    }
+
+    /**
+     *
+     * @param nickname utente che ha effettuato il login sulla connessione
+     */
+    void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    /**
+     *
+     * @return client iscritto alle callbacks sulla connessione, null se nessuno
+     */
+    PushClient getSubscriber() {
+        return subscriber;
+    }
+
+    /**
+     *
+     * @param subscriber client iscritto alle callbacks sulla connessione
+     */
+    void setSubscriber(PushClient subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    /**
+     *
+     * @return codifica dei messaggi della connessione
+     */
+    MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     *
+     * @param codec codifica dei messaggi negoziata con il client
+     */
+    void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     *
+     * @return decoder dei messaggi ricevuti dal client
+     */
+    FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * accoda una richiesta ricevuta dal reactor
+     *
+     * @param request messaggio ricevuto
+     * @return true se non c'è un RequestHandler attivo e quindi il chiamante deve avviarne uno
+     */
+    synchronized boolean addRequest(ByteBuffer request) {
+        requests.add(request);
+        pendingRequests++;
+        if (handlerRunning)
+            return false;
+        handlerRunning = true;
+        return true;
+    }
+
+    /**
+     *
+     * @return true se ci sono altre richieste in attesa di essere elaborate
+     */
+    synchronized boolean hasRequests() {
+        return !closing && !requests.isEmpty();
+    }
+
+    /**
+     * restituisce la prossima richiesta da elaborare. Se non ce ne sono
+     * il RequestHandler che la invoca deve terminare
+     *
+     * @return richiesta da elaborare oppure null
+     */
+    synchronized ByteBuffer nextRequest() {
+        ByteBuffer request = closing ? null : requests.poll();
+        if (request == null)
+            handlerRunning = false;
+        return request;
+    }
+
+    /**
+     * segna come terminato il RequestHandler della connessione, quando termina per un errore
+     * senza che nextRequest() abbia restituito null
+     */
+    synchronized void handlerStopped() {
+        handlerRunning = false;
+    }
+
+    /**
+     * accoda il responso di una richiesta, nello stesso ordine delle richieste
+     *
+     * @param response buffer con dimensione messaggio e messaggio, pronto per la lettura
+     */
+    void addResponse(ByteBuffer response) {
+        queuedBytes.addAndGet(response.remaining());
+        responses.add(response);
+        synchronized (this) {
+            pendingRequests--;
+        }
+    }
+
+    /**
+     * accoda un evento da inviare al client, tra un responso e l'altro.
+     * A differenza dei responsi non corrisponde a nessuna richiesta
+     *
+     * @param event buffer con dimensione messaggio e messaggio, pronto per la lettura
+     */
+    void addEvent(ByteBuffer event) {
+        queuedBytes.addAndGet(event.remaining());
+        responses.add(event);
+    }
+
+    /**
+     *
+     * @return bytes di responsi ed eventi accodati e non ancora scritti sul canale
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     *
+     * @return true se il reactor può continuare a leggere richieste dal canale
+     */
+    synchronized boolean canRead() {
+        return !closing && pendingRequests < maxPendingRequests;
+    }
+
+    /**
+     *
+     * @return true se ci sono responsi da scrivere
+     */
+    boolean hasResponses() {
+        return !responses.isEmpty();
+    }
+
+    /**
+     * scrive sul canale i primi responsi in coda con una gathering write e restituisce
+     * al pool quelli scritti completamente. Invocato solamente dal thread del reactor
+     *
+     * @param channel canale del client
+     * @return true se tutti i responsi in coda sono stati scritti
+     * @throws IOException errore di I/O
+     */
+    boolean writeResponses(SocketChannel channel) throws IOException {
+        int count = 0;
+        for (ByteBuffer response : responses) {
+            if (count == writeBatch.length)
+                break;
+            writeBatch[count++] = response;
+        }
+        //i bytes accodati sono contati con remaining(), quindi si sottraggono quelli effettivamente scritti
+        queuedBytes.addAndGet(-channel.write(writeBatch, 0, count));
+        ByteBuffer response;
+        while ((response = responses.peek()) != null && !response.hasRemaining()) {
+            responses.poll();
+            pool.release(response);
+        }
+        Arrays.fill(writeBatch, 0, count, null);
+        return responses.isEmpty();
+    }
+
+    /**
+     * segna la connessione da chiudere dopo aver inviato i responsi accodati.
+     * Le richieste successive vengono scartate
+     */
+    void close() {
+        closing = true;
+    }
+
+    /**
+     *
+     * @return true se la connessione va chiusa dopo l'invio dei responsi
+     */
+    boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * restituisce al pool tutti i buffer della connessione, da usare quando il canale viene chiuso
+     */
+    synchronized void release() {
+        decoder.release();
+        ByteBuffer buffer;
+        while ((buffer = requests.poll()) != null)
+            pool.release(buffer);
+        while ((buffer = responses.poll()) != null) {
+            queuedBytes.addAndGet(-buffer.remaining());
+            pool.release(buffer);
+        }
+    }
+}
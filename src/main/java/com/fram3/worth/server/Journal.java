@@ -0,0 +1,423 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.WorthImpl;
+import com.fram3.worth.utils.BufferPool;
+import com.fram3.worth.utils.Message;
+import com.fram3.worth.utils.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Journal modella il log write-ahead delle modifiche allo stato del servizio.
+ * Ogni modifica (registrazione, creazione e cancellazione di progetti, aggiunta di membri e card,
+ * spostamento di card) viene accodata come record e scritta in append sul file da un unico thread,
+ * che raggruppa tutti i record accodati nel frattempo in una sola scrittura e una sola fsync (group commit).
+ * Tra due fsync passano almeno syncMillis millisecondi, così il numero di fsync al secondo resta limitato
+ * qualunque sia il carico. All'avvio il journal viene riapplicato sopra l'ultimo snapshot.
+ *
+ * Il journal è diviso in segmenti, file che prendono il nome dal numero di sequenza del primo record;
+ * quando un segmento supera segmentSize byte il thread di scrittura ne apre uno nuovo,
+ * e i segmenti i cui record sono tutti inclusi in uno snapshot vengono cancellati.
+ *
+ * Formato di un record: [int lunghezza][int crc32 del messaggio][long numero di sequenza][messaggio in binario]
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class Journal implements Runnable {
+
+    /** dimensione dell'intestazione di un record */
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    /** codifica dei messaggi nei record */
+    private static final MessageCodec CODEC = MessageCodec.forVersion(MessageCodec.BINARY_VERSION);
+
+    /** estensione dei segmenti */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** directory dei segmenti del journal */
+    private final Path directory;
+
+    /** dimensione oltre la quale il segmento corrente viene chiuso e ne viene aperto uno nuovo */
+    private final long segmentSize;
+
+    /** intervallo minimo in millisecondi tra due fsync */
+    private final int syncMillis;
+
+    /** pool da cui prendere i buffer dei record */
+    private final BufferPool pool;
+
+    /** record in attesa di essere scritti, in ordine di numero di sequenza */
+    private final LinkedBlockingQueue<ByteBuffer[]> pending;
+
+    /** canale del segmento corrente */
+    private FileChannel channel;
+
+    /** byte scritti nel segmento corrente */
+    private long channelSize;
+
+    /** numero di sequenza dell'ultimo record accodato */
+    private long lastSequence;
+
+    /** numero di sequenza dell'ultimo record scritto su disco con fsync */
+    private long durableSequence;
+
+    /** numero di sequenza dell'ultimo record accodato da ogni thread, azzerato da takeAppended() */
+    private final ThreadLocal<long[]> appended = ThreadLocal.withInitial(() -> new long[1]);
+
+    /** false dopo la close(), i record successivi vengono scartati */
+    private volatile boolean running;
+
+    /** thread che scrive i record */
+    private Thread writer;
+
+    Journal(Path directory, long segmentSize, int syncMillis, BufferPool pool) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncMillis = syncMillis;
+        this.pool = pool;
+        this.pending = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * riapplica al servizio i record dei segmenti del journal con numero di sequenza successivo
+     * a quello dello snapshot. Un crash può interrompere solo la scrittura dell'ultimo segmento,
+     * quindi un record incompleto o corrotto in coda all'ultimo segmento viene troncato.
+     * Un record non valido in un segmento seguito da altri non è una scrittura interrotta:
+     * i record successivi non possono essere riapplicati senza quelli persi e l'avvio viene interrotto
+     *
+     * @param worth servizio su cui riapplicare le modifiche
+     * @param snapshotSequence numero di sequenza dell'ultimo record già incluso in tutti i file dello snapshot
+     * @return numero di record riapplicati
+     * @throws IOException errore nella lettura dei segmenti o record non valido in un segmento diverso dall'ultimo
+     */
+    int replay(WorthImpl worth, long snapshotSequence) throws IOException {
+        lastSequence = snapshotSequence;
+        int replayed = 0;
+        ArrayList<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                long position = 0;
+                while (true) {
+                    header.clear();
+                    if (readFully(file, header, position) < HEADER_SIZE)
+                        break;
+                    header.flip();
+                    int length = header.getInt();
+                    int crc = header.getInt();
+                    long sequence = header.getLong();
+                    if (length <= 0 || position + HEADER_SIZE + length > file.size())
+                        break;
+                    ByteBuffer record = ByteBuffer.allocate(length);
+                    readFully(file, record, position + HEADER_SIZE);
+                    CRC32 checksum = new CRC32();
+                    checksum.update(record.array(), 0, length);
+                    if ((int) checksum.getValue() != crc)
+                        break;
+                    record.flip();
+                    if (sequence > lastSequence) {
+                        worth.apply(CODEC.decode(record), sequence);
+                        lastSequence = sequence;
+                        replayed++;
+                    }
+                    position += HEADER_SIZE + length;
+                }
+                if (position < file.size() && i + 1 < segments.size())
+                    throw new IOException("Journal: record non valido alla posizione " + position + " di "
+                            + segment.getFileName() + ", seguito da altri segmenti: journal corrotto");
+                if (position < file.size()) {
+                    System.out.println("Journal: scarto " + (file.size() - position) + " byte non validi in coda a " +
+                            segment.getFileName());
+                    file.truncate(position);
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * crea la directory del journal e apre un nuovo segmento su cui avviare il thread di scrittura
+     *
+     * @throws IOException errore nell'apertura del segmento
+     */
+    void start() throws IOException {
+        Files.createDirectories(directory);
+        durableSequence = lastSequence;
+        openSegment(lastSequence + 1);
+        running = true;
+        writer = new Thread(this, "Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * accoda una modifica allo stato del servizio.
+     * Va invocato con il lock della risorsa modificata acquisito, così che l'ordine dei record
+     * di una stessa risorsa sia quello in cui le modifiche sono state applicate
+     *
+     * @param entry modifica da registrare
+     * @return numero di sequenza assegnato al record, 0 se il journal è chiuso
+     */
+    public long append(Message entry) {
+        ByteBuffer record = CODEC.encode(entry, pool);
+        //salto la dimensione scritta dal codec, l'intestazione del record ha la propria
+        record.position(Integer.BYTES);
+        CRC32 checksum = new CRC32();
+        checksum.update(record.duplicate());
+        ByteBuffer header = pool.acquire(HEADER_SIZE);
+        synchronized (this) {
+            if (!running) {
+                pool.release(header);
+                pool.release(record);
+                return 0;
+            }
+            header.putInt(record.remaining()).putInt((int) checksum.getValue()).putLong(++lastSequence).flip();
+            pending.add(new ByteBuffer[] { header, record });
+            appended.get()[0] = lastSequence;
+            return lastSequence;
+        }
+    }
+
+    /**
+     * restituisce il numero di sequenza dell'ultimo record accodato dal thread corrente dopo l'invocazione
+     * precedente, così chi elabora una richiesta attende in sync(long) solo i record prodotti dalla richiesta
+     *
+     * @return numero di sequenza dell'ultimo record accodato dal thread, 0 se non ne ha accodati
+     */
+    long takeAppended() {
+        long[] last = appended.get();
+        long sequence = last[0];
+        last[0] = 0;
+        return sequence;
+    }
+
+    /**
+     * attende che tutti i record accodati fino a questo momento siano stati scritti su disco.
+     * Va invocato dopo aver rilasciato i lock, prima di rispondere al client
+     */
+    public void sync() {
+        sync(getLastSequence());
+    }
+
+    /**
+     * attende che i record fino al numero di sequenza indicato siano stati scritti su disco.
+     * Va invocato dopo aver rilasciato i lock, prima di rispondere al client
+     *
+     * @param target numero di sequenza dell'ultimo record da attendere
+     */
+    void sync(long target) {
+        synchronized (this) {
+            while (running && durableSequence < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return numero di sequenza dell'ultimo record accodato
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * ciclo del thread di scrittura: attende almeno un record, prende tutti quelli accodati nel frattempo,
+     * li scrive con una sola scrittura e fa una sola fsync, poi sveglia i thread in attesa
+     */
+    @Override
+    public void run() {
+        ArrayList<ByteBuffer[]> batch = new ArrayList<>();
+        long lastSync = 0;
+        while (running || !pending.isEmpty()) {
+            try {
+                ByteBuffer[] first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                //aspetto che sia trascorso l'intervallo minimo dall'ultima fsync,
+                //i record accodati nel frattempo finiscono nello stesso gruppo
+                long wait = lastSync + syncMillis - System.currentTimeMillis();
+                if (wait > 0)
+                    Thread.sleep(wait);
+                batch.add(first);
+                pending.drainTo(batch);
+                write(batch);
+                lastSync = System.currentTimeMillis();
+            } catch (InterruptedException e) {
+                System.out.println("Journal: thread di scrittura interrotto, journal disabilitato");
+                disable();
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Journal: errore di scrittura, journal disabilitato");
+                disable();
+            } finally {
+                for (ByteBuffer[] record : batch) {
+                    pool.release(record[0]);
+                    pool.release(record[1]);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * disabilita il journal quando il thread di scrittura non può più scrivere: senza journal le modifiche
+     * non sarebbero più durabili, quindi i record successivi vengono scartati, i thread in attesa in sync()
+     * vengono svegliati e lo stato verrà salvato dallo snapshot
+     */
+    private void disable() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        for (ByteBuffer[] record : pending) {
+            pool.release(record[0]);
+            pool.release(record[1]);
+        }
+        pending.clear();
+    }
+
+    /**
+     * scrive un gruppo di record e ne forza la scrittura su disco
+     *
+     * @param batch record da scrivere
+     * @throws IOException errore nella scrittura
+     */
+    private void write(ArrayList<ByteBuffer[]> batch) throws IOException {
+        if (channelSize >= segmentSize) {
+            channel.close();
+            openSegment(batch.get(0)[0].getLong(2 * Integer.BYTES));
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            buffers[2 * i] = batch.get(i)[0];
+            buffers[2 * i + 1] = batch.get(i)[1];
+            bytes += buffers[2 * i].remaining() + buffers[2 * i + 1].remaining();
+        }
+        long written = 0;
+        while (written < bytes)
+            written += channel.write(buffers);
+        channelSize += bytes;
+        channel.force(false);
+        long sequence = batch.get(batch.size() - 1)[0].getLong(2 * Integer.BYTES);
+        synchronized (this) {
+            durableSequence = sequence;
+            notifyAll();
+        }
+    }
+
+    /**
+     * smette di accettare record, scrive quelli ancora in coda e chiude il file
+     */
+    void close() {
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * cancella i segmenti i cui record sono tutti inclusi nello snapshot.
+     * Il segmento corrente viene cancellato solo se il journal è chiuso
+     *
+     * @param snapshotSequence numero di sequenza dell'ultimo record incluso nello snapshot
+     * @throws IOException errore nella cancellazione dei segmenti
+     */
+    void release(long snapshotSequence) throws IOException {
+        ArrayList<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            //l'ultimo record di un segmento precede il primo del segmento successivo
+            long last = i + 1 < segments.size() ? firstSequence(segments.get(i + 1)) - 1 : getLastSequence();
+            boolean current = i + 1 == segments.size() && running;
+            if (last <= snapshotSequence && !current)
+                Files.delete(segments.get(i));
+        }
+    }
+
+    /**
+     * apre un nuovo segmento
+     *
+     * @param firstSequence numero di sequenza del primo record del segmento
+     * @throws IOException errore nell'apertura del segmento
+     */
+    private void openSegment(long firstSequence) throws IOException {
+        Path segment = directory.resolve(String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        channelSize = channel.size();
+    }
+
+    /**
+     *
+     * @return segmenti del journal in ordine di numero di sequenza
+     * @throws IOException errore nella lettura della directory
+     */
+    private ArrayList<Path> segments() throws IOException {
+        ArrayList<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        segments.sort(Comparator.comparingLong(Journal::firstSequence));
+        return segments;
+    }
+
+    /**
+     *
+     * @param segment segmento del journal
+     * @return numero di sequenza del primo record del segmento
+     */
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * legge dal file a partire dalla posizione indicata finchè il buffer non è pieno o il file non è finito
+     *
+     * @return numero di byte letti
+     */
+    private static int readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + total);
+            if (read == -1)
+                break;
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,547 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.Card;
+import com.fram3.worth.Project;
+import com.fram3.worth.User;
+import com.fram3.worth.WorthImpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * PackedSnapshot modella lo snapshot dei dati del servizio in un unico file,
+ * scritto in modo sequenziale e caricato mappandolo in memoria.
+ * Il file inizia con un header (magic, versione, numero di sequenza del journal, offset dell'indice)
+ * seguito dagli utenti registrati, da una sezione per ogni progetto e infine dall'indice
+ * con nome, offset e lunghezza della sezione di ogni progetto.
+ * Le stringhe sono codificate in UTF-8 precedute dalla lunghezza, gli stati delle card con il loro ordinale
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class PackedSnapshot {
+
+    /** identifica un file di snapshot ("WRTH") */
+    private static final int MAGIC = 0x57525448;
+
+    /** versione del formato del file */
+    private static final int VERSION = 1;
+
+    /** dimensione dell'header: magic, versione, numero di sequenza e offset dell'indice */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /** dimensione minima di una stringa codificata, la sola lunghezza */
+    private static final int MIN_STRING_SIZE = Integer.BYTES;
+
+    /** dimensione minima di una card codificata: nome, descrizione, stato, numero di sequenza e transizioni */
+    private static final int MIN_CARD_SIZE = 2 * MIN_STRING_SIZE + 1 + Long.BYTES + Integer.BYTES;
+
+    /** dimensione minima di una voce dell'indice: nome, offset e lunghezza della sezione */
+    private static final int MIN_INDEX_ENTRY_SIZE = MIN_STRING_SIZE + Long.BYTES + Integer.BYTES;
+
+    private static final Card.Status[] cardStatuses = Card.Status.values();
+
+    /** funzionalità del servizio WORTH */
+    private final WorthImpl worth;
+
+    /** path del file di snapshot */
+    private final Path path;
+
+    /**
+     * mappatura in memoria e indice del file di snapshot corrente,
+     * null se il file non è stato ancora caricato o scritto
+     */
+    private volatile Mapping current;
+
+    /** true se il file è stato sostituito senza aggiornare la mappatura, usato solo da write() */
+    private boolean stale;
+
+    PackedSnapshot(WorthImpl worth, Path path) {
+        this.worth = worth;
+        this.path = path;
+    }
+
+    /**
+     *
+     * @return true se il file di snapshot esiste, anche se non è valido
+     */
+    boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * legge il numero di sequenza dall'header del file di snapshot
+     *
+     * @return numero di sequenza dell'ultimo record del journal incluso nello snapshot, -1 se il file non esiste o non è valido
+     */
+    long sequence() {
+        if (!Files.exists(path))
+            return -1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) != -1)
+                ;
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+                return -1;
+            return header.getLong();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * carica gli utenti e i progetti dal file di snapshot, mappandolo in memoria.
+     * Le sezioni dei progetti vengono decodificate in parallelo nel pool indicato,
+     * ognuna su una propria vista del buffer, e poi inserite nel servizio nell'ordine dell'indice.
+     * Se richiesto vengono caricati solo i membri dei progetti, le cards verranno lette con readCards().
+     * Una sezione illeggibile viene saltata senza interrompere il caricamento degli altri progetti
+     *
+     * @param pool pool in cui decodificare le sezioni dei progetti
+     * @param lazy true per non caricare le cards dei progetti
+     * @return true se sono stati caricati tutti i progetti, false se qualche sezione è stata saltata
+     * @throws IOException errore nella lettura del file oppure header, utenti o indice non validi
+     */
+    boolean load(ForkJoinPool pool, boolean lazy) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("PackedSnapshot: file oltre la dimensione massima mappabile");
+            //la mappatura resta valida anche dopo la chiusura del canale
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("PackedSnapshot: formato del file non valido");
+            in.getLong();
+            long indexOffset = in.getLong();
+            if (indexOffset < HEADER_SIZE || indexOffset > in.limit())
+                throw new IOException("PackedSnapshot: offset dell'indice non valido");
+            int usersCount = readCount(in, 2 * MIN_STRING_SIZE);
+            for (int i = 0; i < usersCount; i++) {
+                User user = new User(readString(in), readString(in));
+                worth.registerUser(user);
+            }
+            in.position((int) indexOffset);
+            int projectsCount = readCount(in, MIN_INDEX_ENTRY_SIZE);
+            LinkedHashMap<String, long[]> loaded = new LinkedHashMap<>();
+            for (int i = 0; i < projectsCount; i++) {
+                String name = readString(in);
+                loaded.put(name, new long[]{in.getLong(), in.getInt()});
+            }
+            List<Map.Entry<String, long[]>> sections = new ArrayList<>(loaded.entrySet());
+            List<Project> projects = pool.submit(() -> sections.parallelStream()
+                    .map(section -> tryReadProject(in, section.getKey(), section.getValue(), lazy))
+                    .collect(Collectors.toList())).get();
+            boolean complete = true;
+            for (Project project : projects) {
+                if (project == null) {
+                    complete = false;
+                    continue;
+                }
+                //all'avvio del server carico i progetti e assegno nuovi indirizzi di chat ad ognuno
+                worth.bindChatAddress(project);
+                worth.addProject(project);
+            }
+            current = new Mapping(in, loaded);
+            return complete;
+        } catch (RuntimeException e) {
+            throw new IOException("PackedSnapshot: file non valido", e);
+        } catch (ExecutionException e) {
+            throw new IOException("PackedSnapshot: file non valido", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PackedSnapshot: caricamento interrotto", e);
+        }
+    }
+
+    /**
+     * scrive lo snapshot in un file temporaneo e lo sostituisce al file corrente solo a scrittura completata.
+     * Le sezioni dei progetti non modificati dopo l'ultimo snapshot vengono copiate dal file corrente,
+     * le altre vengono codificate con il lock in scrittura del progetto. I progetti codificati non possono
+     * essere scaricati dalla memoria finchè il nuovo file non sostituisce quello corrente
+     *
+     * @param journalSequence numero di sequenza dell'ultimo record del journal incluso nello snapshot
+     * @param full true per codificare tutti i progetti, anche quelli non modificati
+     * @throws IOException errore nella scrittura del file
+     */
+    void write(long journalSequence, boolean full) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+        LinkedHashMap<String, long[]> written = new LinkedHashMap<>();
+        ArrayList<Project> encoded = new ArrayList<>();
+        HashMap<String, long[]> index = current != null ? current.index : null;
+        boolean replaced = false;
+        boolean installed = false;
+        full = full || stale;
+        FileChannel previous = null;
+        try {
+            previous = index != null && !full && Files.exists(path) ? FileChannel.open(path, StandardOpenOption.READ) : null;
+            writeFile(tmp, journalSequence, previous, index, written, encoded);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            replaced = true;
+            //le cards dei progetti scaricati dalla memoria vengono lette dal nuovo file
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                current = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), written);
+            }
+            installed = true;
+            stale = false;
+        } catch (IOException e) {
+            //il file è stato sostituito ma non mappato: l'indice corrente non corrisponde più al file,
+            //il prossimo snapshot va scritto per intero leggendo le cards dalla mappatura precedente
+            if (replaced)
+                stale = true;
+            throw e;
+        } finally {
+            if (previous != null)
+                previous.close();
+            for (Project project : encoded) {
+                long stamp = project.getLock().writeLock();
+                try {
+                    //i progetti codificati vanno riscritti al prossimo snapshot
+                    if (!replaced)
+                        project.markDirty(true, new ArrayList<>());
+                    //finchè il nuovo file non è mappato restano in memoria
+                    if (installed || !replaced)
+                        project.setSnapshotPending(false);
+                } finally {
+                    project.getLock().unlockWrite(stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * scrive lo snapshot nel file temporaneo
+     *
+     * @param tmp file temporaneo
+     * @param journalSequence numero di sequenza dell'ultimo record del journal incluso nello snapshot
+     * @param previous file corrente da cui copiare le sezioni dei progetti non modificati, null se assente
+     * @param index indice del file corrente
+     * @param written indice del nuovo file, riempito durante la scrittura
+     * @param encoded progetti codificati, riempito durante la scrittura
+     * @throws IOException errore nella scrittura del file
+     */
+    private void writeFile(Path tmp, long journalSequence, FileChannel previous, HashMap<String, long[]> index,
+                           LinkedHashMap<String, long[]> written, ArrayList<Project> encoded) throws IOException {
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output header = new Output(HEADER_SIZE);
+            header.buffer.position(HEADER_SIZE);
+            writeFully(out, header.buffer.flip());
+            //scrivo delle copie degli utenti, gli utenti registrati non hanno lock
+            ArrayList<User> users = new ArrayList<>(worth.getRegisteredUsers());
+            Output section = new Output(64 * 1024);
+            section.putInt(users.size());
+            for (User user : users) {
+                section.putString(user.getNickname());
+                section.putString(user.getPassword());
+            }
+            writeFully(out, section.buffer.flip());
+            for (Project project : worth.getCreatedProjects()) {
+                long offset = out.position();
+                long[] source = previous != null ? index.get(project.getName()) : null;
+                section.buffer.clear();
+                if (!encode(project, section, source == null)) {
+                    //il progetto è stato cancellato
+                    continue;
+                }
+                if (section.buffer.position() > 0) {
+                    encoded.add(project);
+                    writeFully(out, section.buffer.flip());
+                } else {
+                    //copio la sezione del progetto non modificato dal file corrente
+                    long copied = 0;
+                    while (copied < source[1])
+                        copied += previous.transferTo(source[0] + copied, source[1] - copied, out);
+                }
+                written.put(project.getName(), new long[]{offset, out.position() - offset});
+                checkSize(out);
+            }
+            long indexOffset = out.position();
+            section.buffer.clear();
+            section.putInt(written.size());
+            for (Map.Entry<String, long[]> entry : written.entrySet()) {
+                section.putString(entry.getKey());
+                section.ensure(Long.BYTES + Integer.BYTES);
+                section.buffer.putLong(entry.getValue()[0]).putInt((int) entry.getValue()[1]);
+            }
+            writeFully(out, section.buffer.flip());
+            checkSize(out);
+            header.buffer.clear();
+            header.buffer.putInt(MAGIC).putInt(VERSION).putLong(journalSequence).putLong(indexOffset);
+            out.position(0);
+            writeFully(out, header.buffer.flip());
+            out.force(true);
+        }
+    }
+
+    /**
+     * legge le cards del progetto dalla sua sezione nel file di snapshot corrente.
+     * La mappatura e l'indice vengono sostituiti insieme, così la sezione letta è sempre coerente
+     * anche se nel frattempo viene scritto un nuovo snapshot
+     *
+     * @param project progetto di cui leggere le cards
+     * @return cards del progetto, nell'ordine in cui erano state inserite
+     * @throws IOException progetto non presente nello snapshot oppure sezione non valida
+     */
+    ArrayList<Card> readCards(Project project) throws IOException {
+        Mapping mapping = current;
+        long[] section = mapping != null ? mapping.index.get(project.getName()) : null;
+        if (section == null)
+            throw new IOException("PackedSnapshot: progetto " + project.getName() + " non presente nello snapshot");
+        try {
+            ByteBuffer in = section(mapping.buffer, section);
+            //salto il nome, il numero di sequenza e i membri del progetto
+            readString(in);
+            in.getLong();
+            int membersCount = readCount(in, MIN_STRING_SIZE);
+            for (int i = 0; i < membersCount; i++)
+                readString(in);
+            return readCards(in);
+        } catch (RuntimeException e) {
+            throw new IOException("PackedSnapshot: sezione del progetto " + project.getName() + " non valida", e);
+        }
+    }
+
+    /**
+     * codifica il progetto se è stato modificato dopo l'ultimo snapshot oppure se richiesto,
+     * azzerandone i flag delle modifiche. Il flag viene controllato con il lock del progetto,
+     * così le modifiche già registrate nel journal sono visibili
+     *
+     * @param project progetto da codificare
+     * @param out buffer in cui codificare il progetto, lasciato vuoto se il progetto non va codificato
+     * @param force true per codificare il progetto anche se non è stato modificato
+     * @return false se il progetto è stato cancellato, true altrimenti
+     * @throws IOException errore nella lettura delle cards di un progetto scaricato dalla memoria
+     */
+    private boolean encode(Project project, Output out, boolean force) throws IOException {
+        long stamp = project.getLock().writeLock();
+        try {
+            if (project.isCancelled())
+                return false;
+            if (!project.isDirty() && !force)
+                return true;
+            //un progetto scaricato non è stato modificato, ma va codificato per intero
+            if (project.isEvicted())
+                project.hydrate(readCards(project));
+            project.takeMembersDirty();
+            project.takeDirtyCards();
+            project.setSnapshotPending(true);
+            out.putString(project.getName());
+            out.putLong(project.getSequence());
+            out.putInt(project.getMembers().size());
+            for (String member : project.getMembers())
+                out.putString(member);
+            out.putInt(project.getCardsCount());
+            for (Card card : project.getCards()) {
+                out.putString(card.getName());
+                out.putString(card.getDescription());
+                int transitions = card.getTransitionsCount();
+                out.ensure(1 + Long.BYTES + Integer.BYTES + transitions * Long.BYTES);
+                out.buffer.put((byte) card.getStatus().ordinal()).putLong(card.getSequence()).putInt(transitions);
+                for (int i = 0; i < transitions; i++)
+                    out.buffer.putLong(card.getTransition(i));
+            }
+            return true;
+        } finally {
+            project.getLock().unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * decodifica la sezione di un progetto su una propria vista del file
+     *
+     * @param in contenuto del file mappato in memoria
+     * @param name nome del progetto nell'indice
+     * @param section offset e lunghezza della sezione del progetto
+     * @param lazy true per non caricare le cards del progetto
+     * @return progetto letto, null se la sezione non è valida
+     */
+    private Project tryReadProject(ByteBuffer in, String name, long[] section, boolean lazy) {
+        try {
+            return readProject(section(in, section), lazy);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("PackedSnapshot: sezione del progetto " + name + " non valida, saltata");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Project readProject(ByteBuffer in, boolean lazy) throws IOException {
+        Project project = new Project(readString(in));
+        project.setSequence(in.getLong());
+        int membersCount = readCount(in, MIN_STRING_SIZE);
+        for (int i = 0; i < membersCount; i++)
+            project.addMember(readString(in));
+        if (lazy)
+            project.evict();
+        else
+            project.hydrate(readCards(in));
+        //quanto caricato è già sul disco
+        project.takeMembersDirty();
+        return project;
+    }
+
+    private ArrayList<Card> readCards(ByteBuffer in) throws IOException {
+        int cardsCount = readCount(in, MIN_CARD_SIZE);
+        ArrayList<Card> cards = new ArrayList<>(cardsCount);
+        for (int i = 0; i < cardsCount; i++) {
+            String name = readString(in);
+            String description = readString(in);
+            int ordinal = in.get();
+            if (ordinal < 0 || ordinal >= cardStatuses.length)
+                throw new IOException("PackedSnapshot: stato della card " + name + " non valido");
+            Card.Status status = cardStatuses[ordinal];
+            long sequence = in.getLong();
+            long[] transitions = new long[readCount(in, Long.BYTES)];
+            for (int j = 0; j < transitions.length; j++)
+                transitions[j] = in.getLong();
+            Card card = new Card(name, description, status, transitions);
+            card.setSequence(sequence);
+            cards.add(card);
+        }
+        return cards;
+    }
+
+    private String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > in.remaining())
+            throw new IOException("PackedSnapshot: lunghezza di una stringa non valida");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * legge il numero di elementi che seguono, controllando che possano essere contenuti nei bytes rimanenti
+     *
+     * @param in buffer da cui leggere
+     * @param minSize dimensione minima di un elemento codificato
+     * @return numero di elementi
+     * @throws IOException numero negativo o maggiore di quelli contenuti nei bytes rimanenti
+     */
+    private static int readCount(ByteBuffer in, int minSize) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minSize)
+            throw new IOException("PackedSnapshot: numero di elementi non valido");
+        return count;
+    }
+
+    /**
+     * restituisce una vista del file limitata alla sezione di un progetto,
+     * così la decodifica della sezione non può leggere oltre la sua fine
+     *
+     * @param in contenuto del file mappato in memoria
+     * @param section offset e lunghezza della sezione del progetto
+     * @return vista della sezione
+     * @throws IOException sezione non contenuta nel file
+     */
+    private static ByteBuffer section(ByteBuffer in, long[] section) throws IOException {
+        if (section[0] < HEADER_SIZE || section[1] < 0 || section[0] + section[1] > in.limit())
+            throw new IOException("PackedSnapshot: offset della sezione non valido");
+        return in.duplicate().limit((int) (section[0] + section[1])).position((int) section[0]);
+    }
+
+    /**
+     * controlla che il file scritto fin qui possa essere ancora mappato e indicizzato con offset a 32 bit
+     *
+     * @param out file in scrittura
+     * @throws IOException file oltre la dimensione massima
+     */
+    private static void checkSize(FileChannel out) throws IOException {
+        if (out.position() > Integer.MAX_VALUE)
+            throw new IOException("PackedSnapshot: snapshot oltre la dimensione massima di " + Integer.MAX_VALUE
+                    + " bytes");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Mapping modella la mappatura in memoria di un file di snapshot insieme al suo indice
+     */
+    private static class Mapping {
+
+        /** contenuto del file mappato in memoria */
+        private final ByteBuffer buffer;
+
+        /** offset e lunghezza della sezione di ogni progetto nel file */
+        private final HashMap<String, long[]> index;
+
+        Mapping(ByteBuffer buffer, HashMap<String, long[]> index) {
+            this.buffer = buffer;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Output modella il buffer in cui viene codificata una sezione del file,
+     * sostituito con uno più grande quando lo spazio non basta
+     */
+    private static class Output {
+
+        /** buffer in scrittura */
+        private ByteBuffer buffer;
+
+        Output(int capacity) {
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+
+        /**
+         * garantisce che nel buffer ci siano almeno size bytes liberi
+         *
+         * @param size numero di bytes da scrivere
+         */
+        void ensure(int size) {
+            if (buffer.remaining() >= size)
+                return;
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < size)
+                capacity *= 2;
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+}
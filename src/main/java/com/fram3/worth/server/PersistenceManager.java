@@ -4,18 +4,30 @@ import com.fram3.worth.Card;
 import com.fram3.worth.Project;
 import com.fram3.worth.User;
 import com.fram3.worth.WorthImpl;
-import com.google.gson.Gson;
+import com.fram3.worth.utils.JsonCodec;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * PersistenceManager modella il gestore della persistenza dei dati
@@ -24,7 +36,7 @@ import java.util.ArrayList;
  * @author Francesco Amodeo
  * @version 1.0
  */
-class PersistenceManager {
+class PersistenceManager implements ProjectCache.Loader {
 
     /** funzionalità del servizio WORTH */
     private final WorthImpl worth;
@@ -35,38 +47,114 @@ class PersistenceManager {
     /** nome file che conserva i dati dei membri di un progetto */
     private final String membersFilename;
 
-    /** dimensione per l'allocazione dei buffer */
-    private final int DIM_BUFFER;
+    /** nome file che conserva il numero di sequenza dell'ultimo record del journal incluso nello snapshot */
+    private final String sequenceFilename;
+
+    /** nome file che conserva il numero di sequenza nel journal della creazione di un progetto */
+    private final String projectFilename;
+
+    /** nome della directory in cui spostare i progetti cancellati prima di eliminarli */
+    private final String trashDirectory;
+
+    /** nome della sottodirectory di un progetto che contiene un file per ogni card,
+     *  separata dai file del progetto così il nome di una card non può coincidere con uno di essi */
+    private final String cardsDirectory;
 
     /** stringa corrispondente al path dove salvare i dati */
     private final String root;
+
+    /** snapshot dei dati in un unico file, alternativo alla directory con un file per ogni card */
+    private final PackedSnapshot packed;
+
+    /** true se gli snapshot vengono scritti nel file unico, false se nella directory con un file per ogni card */
+    private final boolean packedEnabled;
+
+    /** true se all'avvio vengono caricati solo i membri dei progetti e le cards vengono lette su richiesta */
+    private final boolean lazy;
+
+    /** numero di thread usati per leggere i progetti all'avvio */
+    private final int loaderThreads;
+
+    /** pool in cui vengono letti i progetti, esiste solo durante il caricamento dei dati */
+    private ForkJoinPool loaderPool;
+
+    /** millisecondi impiegati dall'ultimo caricamento dei dati */
+    private long loadMillis;
+
+    /** true se l'ultimo caricamento non ha potuto leggere tutti gli utenti e i progetti dello snapshot */
+    private volatile boolean loadIncomplete;
     
-    PersistenceManager(WorthImpl worth, String usersFilename, String membersFilename){
+    PersistenceManager(WorthImpl worth, String usersFilename, String membersFilename, boolean packedEnabled,
+                       boolean lazy, int loaderThreads){
         this.worth = worth;
         this.usersFilename = usersFilename + ".json";
         this.membersFilename = membersFilename + ".json";
+        this.sequenceFilename = "journal.json";
+        this.projectFilename = ".project.json";
+        this.trashDirectory = ".trash";
+        this.cardsDirectory = "cards";
         root = "src" + File.separator + "main" + File.separator + "resources";
-        DIM_BUFFER = 1024 * 8;
+        this.packed = new PackedSnapshot(worth, Paths.get(root, "snapshot.pack"));
+        this.packedEnabled = packedEnabled;
+        this.lazy = lazy;
+        this.loaderThreads = Math.max(1, loaderThreads);
     }
 
     /**
-     * effettua una cleanup della directory usata per persistere i dati
-     * e la ricrea scrivendo i dati degli utenti e dei progetti */
-    void saveResources() {
-        Path rootPath = Paths.get(root);
+     * scrive uno snapshot incrementale dei dati: riscrive solo il file degli utenti se sono cambiati,
+     * i membri e le cards modificate dei progetti dopo l'ultimo snapshot e sposta nel cestino le directory
+     * dei progetti cancellati. Ogni file viene scritto in un file temporaneo e poi rinominato,
+     * così un'interruzione durante il salvataggio non lascia mai file cancellati o scritti a metà
+     *
+     * @param journalSequence numero di sequenza dell'ultimo record del journal incluso nello snapshot
+     * @return true se lo snapshot è stato scritto, false altrimenti
+     */
+    synchronized boolean saveResources(long journalSequence) {
+        if (packedEnabled)
+            return savePacked(journalSequence);
         try {
-            if (Files.isDirectory(rootPath))
-                //cleanup della directory usata oer salvare i dati
-                if(!deleteDirectory(root))
-                    throw new IOException("Persistence Manager: Errore cleanup della directory");
-            Files.createDirectory(rootPath);
-            //scrive il file degli utenti registrati
-            writeUsers();
-            //crea le directory dei progetti con i relativi file all'interno
+            Files.createDirectories(Paths.get(root));
+            HashMap<String, Project> projects = new HashMap<>();
             for (Project project : worth.getCreatedProjects())
-                createProjectDirectory(project);
+                projects.put(project.getName(), project);
+            //le directory dei progetti cancellati vengono spostate nel cestino con una rename atomica
+            //e poi cancellate, a meno che nel frattempo non sia stato creato un progetto con lo stesso nome
+            for (String name : worth.takeRemovedProjects()) {
+                if (!projects.containsKey(name))
+                    trashDirectory(root + File.separator + name);
+            }
+            for (Project project : projects.values()) {
+                if (project.isDirty())
+                    writeProject(project);
+            }
+            if (worth.takeUsersDirty())
+                writeUsers();
+            //il numero di sequenza viene scritto per ultimo: i record successivi sono ancora nel journal
+            writeFile(root + File.separator + sequenceFilename, journalSequence);
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * scrive lo snapshot nel file unico. Gli utenti vengono sempre riscritti, le sezioni dei progetti
+     * non modificati vengono copiate dal file precedente e quelle dei progetti cancellati omesse
+     *
+     * @param journalSequence numero di sequenza dell'ultimo record del journal incluso nello snapshot
+     * @return true se lo snapshot è stato scritto, false altrimenti
+     */
+    private boolean savePacked(long journalSequence) {
+        worth.takeRemovedProjects();
+        worth.takeUsersDirty();
+        try {
+            packed.write(journalSequence, false);
+            return true;
+        } catch (IOException e) {
+            worth.markUsersDirty();
+            e.printStackTrace();
+            return false;
         }
     }
 
@@ -76,34 +164,230 @@ class PersistenceManager {
      * @throws IOException propagata da writeFile()
      */
     private void writeUsers() throws IOException {
-        synchronized (worth.getRegisteredUsers()) {
-            for (User user : worth.getRegisteredUsers()) {
-                user.setUsersList(new ArrayList<>());
-                user.setChats(new ArrayList<>());
+        //scrivo delle copie degli utenti senza le liste degli utenti e delle chat, che non vanno persistite
+        ArrayList<User> users = new ArrayList<>();
+        for (User user : worth.getRegisteredUsers())
+            users.add(new User(user.getNickname(), user.getPassword()));
+        try {
+            writeFile(root + File.separator + usersFilename, users);
+        } catch (IOException e) {
+            //gli utenti verranno riscritti al prossimo snapshot
+            worth.markUsersDirty();
+            throw e;
+        }
+    }
+
+    /**
+     * scrive i membri e le cards modificate del progetto. Lo stato da scrivere viene convertito in json
+     * con il lock in scrittura del progetto, che viene rilasciato prima delle operazioni sul disco.
+     * Finchè la scrittura non termina il progetto non può essere scaricato dalla memoria,
+     * altrimenti verrebbe ricaricato dai file precedenti
+     *
+     * @param project progetto modificato dopo l'ultimo snapshot
+     * @throws IOException errore nella creazione della directory oppure propagata da writeFile()
+     */
+    private void writeProject(Project project) throws IOException {
+        String members = null;
+        ArrayList<Card> dirtyCards;
+        ArrayList<String> cards = new ArrayList<>();
+        long stamp = project.getLock().writeLock();
+        try {
+            if (project.isCancelled())
+                return;
+            if (project.takeMembersDirty())
+                members = JsonCodec.GSON.toJson(project.getMembers());
+            dirtyCards = project.takeDirtyCards();
+            for (Card card : dirtyCards)
+                cards.add(JsonCodec.GSON.toJson(card));
+            project.setSnapshotPending(true);
+        } finally {
+            project.getLock().unlockWrite(stamp);
+        }
+        boolean written = false;
+        String projectPathName = root + File.separator + project.getName();
+        String cardsPathName = projectPathName + File.separator + cardsDirectory;
+        Path sequencePath = Paths.get(projectPathName + File.separator + projectFilename);
+        try {
+            //una directory con un numero di sequenza diverso appartiene a un progetto omonimo cancellato
+            if (Files.exists(sequencePath)
+                    && JsonCodec.GSON.fromJson(readFile(sequencePath.toString()), Long.class) != project.getSequence())
+                trashDirectory(projectPathName);
+            Files.createDirectories(Paths.get(cardsPathName));
+            writeFile(sequencePath.toString(), project.getSequence());
+            if (members != null)
+                writeString(projectPathName + File.separator + membersFilename, members);
+            for (int i = 0; i < cards.size(); i++)
+                writeString(cardsPathName + File.separator + dirtyCards.get(i).getName() + ".json", cards.get(i));
+            written = true;
+        } finally {
+            stamp = project.getLock().writeLock();
+            try {
+                //le modifiche non scritte verranno riscritte al prossimo snapshot
+                if (!written)
+                    project.markDirty(members != null, dirtyCards);
+                project.setSnapshotPending(false);
+            } finally {
+                project.getLock().unlockWrite(stamp);
             }
-            writeFile(root + File.separator + usersFilename, worth.getRegisteredUsers());
+        }
+    }
+
+    /**
+     * effettua il caricamento dei dati degli utenti e dei progetti dallo snapshot più recente
+     * tra il file unico e la directory usata per persistere i dati. Se lo snapshot più recente
+     * non è nel formato in uso, tutti i dati caricati vengono segnati come modificati
+     * così il prossimo snapshot li riscrive per intero nel formato in uso (import/export)
+     *
+     * @return numero di sequenza dell'ultimo record del journal incluso nello snapshot caricato
+     */
+    long loadResources() {
+        long start = System.nanoTime();
+        loadIncomplete = false;
+        loaderPool = new ForkJoinPool(loaderThreads);
+        try {
+            return load();
+        } finally {
+            loaderPool.shutdown();
+            loaderPool = null;
+            loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return millisecondi impiegati dall'ultimo caricamento dei dati
+     */
+    long getLoadMillis() {
+        return loadMillis;
+    }
+
+    /**
+     * @return true se l'ultimo caricamento ha saltato dati illeggibili dello snapshot: lo stato in memoria
+     *         è incompleto e il journal resta l'unica copia delle modifiche successive allo snapshot
+     */
+    boolean isLoadIncomplete() {
+        return loadIncomplete;
+    }
+
+    /**
+     * carica lo snapshot più recente e ne restituisce il numero di sequenza, vedi loadResources().
+     * Se lo snapshot più recente non è leggibile non si ripiega su quello nell'altro formato:
+     * è più vecchio e i record del journal successivi ad esso sono già stati rilasciati.
+     * Il caricamento viene segnato come incompleto, così lo snapshot illeggibile e il journal vengono conservati
+     *
+     * @return numero di sequenza dell'ultimo record del journal incluso nello snapshot caricato
+     */
+    private long load() {
+        long packedSequence = packed.sequence();
+        long directorySequence = directorySequence();
+        if (packedEnabled && packedSequence < 0 && packed.exists()) {
+            System.err.println("Persistence Manager: header dello snapshot nel file unico non valido");
+            loadIncomplete = true;
+            return 0;
+        }
+        boolean fromPacked = packedEnabled
+                ? packedSequence >= 0 && packedSequence >= directorySequence
+                : packedSequence > directorySequence;
+        long journalSequence;
+        //le cards vengono lette su richiesta solo dallo snapshot nel formato in uso
+        if (fromPacked) {
+            try {
+                if (!packed.load(loaderPool, lazy && packedEnabled))
+                    loadIncomplete = true;
+            } catch (IOException e) {
+                System.err.println("Persistence Manager: snapshot nel file unico non leggibile");
+                e.printStackTrace();
+                loadIncomplete = true;
+            }
+            journalSequence = packedSequence;
+        } else {
+            journalSequence = loadDirectory(lazy && !packedEnabled);
+        }
+        if (fromPacked != packedEnabled) {
+            //importo o esporto lo snapshot nel formato in uso
+            worth.markUsersDirty();
+            for (Project project : worth.getCreatedProjects())
+                project.markDirty(true, project.getCards());
+        }
+        return journalSequence;
+    }
+
+    /**
+     * legge il numero di sequenza dello snapshot scritto nella directory usata per persistere i dati
+     *
+     * @return numero di sequenza dell'ultimo record del journal incluso nello snapshot, -1 se la directory non esiste
+     */
+    private long directorySequence() {
+        if (!new File(root).isDirectory())
+            return -1;
+        Path sequencePath = Paths.get(root + File.separator + sequenceFilename);
+        if (!Files.exists(sequencePath))
+            return 0;
+        try {
+            return JsonCodec.GSON.fromJson(readFile(sequencePath.toString()), Long.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
         }
     }
 
     /**
      * effettua il caricamento dei dati degli utenti e dei progetti
-     * salvati nella directory usata per persistere i dati */
-    void loadResources() {
+     * salvati nella directory usata per persistere i dati
+     *
+     * @param lazy true per non caricare le cards dei progetti, che verranno lette con loadCards()
+     * @return numero di sequenza dell'ultimo record del journal incluso nello snapshot caricato
+     */
+    private long loadDirectory(boolean lazy) {
         File rootDirectory = new File(root);
         if (!rootDirectory.isDirectory())
-            return;
+            return 0;
+        long journalSequence = 0;
         try {
-            loadUsers();
+            //completo la cancellazione dei progetti interrotta da un crash
+            deleteDirectory(root + File.separator + trashDirectory);
+            if (Files.exists(Paths.get(root + File.separator + sequenceFilename)))
+                journalSequence = JsonCodec.GSON.fromJson(readFile(root + File.separator + sequenceFilename), Long.class);
+            if (Files.exists(Paths.get(root + File.separator + usersFilename)))
+                loadUsers();
             String[] files = rootDirectory.list();
             assert files != null;
-            for (String filename : files) {
-                File file = new File(root + File.separator + filename);
-                if (file.isDirectory())
-                    loadProject(file);
+            //i progetti vengono letti in ordine di nome, così gli indirizzi delle chat assegnati sono deterministici.
+            //I nuovi progetti non possono avere nomi che iniziano con un punto, ma quelli creati prima
+            //del controllo vengono comunque caricati
+            List<File> directories = Arrays.stream(files).sorted()
+                    .filter(filename -> !filename.equals(trashDirectory))
+                    .map(filename -> new File(root + File.separator + filename))
+                    .filter(File::isDirectory)
+                    .collect(Collectors.toList());
+            //le directory (e le card di ogni directory) vengono lette e convertite in parallelo,
+            //poi i progetti vengono inseriti nel servizio da questo thread nell'ordine della lista.
+            //Un progetto illeggibile viene saltato senza interrompere il caricamento degli altri
+            List<Project> projects = loaderPool.submit(() -> directories.parallelStream()
+                    .map(directory -> tryReadProject(directory, lazy))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())).get();
+            for (Project project : projects) {
+                //all'avvio del server carico i progetti e assegno nuovi indirizzi di chat ad ognuno
+                worth.bindChatAddress(project);
+                worth.addProject(project);
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
+            loadIncomplete = true;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            loadIncomplete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            loadIncomplete = true;
         }
+        //quanto caricato è già sul disco
+        worth.takeUsersDirty();
+        for (Project project : worth.getCreatedProjects()) {
+            project.takeMembersDirty();
+            project.takeDirtyCards();
+        }
+        return journalSequence;
     }
 
     /**
@@ -113,67 +397,194 @@ class PersistenceManager {
      */
     private void loadUsers() throws IOException {
         String str = readFile(root + File.separator + usersFilename);
-        Gson gson = new Gson();
-        User[] users = gson.fromJson(str, User[].class);
+        User[] users = JsonCodec.GSON.fromJson(str, User[].class);
         for (User user : users) {
             //all'avvio del server, prima di caricare un utente registrato lo mettiamo offline
             user.setOnline(false);
-            worth.getRegisteredUsers().add(user);
+            worth.registerUser(user);
+        }
+    }
+
+    /**
+     * legge i dati del progetto dalla relativa directory, segnando il caricamento come incompleto
+     * se non è stato possibile leggerli
+     *
+     * @param projectDirectory directory che contiene i dati del progetto
+     * @param lazy true per leggere solo i membri, le cards verranno lette con loadCards()
+     * @return progetto letto, null se la directory è illeggibile o creata da uno snapshot interrotto
+     */
+    private Project tryReadProject(File projectDirectory, boolean lazy) {
+        try {
+            return readProject(projectDirectory, lazy);
+        } catch (RuntimeException e) {
+            System.err.println("Persistence Manager: progetto " + projectDirectory.getName() + " non leggibile, saltato");
+            e.printStackTrace();
+            loadIncomplete = true;
+            return null;
         }
     }
 
     /**
-     * carica i dati del progetto dalla relativa directory ricostruendo lo stato
+     * legge i dati del progetto dalla relativa directory ricostruendo lo stato
      * del progetto ricreando tutte le card con i relativi dettagli e riempiendo la lista
-     * dei membri del progetto. Infine assegna un indirizzo multicast disponibile alla chat di progetto
+     * dei membri del progetto. Le card vengono lette e convertite in parallelo
      *
      * @param projectDirectory directory che contiene i dati del progetto
-     * @throws IOException propagata da readFile()
+     * @param lazy true per leggere solo i membri, le cards verranno lette con loadCards()
+     * @return progetto letto, null se la directory è stata creata da uno snapshot interrotto
+     * @throws UncheckedIOException errore nella lettura di un file del progetto
      */
-    private void loadProject(File projectDirectory) throws IOException {
+    private Project readProject(File projectDirectory, boolean lazy) {
         Project project = new Project(projectDirectory.getName());
         // leggo i membri del progetto
         String projectPathName = root + File.separator + projectDirectory.getName();
         String membersPathName = projectPathName + File.separator + membersFilename;
-        String str = readFile(membersPathName);
-        Gson gson = new Gson();
-        String[] members = gson.fromJson(str, String[].class);
-        for (String member : members) {
-            project.getMembers().add(member);
-        }
-        // leggo le card del progetto
-        String[] files = projectDirectory.list();
-        assert files != null;
+        //una directory senza il file dei membri è stata creata da uno snapshot interrotto
+        if (!Files.exists(Paths.get(membersPathName)))
+            return null;
+        try {
+            String str = readFile(membersPathName);
+            String[] members = JsonCodec.GSON.fromJson(str, String[].class);
+            for (String member : members) {
+                project.addMember(member);
+            }
+            //le directory scritte prima del journal non hanno il numero di sequenza e valgono per tutti i record
+            String sequencePathName = projectPathName + File.separator + projectFilename;
+            if (Files.exists(Paths.get(sequencePathName)))
+                project.setSequence(JsonCodec.GSON.fromJson(readFile(sequencePathName), Long.class));
+            String cardsPathName = projectPathName + File.separator + cardsDirectory;
+            Files.createDirectories(Paths.get(cardsPathName));
+            //i file temporanei sono scritture interrotte, il file precedente è ancora valido
+            deleteTemporaryFiles(projectPathName);
+            deleteTemporaryFiles(cardsPathName);
+            moveLegacyCards(projectPathName, cardsPathName);
+            if (lazy)
+                project.evict();
+            else
+                //la card viene inserita nell'ultima lista in cui si trovava
+                project.hydrate(readCards(projectPathName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return project;
+    }
+
+    /**
+     * cancella i file temporanei lasciati nella directory da scritture interrotte
+     *
+     * @param pathName directory da ripulire
+     * @throws IOException errore nella cancellazione di un file
+     */
+    private void deleteTemporaryFiles(String pathName) throws IOException {
+        String[] files = new File(pathName).list();
+        if (files == null)
+            throw new IOException("Persistence Manager: directory " + pathName + " non trovata");
+        for (String filename : files) {
+            if (filename.endsWith(".tmp"))
+                Files.deleteIfExists(Paths.get(pathName + File.separator + filename));
+        }
+    }
+
+    /**
+     * sposta nella sottodirectory delle cards i file delle cards salvati nella directory del progetto
+     * dalle versioni precedenti. Ogni file viene spostato con una rename atomica, così un'interruzione
+     * lascia le cards rimanenti nella directory del progetto e lo spostamento riprende al caricamento successivo.
+     * Se la sottodirectory contiene già la card, il file nella directory del progetto è più vecchio e viene cancellato
+     *
+     * @param projectPathName directory del progetto
+     * @param cardsPathName sottodirectory delle cards del progetto
+     * @throws IOException errore nello spostamento di un file
+     */
+    private void moveLegacyCards(String projectPathName, String cardsPathName) throws IOException {
+        String[] files = new File(projectPathName).list();
+        if (files == null)
+            throw new IOException("Persistence Manager: directory del progetto non trovata");
         for (String filename : files) {
-            if (!filename.equals(membersFilename)) {
-                str = readFile(projectPathName + File.separator + filename);
-                Card card = gson.fromJson(str, Card.class);
-                //prendiamo da ogni card l'ultima lista in cui si trovava
-                project.parseList(card.getLocation()).add(card);
-                project.getCards().add(card);
+            Path source = Paths.get(projectPathName + File.separator + filename);
+            if (!filename.endsWith(".json") || filename.equals(membersFilename) || filename.equals(projectFilename)
+                    || !Files.isRegularFile(source))
+                continue;
+            try {
+                Files.move(source, Paths.get(cardsPathName + File.separator + filename), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.delete(source);
             }
         }
-        //all'avvio del server carico i progetti e assegno nuovi indirizzi di chat ad ognuno
-        worth.bindChatAddress(project);
-        worth.getCreatedProjects().add(project);
     }
 
     /**
-     * crea la directory del progetto con nome del progetto, crea il file dei membri
+     * legge le cards del progetto dall'ultimo snapshot, usato per i progetti scaricati dalla memoria
      *
-     * e un file per ogni card con il rispettivo nome
-     * @param project progetto di cui creare la directory
-     * @throws IOException errore nella creazione della directory oppure propagata da writeFile()
+     * @param project progetto di cui leggere le cards
+     * @return cards del progetto
+     * @throws IOException errore nella lettura delle cards
      */
-    private void createProjectDirectory(Project project) throws IOException {
-        // creo la directory del progetto
-        Path projectPath = Paths.get(root + File.separator + project.getName());
-        Files.createDirectory(projectPath);
-        // creo un file con tutti i nickname dei membri del progetto
-        writeFile(projectPath.toString() + File.separator + membersFilename, project.getMembers());
-        // creo i file delle carte
-        for (Card card : project.getCards())
-            writeFile(projectPath.toString() + File.separator + card.getName() + ".json", card);
+    @Override
+    public List<Card> loadCards(Project project) throws IOException {
+        if (packedEnabled)
+            return packed.readCards(project);
+        return readCards(root + File.separator + project.getName());
+    }
+
+    /**
+     * legge e converte in parallelo le cards dalla directory di un progetto, in ordine di nome del file
+     *
+     * @param projectPathName directory che contiene i dati del progetto
+     * @return cards del progetto
+     * @throws IOException errore nella lettura di un file
+     */
+    private List<Card> readCards(String projectPathName) throws IOException {
+        String cardsPathName = projectPathName + File.separator + cardsDirectory;
+        String[] files = new File(cardsPathName).list();
+        if (files == null)
+            throw new IOException("Persistence Manager: directory delle cards del progetto non trovata");
+        ArrayList<String> cardFiles = new ArrayList<>();
+        for (String filename : files) {
+            if (filename.endsWith(".json"))
+                cardFiles.add(filename);
+        }
+        Collections.sort(cardFiles);
+        try {
+            return cardFiles.parallelStream()
+                    .map(filename -> readCard(cardsPathName + File.separator + filename))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * legge una card dal file nel path indicato
+     *
+     * @param pathName path in cui si trova il file della card
+     * @return card letta dal file
+     * @throws UncheckedIOException errore nella lettura del file
+     */
+    private Card readCard(String pathName) {
+        try {
+            return JsonCodec.GSON.fromJson(readFile(pathName), Card.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * sposta una directory nel cestino con una rename atomica e poi la cancella,
+     * così un'interruzione non lascia mai una directory cancellata a metà
+     *
+     * @param directory stringa corrispondente alla directory da cancellare
+     * @throws IOException errore nello spostamento della directory
+     */
+    private void trashDirectory(String directory) throws IOException {
+        Path source = Paths.get(directory);
+        if (!Files.exists(source))
+            return;
+        Path trash = Paths.get(root + File.separator + trashDirectory);
+        Files.createDirectories(trash);
+        Path target = trash.resolve(source.getFileName() + "-" + System.nanoTime());
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        if (!deleteDirectory(target.toString()))
+            throw new IOException("Persistence Manager: Errore cleanup della directory");
     }
 
     /**
@@ -199,16 +610,30 @@ class PersistenceManager {
      *
      * @param pathName path in cui creare il file
      * @param objToWrite oggetto da convertire in json e scrivere
-     * @throws IOException errore nelle operazioni di scrittura nel canale
+     * @throws IOException propagata da writeString()
      */
     private void writeFile(String pathName, Object objToWrite) throws IOException {
+        writeString(pathName, JsonCodec.GSON.toJson(objToWrite));
+    }
+
+    /**
+     * scrive una stringa in un file temporaneo, lo forza sul disco e lo rinomina nel path indicato,
+     * così il file viene sostituito solo a scrittura completata
+     *
+     * @param pathName path in cui creare il file
+     * @param str stringa da scrivere
+     * @throws IOException errore nelle operazioni di scrittura nel canale o nella rename
+     */
+    private void writeString(String pathName, String str) throws IOException {
         Path path = Paths.get(pathName);
-        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        Gson gson = new Gson();
-        String str = gson.toJson(objToWrite);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
-        while (byteBuffer.hasRemaining())
-            fileChannel.write(byteBuffer);
+        Path tmp = Paths.get(pathName + ".tmp");
+        try (FileChannel fileChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+            while (byteBuffer.hasRemaining())
+                fileChannel.write(byteBuffer);
+            fileChannel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
     /**
@@ -220,17 +645,14 @@ class PersistenceManager {
      */
     private String readFile(String filename) throws IOException {
         Path path = Paths.get(filename);
-        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(DIM_BUFFER);
-        StringBuilder stringBuilder = new StringBuilder();
-        while (fileChannel.read(byteBuffer) != -1) {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //i file delle card sono piccoli, il buffer ha esattamente la dimensione del file
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) fileChannel.size());
+            while (fileChannel.read(byteBuffer) != -1 && byteBuffer.hasRemaining())
+                ;
             byteBuffer.flip();
-            while (byteBuffer.hasRemaining()) {
-                stringBuilder.append(StandardCharsets.UTF_8.decode(byteBuffer).toString());
-            }
-            byteBuffer.clear();
+            return StandardCharsets.UTF_8.decode(byteBuffer).toString();
         }
-        return stringBuilder.toString();
     }
 
 }
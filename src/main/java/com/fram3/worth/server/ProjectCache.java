@@ -0,0 +1,229 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.Card;
+import com.fram3.worth.Project;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * ProjectCache modella l'insieme dei progetti le cui cards sono in memoria.
+ * All'avvio vengono caricati solo i nomi, i membri e gli indirizzi di chat dei progetti:
+ * le cards di un progetto vengono lette dalla persistenza la prima volta che una richiesta lo usa.
+ * I progetti in memoria sono ordinati per ultimo utilizzo (LRU) e quando la loro occupazione stimata
+ * supera il budget le cards dei progetti usati meno di recente, se non modificati dopo l'ultimo snapshot,
+ * vengono scaricate dalla memoria
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ProjectCache {
+
+    /** stima dell'occupazione in memoria di un progetto senza cards */
+    private static final long PROJECT_BYTES = 1024;
+
+    /** stima dell'occupazione in memoria di una card con il suo storico */
+    private static final long CARD_BYTES = 512;
+
+    /**
+     * Loader modella la lettura dalla persistenza delle cards di un progetto
+     */
+    public interface Loader {
+
+        /**
+         * legge le cards del progetto dall'ultimo snapshot
+         *
+         * @param project progetto di cui leggere le cards
+         * @return cards del progetto, nell'ordine in cui erano state inserite
+         * @throws IOException errore nella lettura delle cards
+         */
+        Collection<Card> loadCards(Project project) throws IOException;
+    }
+
+    /** lettore delle cards dalla persistenza */
+    private final Loader loader;
+
+    /** occupazione stimata in bytes oltre la quale i progetti vengono scaricati */
+    private final long budget;
+
+    /**
+     * progetti in memoria indicizzati per nome, dal meno al più recentemente usato,
+     * con la loro occupazione stimata
+     */
+    private final LinkedHashMap<String, Resident> resident;
+
+    /** occupazione stimata dei progetti in memoria */
+    private long residentBytes;
+
+    /** richieste che hanno trovato le cards del progetto in memoria */
+    private final AtomicLong hits;
+
+    /** richieste che hanno dovuto leggere le cards del progetto dalla persistenza */
+    private final AtomicLong misses;
+
+    /** progetti scaricati dalla memoria */
+    private final AtomicLong evictions;
+
+    public ProjectCache(Loader loader, long budget) {
+        this.loader = loader;
+        this.budget = budget;
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * garantisce che le cards del progetto siano in memoria, leggendole dalla persistenza se necessario.
+     * Le cards vengono lette senza lock e installate con il lock in scrittura del progetto solo se
+     * nel frattempo il progetto non è stato caricato o scaricato da un altro thread.
+     * Va invocato senza lock del progetto acquisiti
+     *
+     * @param project progetto usato da una richiesta
+     * @return false se non è stato possibile leggere le cards dalla persistenza, true altrimenti
+     */
+    public boolean hydrate(Project project) {
+        if (!project.isEvicted()) {
+            hits.incrementAndGet();
+            touch(project);
+            return true;
+        }
+        misses.incrementAndGet();
+        StampedLock lock = project.getLock();
+        while (project.isEvicted() && !project.isCancelled()) {
+            int epoch = project.getEvictions();
+            Collection<Card> cards;
+            try {
+                cards = loader.loadCards(project);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            long stamp = lock.writeLock();
+            try {
+                //se il progetto è stato scaricato di nuovo le cards lette potrebbero essere vecchie
+                if (project.isEvicted() && project.getEvictions() == epoch)
+                    project.hydrate(cards);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        touch(project);
+        return true;
+    }
+
+    /**
+     * scarica dalla memoria i progetti usati meno di recente finchè l'occupazione stimata
+     * non rientra nel budget. Invocato anche dopo ogni snapshot, quando i progetti modificati
+     * tornano a poter essere scaricati
+     */
+    public synchronized void trim() {
+        trim(null);
+    }
+
+    /**
+     *
+     * @return richieste che hanno trovato le cards del progetto in memoria
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return richieste che hanno dovuto leggere le cards del progetto dalla persistenza
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return progetti scaricati dalla memoria
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     *
+     * @return occupazione stimata in bytes dei progetti in memoria
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * segna il progetto come il più recentemente usato, aggiorna la sua occupazione stimata
+     * e scarica i progetti in eccesso
+     *
+     * @param project progetto usato da una richiesta
+     */
+    private synchronized void touch(Project project) {
+        long weight = PROJECT_BYTES + CARD_BYTES * project.getCardsCount();
+        //un progetto omonimo di uno cancellato prende il suo posto
+        Resident previous = resident.put(project.getName(), new Resident(project, weight));
+        residentBytes += weight - (previous != null ? previous.weight : 0);
+        if (residentBytes > budget)
+            trim(project);
+    }
+
+    /**
+     * scarica i progetti usati meno di recente finchè l'occupazione stimata non rientra nel budget.
+     * I progetti modificati dopo l'ultimo snapshot, quelli con uno snapshot in scrittura
+     * e quelli il cui lock è occupato vengono saltati
+     *
+     * @param keep progetto da non scaricare perchè appena usato, null se nessuno
+     */
+    private void trim(Project keep) {
+        Iterator<Map.Entry<String, Resident>> iterator = resident.entrySet().iterator();
+        while (residentBytes > budget && iterator.hasNext()) {
+            Resident entry = iterator.next().getValue();
+            Project project = entry.project;
+            if (project == keep)
+                continue;
+            if (project.isCancelled()) {
+                iterator.remove();
+                residentBytes -= entry.weight;
+                continue;
+            }
+            StampedLock lock = project.getLock();
+            long stamp = lock.tryWriteLock();
+            if (stamp == 0L)
+                continue;
+            try {
+                //le modifiche prese da uno snapshot non ancora scritto non sono nella persistenza
+                if (!project.isEvictable())
+                    continue;
+                project.evict();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            iterator.remove();
+            residentBytes -= entry.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Resident modella un progetto in memoria con la sua occupazione stimata
+     */
+    private static class Resident {
+
+        /** progetto in memoria */
+        private final Project project;
+
+        /** occupazione stimata in bytes del progetto al suo ultimo utilizzo */
+        private final long weight;
+
+        Resident(Project project, long weight) {
+            this.project = project;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.Chat;
+import com.fram3.worth.Roster;
+import com.fram3.worth.Worth.EventType;
+import com.fram3.worth.client.Client;
+import com.fram3.worth.utils.BufferPool;
+import com.fram3.worth.utils.Message;
+import com.fram3.worth.utils.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/**
+ * PushClient modella un client iscritto alle callbacks sulla connessione tcp che ha già aperto con il server.
+ * Implementa l'interfaccia Client come uno stub RMI, così il CallbackDispatcher lo serve allo stesso modo,
+ * ma ogni callback viene codificata come un messaggio di evento e accodata nella connessione,
+ * da cui il reactor la scrive sul canale insieme ai responsi. Il client non apre un server RMI
+ * e il server non apre connessioni verso il client.
+ * Se la connessione è chiusa o il client non legge gli eventi accodati, la callback fallisce come
+ * una callback RMI verso un client non raggiungibile e il dispatcher deregistra il client
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class PushClient implements Client {
+
+    /** connessione su cui accodare gli eventi */
+    private final Connection connection;
+
+    /** chiave del canale della connessione */
+    private final SelectionKey key;
+
+    /** reactor che possiede il canale, a cui segnalare gli eventi accodati */
+    private final Reactor reactor;
+
+    /** pool dei buffer dei messaggi */
+    private final BufferPool pool;
+
+    /** bytes accodati nella connessione oltre i quali il client è considerato non raggiungibile */
+    private final long maxQueuedBytes;
+
+    PushClient(Connection connection, SelectionKey key, Reactor reactor, BufferPool pool, long maxQueuedBytes) {
+        this.connection = connection;
+        this.key = key;
+        this.reactor = reactor;
+        this.pool = pool;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    @Override
+    public void notifyUserEvent(Roster roster, long version) throws RemoteException {
+        Message event = event(EventType.USERS, version);
+        event.setRoster(roster);
+        push(event);
+    }
+
+    @Override
+    public void notifyChatsEvent(ArrayList<Chat> chats, long version) throws RemoteException {
+        Message event = event(EventType.CHATS, version);
+        event.setChats(chats);
+        push(event);
+    }
+
+    @Override
+    public void userRegistered(String nickname, long version) throws RemoteException {
+        Message event = event(EventType.USER_REGISTERED, version);
+        event.setNickname(nickname);
+        push(event);
+    }
+
+    @Override
+    public void userOnline(String nickname, long version) throws RemoteException {
+        Message event = event(EventType.USER_ONLINE, version);
+        event.setNickname(nickname);
+        push(event);
+    }
+
+    @Override
+    public void userOffline(String nickname, long version) throws RemoteException {
+        Message event = event(EventType.USER_OFFLINE, version);
+        event.setNickname(nickname);
+        push(event);
+    }
+
+    @Override
+    public void projectJoined(Chat chat, long version) throws RemoteException {
+        Message event = event(EventType.PROJECT_JOINED, version);
+        ArrayList<Chat> chats = new ArrayList<>(1);
+        chats.add(chat);
+        event.setChats(chats);
+        push(event);
+    }
+
+    @Override
+    public void projectCancelled(String projectName, long version) throws RemoteException {
+        Message event = event(EventType.PROJECT_CANCELLED, version);
+        event.setProjectName(projectName);
+        push(event);
+    }
+
+    /**
+     *
+     * @return codifica negoziata dalla connessione
+     */
+    MessageCodec getCodec() {
+        return connection.getCodec();
+    }
+
+    /**
+     * accoda un evento già codificato e condiviso con altri clients. A differenza delle callbacks,
+     * se il client ha troppi bytes in attesa l'evento viene scartato senza deregistrare il client
+     *
+     * @param frame evento codificato in sola lettura, di cui viene accodato un duplicato
+     * @param maxFrameBytes bytes accodati nella connessione oltre i quali l'evento viene scartato
+     * @return true se l'evento è stato accodato, false se è stato scartato
+     */
+    boolean pushShared(ByteBuffer frame, long maxFrameBytes) {
+        if (!key.isValid() || connection.isClosing() || connection.getQueuedBytes() > maxFrameBytes)
+            return false;
+        connection.addEvent(frame.duplicate());
+        reactor.responseReady(key);
+        return true;
+    }
+
+    /**
+     * crea il messaggio dell'evento
+     *
+     * @param type tipo di evento
+     * @param version numero di versione della callback
+     * @return messaggio da completare con i dati dell'evento
+     */
+    private Message event(EventType type, long version) {
+        Message event = new Message();
+        event.setEvent(type);
+        event.setVersion(version);
+        return event;
+    }
+
+    /**
+     * codifica l'evento con la codifica negoziata dalla connessione, lo accoda e
+     * restituisce la chiave al reactor che possiede il canale per inviarlo
+     *
+     * @param event evento da inviare
+     * @throws RemoteException connessione chiusa oppure troppi bytes in attesa di essere letti dal client
+     */
+    private void push(Message event) throws RemoteException {
+        if (!key.isValid() || connection.isClosing())
+            throw new RemoteException("PushClient: connessione chiusa");
+        if (connection.getQueuedBytes() > maxQueuedBytes)
+            throw new RemoteException("PushClient: il client non legge gli eventi");
+        connection.addEvent(connection.getCodec().encode(event, pool));
+        reactor.responseReady(key);
+    }
+}
@@ -0,0 +1,254 @@
+package com.fram3.worth.server;
+
+import com.fram3.worth.WorthImpl;
+import com.fram3.worth.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Reactor modella un selettore di lavoro del server.
+ * Ogni reactor possiede un proprio selettore ed un proprio thread che esegue il ciclo
+ * di lettura e scrittura sui canali che l'acceptor gli ha assegnato.
+ * I canali e i responsi completati dai RequestHandler arrivano al reactor tramite code
+ * e vengono gestiti solamente dal suo thread, così le operazioni sulle chiavi non
+ * richiedono sincronizzazione con gli altri reactor
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+class Reactor implements Runnable {
+
+    /** funzionalità del servizio worth */
+    private final WorthImpl worth;
+
+    /** threadpool condiviso usato per l'elaborazione delle richieste dei clients */
+    private final ThreadPoolExecutor requestPool;
+
+    /** selettore del reactor */
+    private final Selector selector;
+
+    /** pool dei buffer per i messaggi ricevuti */
+    private final BufferPool pool;
+
+    /** dimensione massima di un messaggio ricevuto */
+    private final int maxFrameSize;
+
+    /** numero massimo di richieste in attesa di responso per connessione */
+    private final int maxPendingRequests;
+
+    /** versione più recente del protocollo che il server accetta di negoziare */
+    private final int maxProtocolVersion;
+
+    /** journal delle modifiche, i responsi vengono inviati solo dopo che le modifiche sono su disco */
+    private final Journal journal;
+
+    /** dispatcher delle callbacks, per i clients che le ricevono sulla connessione tcp */
+    private final CallbackDispatcher callbacks;
+
+    /** bytes accodati in una connessione oltre i quali il client iscritto alle callbacks viene deregistrato */
+    private final long maxPushBytes;
+
+    /** canali accettati dall'acceptor e non ancora registrati sul selettore */
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+
+    /** chiavi per le quali un RequestHandler ha completato il responso */
+    private final ConcurrentLinkedQueue<SelectionKey> completedResponses;
+
+    Reactor(WorthImpl worth, ThreadPoolExecutor requestPool, BufferPool pool, int maxFrameSize,
+            int maxPendingRequests, int maxProtocolVersion, Journal journal, CallbackDispatcher callbacks,
+            long maxPushBytes) throws IOException {
+        this.worth = worth;
+        this.requestPool = requestPool;
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+        this.maxPendingRequests = maxPendingRequests;
+        this.maxProtocolVersion = maxProtocolVersion;
+        this.journal = journal;
+        this.callbacks = callbacks;
+        this.maxPushBytes = maxPushBytes;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.completedResponses = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * affida al reactor un canale appena accettato.
+     * La registrazione vera e propria avviene nel thread del reactor
+     *
+     * @param client canale da registrare
+     */
+    void register(SocketChannel client) {
+        pendingChannels.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * notifica al reactor che un responso è stato accodato nella connessione della chiave.
+     * L'interesse di scrittura viene impostato dal thread del reactor
+     *
+     * @param key chiave del canale su cui scrivere il responso
+     */
+    void responseReady(SelectionKey key) {
+        completedResponses.add(key);
+        selector.wakeup();
+    }
+
+    /**
+     * ciclo del reactor: registra i nuovi canali, abilita la scrittura per i responsi
+     * completati e serve le chiavi pronte per lettura e scrittura
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                registerPendingChannels();
+                enableCompletedResponses();
+                //insieme delle chiavi dei canali pronti per un'operazione
+                Set<SelectionKey> readyKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = readyKeys.iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isReadable())
+                            readRequest(key);
+                        if (key.isValid() && key.isWritable())
+                            writeResponse(key);
+                    } catch (IOException e) {
+                        //il client si è disconnesso senza logout oppure ha inviato
+                        //un messaggio non valido, chiudo solo il suo canale
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * registra per lettura i canali affidati dall'acceptor,
+     * inserendo nell'attachment lo stato della connessione
+     *
+     * @throws IOException errore di I/O
+     */
+    private void registerPendingChannels() throws IOException {
+        SocketChannel client;
+        while ((client = pendingChannels.poll()) != null) {
+            client.configureBlocking(false);
+            try {
+                client.register(selector, SelectionKey.OP_READ,
+                        new Connection(pool, maxFrameSize, maxPendingRequests));
+            } catch (ClosedChannelException ignored) {
+            }
+        }
+    }
+
+    /**
+     * imposta l'interesse di scrittura sulle chiavi dei responsi completati
+     */
+    private void enableCompletedResponses() {
+        SelectionKey key;
+        while ((key = completedResponses.poll()) != null) {
+            if (!key.isValid())
+                continue;
+            Connection connection = (Connection) key.attachment();
+            try {
+                //connessione chiusa dal server senza responsi da inviare (richiesta non valida)
+                if (connection.isClosing() && !connection.hasResponses())
+                    closeConnection(key);
+                else
+                    updateInterest(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * imposta le operazioni di interesse della chiave in base allo stato della connessione:
+     * scrittura se ci sono responsi in coda, lettura se la connessione può ancora accettare richieste
+     *
+     * @param key chiave del canale
+     */
+    private void updateInterest(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        int ops = 0;
+        if (connection.hasResponses())
+            ops |= SelectionKey.OP_WRITE;
+        if (connection.canRead())
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    /**
+     * chiude il canale della chiave e restituisce al pool i buffer della connessione.
+     * Se il client era iscritto alle callbacks sulla connessione viene deregistrato
+     *
+     * @param key chiave del canale da chiudere
+     * @throws IOException errore di I/O
+     */
+    private void closeConnection(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.getSubscriber() != null)
+            callbacks.unregister(connection.getSubscriber());
+        connection.release();
+        key.cancel();
+        key.channel().close();
+    }
+
+    /**
+     * legge le richieste del client tramite il decoder della connessione, che accumula
+     * dimensione e messaggio attraverso un numero qualsiasi di read successive.
+     * Il client può inviare più richieste senza attendere i responsi: ogni messaggio completo
+     * viene accodato nella connessione e, se non c'è già un RequestHandler attivo per la connessione,
+     * ne viene incaricato uno ad un thread del pool. Quando le richieste in attesa raggiungono il
+     * massimo consentito il reactor smette di leggere dal canale finchè non arrivano i responsi
+     *
+     * @param key chiave selezionata
+     * @throws IOException errore di I/O oppure messaggio non valido
+     */
+    private void readRequest(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer frame;
+        while (connection.canRead() && (frame = connection.getDecoder().read(client)) != null) {
+            if (connection.addRequest(frame)) {
+                //il task elabora le richieste della connessione in ordine e restituisce i buffer al pool
+                requestPool.execute(new RequestHandler(worth, connection, pool, key, this, maxProtocolVersion,
+                        journal, callbacks, maxPushBytes));
+            }
+        }
+        updateInterest(key);
+    }
+
+    /**
+     * scrive sul canale i responsi accodati nella connessione. La write è di tipo gathering,
+     * cioè scrive una sequenza di buffer sul canale con un'unica invocazione.
+     * Quando la coda è vuota e la connessione è stata chiusa dal logout chiude il canale
+     *
+     * @param key chiave selezionata
+     * @throws IOException errore di I/O
+     */
+    private void writeResponse(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.writeResponses(client) && connection.isClosing()) {
+            closeConnection(key);
+            return;
+        }
+        updateInterest(key);
+    }
+}
@@ -1,176 +1,313 @@
 package com.fram3.worth.server;
 
 import com.fram3.worth.Worth;
+import com.fram3.worth.utils.BufferPool;
 import com.fram3.worth.utils.Message;
+import com.fram3.worth.utils.MessageCodec;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-
-import com.google.gson.Gson;
+import java.util.ArrayList;
 
 /**
- * RequestHandler modella il task che elabora le richieste dei client incaricate dal server
+ * RequestHandler modella il task che elabora le richieste dei client incaricate dal server.
+ * Un task elabora in ordine tutte le richieste accodate nella connessione di un client,
+ * così richieste inviate in sequenza senza attendere i responsi vengono eseguite nello stesso ordine
  *
  * @author Francesco Amodeo
  * @version 1.0
  */
 class RequestHandler implements Runnable {
 
+    /** numero massimo di responsi trattenuti in attesa di una sola fsync del journal */
+    private static final int MAX_UNSYNCED_RESPONSES = 64;
+
     /** interfaccia delle funzionalità del servizio worth */
     private final Worth worth;
 
-    /** chiave relativa al socket channel del client di cui gestire la richiesta */
+    /** connessione del client di cui gestire le richieste */
+    private final Connection connection;
+
+    /** pool dei buffer dei messaggi */
+    private final BufferPool pool;
+
+    /** chiave relativa al socket channel del client di cui gestire le richieste */
     private final SelectionKey client;
 
-    /** richiesta letta dal socket channel del client da gestire */
-    private final Message message;
+    /** reactor che possiede il canale del client, a cui restituire i responsi */
+    private final Reactor reactor;
+
+    /** versione più recente del protocollo che il server accetta di negoziare */
+    private final int maxProtocolVersion;
+
+    /** journal delle modifiche, su cui attendere la scrittura su disco prima di inviare i responsi */
+    private final Journal journal;
+
+    /** responsi elaborati in attesa che le relative modifiche siano su disco */
+    private final ArrayList<ByteBuffer> unsyncedResponses;
+
+    /** numero di sequenza dell'ultimo record del journal prodotto dalle richieste dei responsi trattenuti,
+     *  0 se sono tutte in sola lettura */
+    private long unsyncedSequence;
 
-    RequestHandler(Worth worth, ByteBuffer byteBuffer, SelectionKey client) {
-        StringBuilder stringBuilder = new StringBuilder();
-        while (byteBuffer.hasRemaining())
-            stringBuilder.append(StandardCharsets.UTF_8.decode(byteBuffer).toString());
-        Gson gson = new Gson();
-        //deserializzo la richiesta del client
-        this.message = gson.fromJson(stringBuilder.toString(), Message.class);
+    /** dispatcher delle callbacks, per i clients che le ricevono sulla connessione tcp */
+    private final CallbackDispatcher callbacks;
+
+    /** bytes accodati nella connessione oltre i quali il client iscritto alle callbacks viene deregistrato */
+    private final long maxPushBytes;
+
+    RequestHandler(Worth worth, Connection connection, BufferPool pool, SelectionKey client, Reactor reactor,
+                   int maxProtocolVersion, Journal journal, CallbackDispatcher callbacks, long maxPushBytes) {
         this.worth = worth;
+        this.callbacks = callbacks;
+        this.maxPushBytes = maxPushBytes;
+        this.journal = journal;
+        this.unsyncedResponses = new ArrayList<>();
+        this.maxProtocolVersion = maxProtocolVersion;
+        this.connection = connection;
+        this.pool = pool;
         this.client = client;
+        this.reactor = reactor;
     }
 
     /**
-     * verifica la corrispondenza della richiesta letta con quelle accettate dal servizio
-     * e invoca le funzionalità di quest'ultimo per risolverla.
-     * Una volta ricevuto il responso lo mette nell'attachment della chiave, inserisce nelle
-     * operazioni di interesse quella di scrittura e risveglia il selettore.
-     * Quando la richiesta è un'operazione di logout l'handler finalizza la connessione scrivendo
-     * direttamente sul canale il responso e chiudendo la connessione
+     * preleva dalla connessione le richieste in attesa e le elabora una alla volta.
+     * Ogni responso viene accodato nella connessione e la chiave viene restituita al reactor
+     * che possiede il canale, il quale imposterà l'interesse di scrittura.
+     * Quando la richiesta è un'operazione di logout la connessione viene chiusa
+     * dal reactor dopo aver inviato il responso.
+     * Un responso viene consegnato solo dopo che le modifiche registrate nel journal sono su disco:
+     * finchè ci sono altre richieste in coda i responsi vengono trattenuti, così richieste in pipeline
+     * vengono confermate con una sola fsync
      */
     @Override
     public void run() {
+        //false se il task termina per un errore inatteso, prima che la connessione lo abbia segnato come terminato
+        boolean drained = false;
+        try {
+            ByteBuffer request;
+            while ((request = connection.nextRequest()) != null) {
+                MessageCodec codec = connection.getCodec();
+                Message message;
+                try {
+                    message = codec.decode(request);
+                    if (message == null || message.getRequest() == null)
+                        throw new IOException("RequestHandler: richiesta senza tipo");
+                } catch (IOException | RuntimeException e) {
+                    //richiesta non valida, chiudo la connessione con il client dopo i responsi già elaborati;
+                    //la connessione chiusa non restituisce altre richieste e il ciclo termina
+                    e.printStackTrace();
+                    closeConnection();
+                    continue;
+                } finally {
+                    //il messaggio è stato decodificato, il buffer può essere riutilizzato
+                    pool.release(request);
+                }
+                Message replyMessage;
+                try {
+                    replyMessage = dispatch(message);
+                } catch (RuntimeException e) {
+                    //richiesta ben formata ma non elaborabile (tipo sconosciuto, campi mancanti):
+                    //rispondo con un errore e la connessione resta utilizzabile
+                    e.printStackTrace();
+                    replyMessage = new Message();
+                    replyMessage.setResponse(Worth.ResponseType.UNKNOWN_ERROR);
+                }
+                //le richieste elaborate da questo thread sono solo quelle della connessione
+                unsyncedSequence = Math.max(unsyncedSequence, journal.takeAppended());
+                //il responso riporta l'identificativo della richiesta
+                replyMessage.setRequestId(message.getRequestId());
+                unsyncedResponses.add(codec.encode(replyMessage, pool));
+                if (message.getRequest() == Worth.RequestType.LOGOUT) {
+                    System.out.println("RequestHandler-"+Thread.currentThread().getName()+": "+
+                            "chiudo la connessione con il client");
+                    closeConnection();
+                } else if (!connection.hasRequests() || unsyncedResponses.size() >= MAX_UNSYNCED_RESPONSES) {
+                    flushResponses();
+                }
+            }
+            drained = true;
+            flushResponses();
+        } finally {
+            if (!drained) {
+                //errore inatteso: chiudo la connessione e segno il task come terminato,
+                //altrimenti la connessione non avvierebbe più nessun RequestHandler
+                connection.close();
+                connection.handlerStopped();
+                reactor.responseReady(client);
+            }
+        }
+    }
+
+    /**
+     * elabora una richiesta decodificata, comprese quelle gestite dal server e non dal servizio worth
+     *
+     * @param message richiesta del client
+     * @return responso della richiesta
+     */
+    private Message dispatch(Message message) {
         Message replyMessage;
+        if (message.getRequest() == Worth.RequestType.HANDSHAKE) {
+            //il responso viene ancora codificato con la codifica corrente,
+            //le richieste successive useranno la versione negoziata
+            replyMessage = new Message();
+            int version = Math.max(MessageCodec.JSON_VERSION,
+                    Math.min(message.getProtocolVersion(), maxProtocolVersion));
+            replyMessage.setProtocolVersion(version);
+            replyMessage.setResponse(Worth.ResponseType.OK);
+            connection.setCodec(MessageCodec.forVersion(version));
+        } else if (message.getRequest() == Worth.RequestType.SUBSCRIBE) {
+            replyMessage = subscribe();
+        } else if (message.getRequest() == Worth.RequestType.RESYNC) {
+            replyMessage = new Message();
+            if (connection.getSubscriber() != null)
+                callbacks.resync(connection.getSubscriber());
+            replyMessage.setResponse(Worth.ResponseType.OK);
+        } else {
+            replyMessage = handle(message);
+            if (replyMessage.getResponse() == Worth.ResponseType.OK) {
+                //la connessione ricorda l'utente loggato, l'unico che può iscriversi alle callbacks su di essa
+                if (message.getRequest() == Worth.RequestType.LOGIN)
+                    connection.setNickname(message.getNickname());
+                else if (message.getRequest() == Worth.RequestType.LOGOUT)
+                    unsubscribe();
+            }
+        }
+        return replyMessage;
+    }
+
+    /**
+     * invia i responsi trattenuti e segna la connessione da chiudere, il reactor la chiuderà
+     * dopo averli scritti. Le richieste successive della connessione vengono scartate
+     */
+    private void closeConnection() {
+        flushResponses();
+        connection.close();
+        reactor.responseReady(client);
+    }
+
+    /**
+     * iscrive il client alle callbacks sulla connessione, al posto di uno stub RMI.
+     * Il client riceverà gli eventi tra i responsi, a partire da una risincronizzazione completa,
+     * e tutti gli altri la notifica che l'utente è online
+     *
+     * @return responso dell'iscrizione
+     */
+    private Message subscribe() {
+        Message replyMessage = new Message();
+        String nickname = connection.getNickname();
+        if (nickname == null) {
+            replyMessage.setResponse(Worth.ResponseType.NOT_REGISTERED);
+            return replyMessage;
+        }
+        if (connection.getSubscriber() == null) {
+            PushClient subscriber = new PushClient(connection, client, reactor, pool, maxPushBytes);
+            connection.setSubscriber(subscriber);
+            if (callbacks.register(subscriber, nickname))
+                callbacks.userOnline(nickname);
+        }
+        replyMessage.setResponse(Worth.ResponseType.OK);
+        return replyMessage;
+    }
+
+    /**
+     * deregistra dalle callbacks il client iscritto sulla connessione, in seguito al logout,
+     * e notifica a tutti gli utenti che l'utente è offline
+     */
+    private void unsubscribe() {
+        connection.setNickname(null);
+        PushClient subscriber = connection.getSubscriber();
+        if (subscriber == null)
+            return;
+        connection.setSubscriber(null);
+        String nickname = callbacks.unregister(subscriber);
+        if (nickname != null)
+            callbacks.userOffline(nickname);
+    }
+
+    /**
+     * attende che le modifiche registrate nel journal dalle richieste della connessione siano su disco,
+     * accoda nella connessione i responsi trattenuti e restituisce la chiave al reactor proprietario
+     * del canale per inviarli. I responsi di richieste in sola lettura vengono inviati senza attendere
+     */
+    private void flushResponses() {
+        if (unsyncedResponses.isEmpty())
+            return;
+        if (unsyncedSequence > 0) {
+            journal.sync(unsyncedSequence);
+            unsyncedSequence = 0;
+        }
+        for (ByteBuffer response : unsyncedResponses)
+            connection.addResponse(response);
+        unsyncedResponses.clear();
+        reactor.responseReady(client);
+    }
+
+    /**
+     * verifica la corrispondenza della richiesta letta con quelle accettate dal servizio
+     * e invoca le funzionalità di quest'ultimo per risolverla
+     *
+     * @param message richiesta del client
+     * @return responso dell'operazione richiesta
+     */
+    private Message handle(Message message) {
         //verifico il tipo di richiesta e invoco i metodi del servizio worth
-        switch (this.message.getRequest()) {
+        switch (message.getRequest()) {
             case LOGIN:
-                replyMessage = worth.login(this.message.getNickname(), this.message.getPassword());
-                break;
+                return worth.login(message.getNickname(), message.getPassword());
 
             case LOGOUT:
-                replyMessage = worth.logout(this.message.getNickname());
-                finalizeConnection(replyMessage);
-                return;
+                return worth.logout(message.getNickname());
 
             case LIST_PROJECTS:
-                replyMessage = worth.listProjects(this.message.getNickname());
-                break;
+                return worth.listProjects(message.getNickname());
 
             case CREATE_PROJECT:
-                replyMessage = worth.createProject(this.message.getNickname(), this.message.getProjectName());
-                break;
+                return worth.createProject(message.getNickname(), message.getProjectName());
 
             case ADD_MEMBER:
-                replyMessage = worth.addMember(this.message.getNickname(), this.message.getProjectName(),
-                        this.message.getNewMember());
-                break;
+                return worth.addMember(message.getNickname(), message.getProjectName(),
+                        message.getNewMember());
 
             case SHOW_MEMBERS:
-                replyMessage = worth.showMembers(this.message.getNickname(), this.message.getProjectName());
-                break;
+                return worth.showMembers(message.getNickname(), message.getProjectName());
 
             case SHOW_CARDS:
-                replyMessage = worth.showCards(this.message.getNickname(), this.message.getProjectName());
-                break;
+                return worth.showCards(message.getNickname(), message.getProjectName());
 
             case SHOW_CARD:
-                replyMessage = worth.showCard(this.message.getNickname(), this.message.getProjectName(),
-                        this.message.getCardName());
-                break;
+                return worth.showCard(message.getNickname(), message.getProjectName(),
+                        message.getCardName());
+
+            case GET_CARD_HISTORY:
+                return worth.getCardHistory(message.getNickname(), message.getProjectName(),
+                        message.getCardName());
 
             case ADD_CARD:
-                replyMessage = worth.addCard(this.message.getNickname(), this.message.getProjectName(),
-                        this.message.getCardName(), this.message.getDescription());
-                break;
+                return worth.addCard(message.getNickname(), message.getProjectName(),
+                        message.getCardName(), message.getDescription());
 
             case MOVE_CARD:
-                replyMessage = worth.moveCard(this.message.getNickname(), this.message.getProjectName(),
-                        this.message.getCardName(), this.message.getSourceList(),
-                        this.message.getDestList());
-                break;
+                return worth.moveCard(message.getNickname(), message.getProjectName(),
+                        message.getCardName(), message.getSourceList(),
+                        message.getDestList());
 
             case CANCEL_PROJECT:
-                replyMessage = worth.cancelProject(this.message.getNickname(), this.message.getProjectName());
-                break;
+                return worth.cancelProject(message.getNickname(), message.getProjectName());
 
-            default:
-                throw new IllegalArgumentException("Malformed request: " + this.message.getRequest());
-        }
+            case BATCH:
+                return worth.batch(message.getNickname(), message.getProjectName(), message.getOperations());
 
-        //inserisco nell'attachment il response
-        attach(replyMessage);
-        //imposto sul canale del client l'interesse alla scrittura per inviare il responso
-        client.interestOps(SelectionKey.OP_WRITE);
-        //risveglio il selettore
-        client.selector().wakeup();
-    }
+            case SEND_CHAT:
+                return worth.sendChat(message.getNickname(), message.getProjectName(), message.getText());
 
-    /**
-     * inserisce nell'attachment il responso della richiesta del client.
-     * L'attachment è composto da un array di ByteBuffer, nel primo andrà
-     * scritta la dimensione del messaggio spedito, nell'altro il messaggio
-     * vero e proprio. Successivamente verrà scritto dal server con una
-     * gathering write che scrive in una singola invocazione una sequenza di ByteBuffers
-     *
-     * @param replyMessage responso dell'operazione richiesta dal client
-     */
-    private void attach(Message replyMessage){
-        Gson gson = new Gson();
-        String str = gson.toJson(replyMessage);
-        byte[] byteArray = str.getBytes(StandardCharsets.UTF_8);
-        //prendo l'array di byte inizializzato nell'attachment durante la registrazione per READ
-        ByteBuffer[] buffers = (ByteBuffer[]) client.attachment();
-        //buffer dimensione messaggio
-        buffers[0].clear();
-        buffers[0].putInt(byteArray.length);
-        buffers[0].flip();
-        //buffer messaggio
-        buffers[1] = ByteBuffer.wrap(byteArray);
-    }
+            case READ_CHAT:
+                return worth.readChat(message.getNickname(), message.getProjectName(), message.getOffset());
 
-    /**
-     * finalizza la connessione scrivendo direttamente il responso sul socket channel,
-     * chiudendo la connessione e cancellando la chiave dal selettore
-     *
-     * @param replyMessage responso dell'operazione richiesta dal client
-     */
-    private void finalizeConnection(Message replyMessage){
-        try { 
-            System.out.println("RequestHandler-"+Thread.currentThread().getName()+": "+
-                "chiudo la connessione con il client");
-            Gson gson = new Gson();
-            String str = gson.toJson(replyMessage);
-            //preparo i due buffer da scrivere con una gathering write
-            byte[] byteArray = str.getBytes(StandardCharsets.UTF_8);
-            //buffer che conterrà la dimensione del messaggio
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-            sizeBuffer.putInt(byteArray.length);
-            sizeBuffer.flip();
-            //buffer che conterrà il messaggio
-            ByteBuffer dataBuffer = ByteBuffer.wrap(byteArray);
-            SocketChannel clientChannel = (SocketChannel) client.channel();
-            //array di bytebuffer da scrivere
-            ByteBuffer[] buffers = new ByteBuffer[] { sizeBuffer, dataBuffer};
-            //completo la write finchè ci sono bytes nei buffer
-            //così invio tutto per l'ultima volta e chiudio la connessione
-            while(buffers[0].hasRemaining() && buffers[1].hasRemaining())
-                clientChannel.write(new ByteBuffer[] {buffers[0], buffers[1]});
-
-            //chiudo la connessione
-            //close fa anche il cancel della chiave
-            client.channel().close();
-            //risveglio il selettore per far cancellare definitivamente la chiave
-            client.selector().wakeup();
-        } catch (IOException e) {
-         e.printStackTrace(); }
+            default:
+                throw new IllegalArgumentException("Malformed request: " + message.getRequest());
+        }
     }
+
 }
@@ -30,9 +30,20 @@ public interface Server extends Remote {
      *
      * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
      *                   utilizzato dal server per le callbacks
+     * @param nickname nome dell'utente loggato sul client
      * @throws RemoteException -
      */
-    void registerForCallback(Client clientStub) throws RemoteException;
+    void registerForCallback(Client clientStub, String nickname) throws RemoteException;
+
+    /**
+     * richiede una risincronizzazione completa degli utenti e delle chat del client,
+     * usata dal client quando trova un salto nei numeri di versione delle callbacks
+     *
+     * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
+     *                   utilizzato dal server per le callbacks
+     * @throws RemoteException -
+     */
+    void resyncCallbacks(Client clientStub) throws RemoteException;
 
     /**
      * deregistra il client per le callbacks
@@ -1,20 +1,26 @@
 package com.fram3.worth.server;
 
+import com.fram3.worth.Chat;
+import com.fram3.worth.Project;
+import com.fram3.worth.Roster;
 import com.fram3.worth.User;
 import com.fram3.worth.WorthImpl;
 import com.fram3.worth.client.Client;
 import com.fram3.worth.Worth.ResponseType;
+import com.fram3.worth.utils.BufferPool;
+import com.fram3.worth.utils.ChatPublisher;
+import com.fram3.worth.utils.MessageCodec;
 import com.fram3.worth.utils.SecurePassword;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -24,7 +30,9 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ServerImpl implementa l'interfaccia remota Server
@@ -42,8 +50,8 @@ public class ServerImpl extends RemoteServer implements Server {
     /** gestore persistenza degli utenti e dei progetti */
     private final PersistenceManager persistence;
 
-    /** lista degli stub dei clients registrati per le callbacks */
-    private final ArrayList<Client> clientsRegisteredForCallback;
+    /** invia in modo asincrono le callbacks ai clients registrati */
+    private final CallbackDispatcher callbacks;
 
     /** threadpool usato per l'elaborazione delle richieste dei clients */
     private final ThreadPoolExecutor requestPool;
@@ -54,13 +62,108 @@ public class ServerImpl extends RemoteServer implements Server {
     /** porta server socket */
     private final int serverSocketPort;
 
+    /** dimensione massima in bytes di un messaggio ricevuto da un client */
+    private final int maxFrameSize;
+
+    /** numero massimo di richieste che un client può inviare senza aver ricevuto i responsi */
+    private final int maxPendingRequests;
+
+    /** versione più recente del protocollo (e quindi della codifica dei messaggi) negoziabile dai client */
+    private final int maxProtocolVersion;
+
+    /** numero di reactor (selettori di lavoro) a cui l'acceptor distribuisce le connessioni */
+    private final int reactorsNumber;
+
+    /** journal write-ahead delle modifiche allo stato del servizio */
+    private final Journal journal;
+
+    /** true dopo che lo stato è stato caricato e il journal riapplicato: prima lo stato in memoria
+     *  è incompleto e gli snapshot, anche quello dello shutdown hook, non vengono scritti */
+    private volatile boolean started;
+
+    /** millisecondi tra due snapshot incrementali in background */
+    private final int snapshotMillis;
+
+    /** thread che scrive periodicamente gli snapshot incrementali */
+    private final ScheduledExecutorService snapshotScheduler;
+
+    /** progetti con le cards in memoria, null se le cards di tutti i progetti restano sempre in memoria */
+    private final ProjectCache projectCache;
+
+    /** true se i clients possono registrarsi per le callbacks RMI oltre che sulla connessione tcp */
+    private final boolean rmiCallbacks;
+
+    /** bytes accodati in una connessione oltre i quali il client iscritto alle callbacks viene deregistrato */
+    private final long maxPushBytes;
+
+    /** storico persistente dei messaggi delle chat dei progetti */
+    private final ChatLog chatLog;
+
+    /** inoltro dei messaggi di chat sulle connessioni tcp, null se i messaggi vengono inviati in multicast */
+    private final ChatRelay chatRelay;
+
     public ServerImpl() {
         worth = new WorthImpl(this);
-        persistence = new PersistenceManager(worth, "users", "members");
-        clientsRegisteredForCallback = new ArrayList<>();
+        //con worth.packedSnapshot=true lo snapshot viene scritto in un unico file caricato mappandolo in memoria,
+        //i dati vengono importati da (o esportati verso) la directory con un file per ogni card al primo snapshot
+        //all'avvio i progetti vengono letti in parallelo da worth.loaderThreads thread, di default uno per core
+        //con worth.lazyProjects=true all'avvio vengono caricati solo i membri dei progetti e le cards vengono
+        //lette alla prima richiesta; oltre worth.residentBytes bytes stimati i progetti meno usati vengono scaricati
+        boolean lazyProjects = Boolean.getBoolean("worth.lazyProjects");
+        persistence = new PersistenceManager(worth, "users", "members", Boolean.getBoolean("worth.packedSnapshot"),
+                lazyProjects, Integer.getInteger("worth.loaderThreads", Runtime.getRuntime().availableProcessors()));
+        projectCache = lazyProjects
+                ? new ProjectCache(persistence, Long.getLong("worth.residentBytes", 256L * 1024 * 1024))
+                : null;
+        worth.setProjectCache(projectCache);
+        //i messaggi delle chat vengono registrati in segmenti di worth.chatSegmentSize bytes mappati in memoria,
+        //al più worth.chatSegments segmenti per progetto, e letti a pagine di worth.chatPage messaggi
+        chatLog = new ChatLog(Paths.get("src", "main", "chats"),
+                Integer.getInteger("worth.chatSegmentSize", 1024 * 1024),
+                Integer.getInteger("worth.chatSegments", 16), Integer.getInteger("worth.chatPage", 100));
+        worth.setChatLog(chatLog);
+        //una callback che non riceve risposta entro worth.callbackTimeoutMillis deregistra il client
+        String callbackTimeout = Integer.toString(Integer.getInteger("worth.callbackTimeoutMillis", 5000));
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null)
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", callbackTimeout);
+        if (System.getProperty("sun.rmi.transport.proxy.connectTimeout") == null)
+            System.setProperty("sun.rmi.transport.proxy.connectTimeout", callbackTimeout);
+        //worth.callbackThreads thread inviano le callbacks, al più worth.callbackQueue clients in coda
+        //e worth.callbackBacklog variazioni in coda per client prima di una risincronizzazione completa
+        callbacks = new CallbackDispatcher(() -> new Roster(worth.getRegisteredUsers()), worth::getMemberChats,
+                Integer.getInteger("worth.callbackThreads", 4), Integer.getInteger("worth.callbackQueue", 1024),
+                Integer.getInteger("worth.callbackBacklog", 64));
+        //con worth.rmiCallbacks=false le callbacks vengono inviate solo sulle connessioni tcp dei clients,
+        //un client che non legge worth.maxPushBytes bytes di eventi e responsi viene deregistrato
+        rmiCallbacks = Boolean.parseBoolean(System.getProperty("worth.rmiCallbacks", "true"));
+        maxPushBytes = Long.getLong("worth.maxPushBytes", 4L * 1024 * 1024);
+        //con worth.chatTransport=tcp i messaggi di chat vengono inoltrati sulle connessioni dei membri online
+        //iscritti alle callbacks sulla connessione, al posto dei gruppi multicast; un client con più di
+        //worth.chatPushBytes bytes da leggere non riceve i messaggi successivi finchè non li legge
+        chatRelay = "tcp".equals(System.getProperty("worth.chatTransport", "multicast"))
+                ? new ChatRelay(callbacks, Long.getLong("worth.chatPushBytes", 1024L * 1024))
+                : null;
         requestPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
         registryPort = 9876;
         serverSocketPort = 6789;
+        maxFrameSize = Integer.getInteger("worth.maxFrameSize", 16 * 1024 * 1024);
+        maxPendingRequests = Integer.getInteger("worth.maxPendingRequests", 256);
+        //con worth.protocolVersion=0 i client restano sulla codifica JSON, utile per il debug
+        maxProtocolVersion = Integer.getInteger("worth.protocolVersion", MessageCodec.LATEST_VERSION);
+        //di default un reactor per ogni core disponibile
+        reactorsNumber = Integer.getInteger("worth.reactors", Runtime.getRuntime().availableProcessors());
+        //al più una fsync del journal ogni worth.journalSyncMillis millisecondi
+        //il journal viene diviso in segmenti di worth.journalSegmentSize bytes, rilasciati dopo ogni snapshot
+        journal = new Journal(Paths.get("src", "main", "journal"),
+                Integer.getInteger("worth.journalSegmentSize", 16 * 1024 * 1024),
+                Integer.getInteger("worth.journalSyncMillis", 2), BufferPool.shared());
+        //di default uno snapshot incrementale al minuto
+        snapshotMillis = Integer.getInteger("worth.snapshotMillis", 60 * 1000);
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
@@ -80,20 +183,15 @@ public class ServerImpl extends RemoteServer implements Server {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        //sincronizzo sulla lista di utenti registrati perchè in un dato momento ci possono essere
-        //diversi thread RequestHandler che per soddisfare le richieste del client possono invocare metodi
-        //della classe WorthImpl i quali modificano lo stato di questa lista
-        synchronized (worth.getRegisteredUsers()) {
+        //la registrazione è atomica perchè in un dato momento ci possono essere diversi thread
+        //RequestHandler che invocano metodi della classe WorthImpl che leggono gli utenti registrati
+        if (!worth.registerUser(user)) {
             //l'utente esiste già
-            if (worth.getRegisteredUsers().contains(user)) {
-                return ResponseType.USER_EXISTS;
-            }
-            //aggiungo l'utente alla lista degli utenti registrati
-            worth.getRegisteredUsers().add(user);
+            return ResponseType.USER_EXISTS;
         }
         //arrivati qui c'è stato un cambiamento di stato degli utenti registrati al servizio,
-        //faccio la update per innescare le callbacks ai clients registrati
-        updateClientUsers();
+        //innesco le callbacks ai clients registrati
+        callbacks.userRegistered(nickname);
         return ResponseType.OK;
     }
 
@@ -102,20 +200,31 @@ public class ServerImpl extends RemoteServer implements Server {
      *
      * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
      *                   utilizzato dal server per le callbacks
+     * @param nickname nome dell'utente loggato sul client
      * @throws RemoteException -
      */
     @Override
-    public synchronized void registerForCallback(Client clientStub) throws RemoteException {
-        if (!clientsRegisteredForCallback.contains(clientStub)) {
-            clientsRegisteredForCallback.add(clientStub);
-            //faccio le callback perchè questo metodo viene invocato da remoto
-            //dal client subito dopo la procedura di login
-            //in questo modo tutti gli utenti riceveranno l'aggiornamento che un utente è online
-            //l'utente che ha fatto il login riceverà la lista di tutti gli utenti registrati
-            //e la lista delle chat dei progetti di cui è membro
-            updateClientUsers();
-            updateClientChats();
-        }
+    public void registerForCallback(Client clientStub, String nickname) throws RemoteException {
+        //solo un utente che ha fatto il login può ricevere le variazioni dei propri progetti
+        if (!rmiCallbacks || !worth.isOnline(nickname))
+            return;
+        //questo metodo viene invocato da remoto dal client subito dopo la procedura di login:
+        //il client registrato riceverà la lista di tutti gli utenti registrati e la lista delle chat
+        //dei progetti di cui è membro, tutti gli altri la notifica che l'utente è online
+        if (callbacks.register(clientStub, nickname))
+            callbacks.userOnline(nickname);
+    }
+
+    /**
+     * richiede una risincronizzazione completa degli utenti e delle chat del client
+     *
+     * @param clientStub stub/proxy corrispondente al riferimento remoto dell'oggetto client
+     *                   utilizzato dal server per le callbacks
+     * @throws RemoteException -
+     */
+    @Override
+    public void resyncCallbacks(Client clientStub) throws RemoteException {
+        callbacks.resync(clientStub);
     }
 
     /**
@@ -126,67 +235,86 @@ public class ServerImpl extends RemoteServer implements Server {
      * @throws RemoteException -
      */
     @Override
-    public synchronized void unregisterForCallback(Client clientStub) throws RemoteException {
-        clientsRegisteredForCallback.remove(clientStub);
+    public void unregisterForCallback(Client clientStub) throws RemoteException {
+        String nickname = callbacks.unregister(clientStub);
         //questo metodo viene invocato da remoto dal client subito dopo la procedura di logout
-        //pertanto per notificare tutti gli utenti del cambiamento di stato dell'utente che ha
-        //appena fatto logout facciamo le callbacks sulle liste degli utenti registrati
-        updateClientUsers();
+        //pertanto notifichiamo a tutti gli utenti che l'utente è offline
+        if (nickname != null)
+            callbacks.userOffline(nickname);
     }
 
     /**
      * avvia il server.
-     * Il server è gestito tramite un selettore che riceve le richieste di connessione,
-     * lettura e scrittura dai socket channel registrati. Un canale viene registrato sul selettore
-     * con una chiave che contiene le operazioni di interesse e pronte sul quel canale.
-     * Nel momento in cui viene accettata una connessione, il socket channel risultante viene registrato
-     * con operazione di interesse di lettura. Appena verrà scritto qualcosa su quel canale, la relativa chiave
-     * diventerà pronta per un'operazione di lettura. Il selettore selezionerà la chiave tramite la .select() e la richiesta
-     * verrà letta e incaricata ad un thread del pool requestPool che esegue il task RequestHandler per l'elaborazione
-     * della richiesta. Al termine dell'elaborazione il task assegna alla chiave l' operazione di interesse di
-     * scrittura e finalmente quando il selettore selezionerà di nuovo la chiave verrà scritto sul relativo canale il
-     * responso dell'operazione.
+     * Il server è gestito da un acceptor e da un insieme di reactor. L'acceptor è il selettore su cui
+     * è registrato il server socket channel: ogni connessione accettata viene affidata, a turno (round-robin),
+     * ad uno degli N reactor, ciascuno con il proprio selettore e il proprio thread. Il reactor registra il
+     * socket channel con operazione di interesse di lettura. Appena verrà scritto qualcosa su quel canale, la relativa
+     * chiave diventerà pronta per un'operazione di lettura, la richiesta verrà letta e incaricata ad un thread del pool
+     * requestPool che esegue il task RequestHandler per l'elaborazione della richiesta. Al termine dell'elaborazione
+     * il task restituisce la chiave al reactor che possiede il canale, il quale assegna alla chiave l'operazione di
+     * interesse di scrittura e finalmente scrive sul relativo canale il responso dell'operazione.
      */
     public void start() {
         //prepara un thread che viene avviato quando la jvm viene interrotta con ctrl+C
         //che salva lo stato degli utenti e dei progetti prima che termini del tutto
-        Runtime.getRuntime().addShutdownHook(new Thread(persistence::saveResources));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveState));
 
-        //carico lo stato dall'ultima esecuzione del server
-        persistence.loadResources();
         try {
+            //carico lo stato dall'ultimo snapshot e riapplico le modifiche successive registrate nel journal
+            long snapshotSequence = persistence.loadResources();
+            System.out.println("Server: stato caricato in " + persistence.getLoadMillis() + " ms ("
+                    + worth.getRegisteredUsers().size() + " utenti, " + worth.getCreatedProjects().size() + " progetti)");
+            if (persistence.isLoadIncomplete())
+                System.err.println("Server: snapshot caricato in parte, gli snapshot sono sospesi e il journal"
+                        + " viene conservato per intero fino al prossimo avvio");
+            int replayed = journal.replay(worth, snapshotSequence);
+            if (replayed > 0)
+                System.out.println("Server: riapplicate " + replayed + " modifiche dal journal");
+            worth.setJournal(journal);
+            journal.start();
+            started = true;
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshot, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+
             //esporto l'oggetto this per l'invocazione dei metodi remoti da parte del client
             Server stub = (Server) UnicastRemoteObject.exportObject(this, 0);
             Registry registry = LocateRegistry.createRegistry(registryPort);
             registry.rebind("WORTH", stub);
             System.out.println("Server: servizio di registry pronto sulla porta " + registryPort);
-            
+
+            //avvio i reactor, ognuno nel proprio thread
+            Reactor[] reactors = new Reactor[Math.max(1, reactorsNumber)];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(worth, requestPool, BufferPool.shared(), maxFrameSize,
+                        maxPendingRequests, maxProtocolVersion, journal, callbacks, maxPushBytes);
+                Thread reactorThread = new Thread(reactors[i], "Reactor-" + i);
+                reactorThread.setDaemon(true);
+                reactorThread.start();
+            }
+            System.out.println("Server: avviati " + reactors.length + " reactor");
+
             //apro il canale tcp
             ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
             ServerSocket serverSocket = serverSocketChannel.socket();
             serverSocket.bind(new InetSocketAddress(InetAddress.getByName("localhost"), serverSocketPort));
             System.out.println("Server: in ascolto sulla porta "+serverSocketPort);
             serverSocketChannel.configureBlocking(false);
-            Selector selector = Selector.open();
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Selector acceptor = Selector.open();
+            serverSocketChannel.register(acceptor, SelectionKey.OP_ACCEPT);
+            //indice del prossimo reactor a cui affidare una connessione
+            int next = 0;
             //noinspection InfiniteLoopStatement
             while (true) {
-                if (selector.select() == 0) continue;
+                if (acceptor.select() == 0) continue;
                 //insieme delle chiavi dei canali pronti per un'operazione
-                Set<SelectionKey> readyKeys = selector.selectedKeys();
+                Set<SelectionKey> readyKeys = acceptor.selectedKeys();
                 Iterator<SelectionKey> keyIterator = readyKeys.iterator();
                 while (keyIterator.hasNext()) {
                     SelectionKey key = keyIterator.next();
                     keyIterator.remove();
 
                     if (key.isAcceptable()) {
-                        acceptConnection(selector, key);
-
-                    } else if (key.isReadable()) {
-                        readRequest(key);
-
-                    } else if (key.isWritable()) {
-                        writeResponse(key);
+                        acceptConnection(reactors[next], key);
+                        next = (next + 1) % reactors.length;
                     }
                 }
             }
@@ -195,124 +323,116 @@ public class ServerImpl extends RemoteServer implements Server {
         } finally {
             //entro qui solamente se viene lanciata un'eccezione, 
             //altrimenti il server termina con lo shutdown hook dopo il ctrl+C
-            persistence.saveResources();
+            saveState();
         }
     }
 
     /**
-     * accetta la connessione e registra l'interesse per l'operazione di READ.
-     * Prepara e inserisce nell'attachment l'array di ByteBuffer da riempire con
-     * due read successive, in modo da leggere dimensione messaggio e messaggio stesso
+     * scrive uno snapshot incrementale dello stato del servizio e rilascia i segmenti del journal
+     * che contengono solo modifiche già incluse. Il numero di sequenza viene letto prima dello snapshot,
+     * così le modifiche concorrenti allo snapshot restano nel journal e vengono riapplicate al prossimo avvio.
+     * Se all'avvio parte dello snapshot non era leggibile lo stato in memoria è incompleto: scriverlo
+     * e rilasciare il journal perderebbe per sempre i dati saltati, quindi lo snapshot non viene scritto.
+     * Lo stesso vale se l'avvio è fallito prima di aver riapplicato tutto il journal
+     */
+    private void snapshot() {
+        if (!started || persistence.isLoadIncomplete()) {
+            chatLog.flush();
+            return;
+        }
+        long journalSequence = worth.getSnapshotSequence();
+        if (persistence.saveResources(journalSequence)) {
+            try {
+                journal.release(journalSequence);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            //i progetti scritti nello snapshot possono essere scaricati dalla memoria
+            if (projectCache != null)
+                projectCache.trim();
+        }
+        //i messaggi delle chat sono già nei segmenti mappati, li porto su disco insieme allo snapshot
+        chatLog.flush();
+    }
+
+    /**
+     * chiude il journal e scrive lo snapshot dello stato del servizio.
+     * I segmenti del journal vengono rilasciati solo se lo snapshot è stato scritto, altrimenti
+     * al prossimo avvio verranno riapplicati sopra lo snapshot precedente
+     */
+    private void saveState() {
+        snapshotScheduler.shutdownNow();
+        callbacks.shutdown();
+        journal.close();
+        snapshot();
+        if (projectCache != null)
+            System.out.println("Server: progetti in memoria " + projectCache.getHits() + " hit, "
+                    + projectCache.getMisses() + " miss, " + projectCache.getEvictions() + " scaricati");
+        System.out.println("Server: callbacks " + callbacks.getDelivered() + " inviate, " + callbacks.getCoalesced()
+                + " accorpate, " + callbacks.getDropped() + " clients deregistrati");
+        if (chatRelay != null) {
+            System.out.println("Server: messaggi di chat " + chatRelay.getRelayed() + " inoltrati, "
+                    + chatRelay.getDropped() + " scartati");
+        } else {
+            ChatPublisher chats = ChatPublisher.shared();
+            System.out.println("Server: messaggi di chat " + chats.getQueued() + " accodati, " + chats.getSent()
+                    + " inviati, " + chats.getDropped() + " scartati");
+        }
+    }
+
+    /**
+     * accetta la connessione e la affida al reactor indicato,
+     * che la registrerà sul proprio selettore con interesse per l'operazione di READ
      *
-     * @param selector selettore a cui bisogna registrare il canale
+     * @param reactor reactor a cui affidare il canale
      * @param key chiave relativa al canale che è acceptable
      * @throws IOException errore di I/O
      */
-    private void acceptConnection(Selector selector, SelectionKey key) throws IOException {
+    private void acceptConnection(Reactor reactor, SelectionKey key) throws IOException {
         ServerSocketChannel server = (ServerSocketChannel) key.channel();
         //accettazione connessione, ritorna il socket per la comunicazione con il client
         SocketChannel client = server.accept();
+        if (client == null)
+            return;
         System.out.println("Server: connessione ricevuta");
-        client.configureBlocking(false);
-
-        //preparo i buffer per ricevere i dati sul canale
-        //il primo buffer conterrà un intero corrispondente alla dimensione del dato inviato sul canale
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        //sapremo di che dimensione allocare il buffer dati solo dopo la prima read nel primo buffer
-        ByteBuffer dataBuffer = null;
-        //registro il canale per lettura e metto nell'attachment un array di ByteBuffer
-        client.register(selector, SelectionKey.OP_READ, new ByteBuffer[] { sizeBuffer, dataBuffer});
+        reactor.register(client);
     }
 
     /**
-     * legge la richiesta del client effettuando due read successive:
-     * la prima riempe il primo buffer dell'attachment, allocato della dimensione di
-     * un intero, per contenere il valore della dimensione del messaggio da leggere;
-     * la seconda read riempie il secondo buffer con il messaggio effettivo, quest'ultimo
-     * buffer viene allocato in modo preciso grazie al valore del primo buffer letto con la prima read.
-     * A questo punto la richiesta contenuta nel secondo buffer viene incaricata ad un thread
-     * del pool che eseguirà il task RequestHandler. La richiesta viene deserializzata
-     * e risolta. Alla fine dell'elaborazione l'handler inserisce il response come
-     * attachment della key e configura l'interesse per la scrittura su quel canale
+     * aggiunge la chat del progetto alla lista locale di chat del client dell'utente, se registrato
+     * per le callbacks, in seguito alla creazione del progetto o all'aggiunta dell'utente come membro.
+     * La callback viene invocata in modo asincrono dal dispatcher
      *
-     * @param key chiave selezionata
-     * @throws IOException errore di I/O
+     * @param project progetto di cui l'utente è diventato membro
+     * @param nickname nome dell'utente
      */
-    private void readRequest(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-        //prendo i buffer dall'attachment inseriti nella registrazione per lettura
-        ByteBuffer[] buffers = (ByteBuffer[]) key.attachment();
-        client.read(buffers[0]);
-        if (!buffers[0].hasRemaining()) { //abbiamo letto tutto dal canale
-            buffers[0].flip();
-            //dimensione del dato da leggere nel secondo buffer
-            int size = buffers[0].getInt();
-
-            //alloco il buffer della dimensione esatta
-            buffers[1] = ByteBuffer.allocate(size);
-            client.read(buffers[1]);
-            if (buffers[1].position() == size) { //abbiamo letto esattamente size bytes
-                buffers[1].flip();
-                //assegno la richiesta al task
-                RequestHandler task = new RequestHandler(worth, buffers[1], key);
-                requestPool.execute(task);
-            }
-        }
+    public void notifyProjectJoined(Project project, String nickname) {
+        callbacks.projectJoined(nickname, new Chat(project.getChatAddress(), project.getChatPort(), project.getName()));
     }
 
     /**
-     * scrive sul canale il response che il RequestHandler aveva inserito nell'attachment.
-     * La write è di tipo gathering, cioè scrive una sequenza di buffer sul canale con un'unica
-     * invocazione, inviando i due buffer con dimensione messaggio e messaggio
-     * @param key chiave selezionata
-     * @throws IOException errore di I/O
+     * invia un messaggio nella chat del progetto: in multicast tramite il publisher condiviso
+     * oppure, con worth.chatTransport=tcp, sulle connessioni dei membri online
+     *
+     * @param project progetto della chat
+     * @param datagram messaggio codificato in UTF-8
      */
-    private void writeResponse(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-        //prendo l'attachment settato dal task
-        ByteBuffer[] buffers = (ByteBuffer[]) key.attachment();
-        client.write(buffers);
-        if (!buffers[0].hasRemaining() && !buffers[1].hasRemaining()){
-            //se ho finito di scrivere entrambi i buffer posso ripulirli e riutilizzarli
-            buffers[0].clear(); buffers[1].clear();
-            //reimposto l'interesse di lettura sul canale
-            key.interestOps(SelectionKey.OP_READ);
-        }
+    public void publishChatMsg(Project project, byte[] datagram) {
+        //l'insieme concorrente dei membri può essere letto senza il lock del progetto
+        if (chatRelay == null)
+            ChatPublisher.shared().publish(project.getChatAddress(), project.getChatPort(), datagram);
+        else
+            chatRelay.relay(project.getName(), project.getMemberSet(), datagram);
     }
 
     /**
-     *  aggiorna le liste locali di chat degli users/clients registrati per le callbacks,
-     *  in seguito ad un'operazione che ha cambiato lo stato dei progetti dell'utente.
-     *  Cambiamenti di stato dei progetti dell'utente sono: l'utente viene
-     *  aggiunto ad un progetto oppure gli viene cancellato un progetto in seguito
-     *  all'operazione cancel_project.
-     *  Il metodo utilizza la lista degli stub e su ognuno invoca i metodi dell'interfaccia
-     *  remota Client che lo nificano dei cambiamenti
-     */
-    public void updateClientChats() {
-        for (Client client : clientsRegisteredForCallback) {
-            try {
-                client.notifyChatsEvent(worth.getCreatedProjects());
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    /**
-     * aggiorna le liste locali di utenti registati degli users/clients registrati per le
-     * callbacks, in seguito ad un'operazione che ha cambiato lo stato degli utenti registrati al servizio.
-     * I cambiamenti di stato degli utenti registrati sono: registrazione, login e logout di un utente.
-     * Il metodo utilizza la lista degli stub e su ognuno invoca i metodi dell'interfaccia
-     * remota Client che lo nificano dei cambiamenti
+     * rimuove la chat del progetto dalle liste locali di chat dei clients dei membri registrati
+     * per le callbacks, in seguito all'operazione cancel_project.
+     * Le callbacks vengono invocate in modo asincrono dal dispatcher
+     *
+     * @param project progetto cancellato
      */
-    private void updateClientUsers() {
-        for (Client client : clientsRegisteredForCallback) {
-            try {
-                client.notifyUserEvent(worth.getRegisteredUsers());
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
+    public void notifyProjectCancelled(Project project) {
+        callbacks.projectCancelled(new ArrayList<>(project.getMembers()), project.getName());
     }
 }
@@ -0,0 +1,534 @@
+package com.fram3.worth.utils;
+
+import com.fram3.worth.Card;
+import com.fram3.worth.Chat;
+import com.fram3.worth.Project;
+import com.fram3.worth.Roster;
+import com.fram3.worth.Worth.EventType;
+import com.fram3.worth.Worth.RequestType;
+import com.fram3.worth.Worth.ResponseType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * BinaryCodec modella la codifica binaria dei messaggi.
+ * Il messaggio inizia con un byte di versione seguito dai soli campi valorizzati,
+ * ognuno preceduto da un byte che lo identifica, e termina con il byte END.
+ * Le stringhe sono codificate in UTF-8 precedute dalla lunghezza (-1 per null),
+ * le enumerazioni RequestType e ResponseType con il loro ordinale, quindi i nuovi valori
+ * vanno sempre aggiunti in fondo alle enumerazioni.
+ * In lettura ogni lunghezza e numero di elementi viene confrontato con i bytes rimasti nel frame
+ * prima di allocare, e le operazioni di un BATCH non possono contenere altre operazioni,
+ * così un frame malformato produce sempre una IOException e mai allocazioni o ricorsioni arbitrarie
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /** istanza condivisa, il codec non ha stato */
+    static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    /** identificativi dei campi del messaggio */
+    private static final byte END = 0;
+    private static final byte REQUEST_ID = 1;
+    private static final byte REQUEST = 2;
+    private static final byte RESPONSE = 3;
+    //4 era l'utente intero, sostituito da ROSTER
+    private static final byte PROJECTS = 5;
+    private static final byte MEMBERS = 6;
+    private static final byte CARDS = 7;
+    private static final byte CARD = 8;
+    private static final byte NICKNAME = 9;
+    private static final byte PASSWORD = 10;
+    private static final byte PROJECT_NAME = 11;
+    private static final byte NEW_MEMBER = 12;
+    private static final byte CARD_NAME = 13;
+    private static final byte DESCRIPTION = 14;
+    private static final byte SOURCE_LIST = 15;
+    private static final byte DEST_LIST = 16;
+    private static final byte OPERATIONS = 17;
+    private static final byte RESPONSES = 18;
+    private static final byte PROTOCOL_VERSION = 19;
+    private static final byte HISTORY = 20;
+    private static final byte TIMESTAMP = 21;
+    private static final byte ROSTER = 22;
+    private static final byte EVENT = 23;
+    private static final byte VERSION = 24;
+    private static final byte CHATS = 25;
+    private static final byte TEXT = 26;
+    private static final byte OFFSET = 27;
+    private static final byte CHAT_MESSAGES = 28;
+
+    /** bytes minimi occupati in codifica da un elemento delle liste, per validare i contatori in lettura */
+    private static final int MIN_STRING = Integer.BYTES;
+    private static final int MIN_CARD = 2 * MIN_STRING + 1 + Integer.BYTES;
+    private static final int MIN_CHAT = MIN_STRING + 1 + Integer.BYTES;
+    private static final int MIN_PROJECT = MIN_STRING + Integer.BYTES + Integer.BYTES + 1 + Integer.BYTES;
+    private static final int MIN_MESSAGE = 1;
+
+    /** valori delle enumerazioni, letti una sola volta */
+    private static final RequestType[] requestTypes = RequestType.values();
+    private static final ResponseType[] responseTypes = ResponseType.values();
+    private static final EventType[] eventTypes = EventType.values();
+    private static final Card.Status[] cardStatuses = Card.Status.values();
+
+    private BinaryCodec() {}
+
+    @Override
+    public ByteBuffer encode(Message message, BufferPool pool) {
+        Output out = new Output(pool);
+        //spazio per la dimensione, scritta alla fine
+        out.buffer.putInt(0);
+        out.buffer.put((byte) BINARY_VERSION);
+        writeMessage(out, message);
+        ByteBuffer buffer = out.buffer;
+        buffer.putInt(0, buffer.position() - Integer.BYTES);
+        return buffer.flip();
+    }
+
+    /**
+     * scrive i bytes del testo così come sono, senza convertirli in stringa
+     */
+    @Override
+    public ByteBuffer encodeChatMessage(String projectName, byte[] text) {
+        Output out = new Output(BufferPool.unpooled());
+        out.buffer.putInt(0);
+        out.buffer.put((byte) BINARY_VERSION);
+        out.ensure(2);
+        out.buffer.put(EVENT).put((byte) EventType.CHAT_MESSAGE.ordinal());
+        writeStringField(out, PROJECT_NAME, projectName);
+        out.ensure(1 + Integer.BYTES + text.length);
+        out.buffer.put(TEXT).putInt(text.length).put(text);
+        out.put(END);
+        ByteBuffer buffer = out.buffer;
+        buffer.putInt(0, buffer.position() - Integer.BYTES);
+        return buffer.flip();
+    }
+
+    @Override
+    public Message decode(ByteBuffer frame) throws IOException {
+        try {
+            byte version = frame.get();
+            if (version != BINARY_VERSION)
+                throw new IOException("BinaryCodec: versione non supportata " + version);
+            return readMessage(frame, false);
+        } catch (RuntimeException e) {
+            throw new IOException("BinaryCodec: messaggio non valido", e);
+        }
+    }
+
+    /**
+     * scrive i campi valorizzati del messaggio
+     *
+     * @param out buffer di uscita
+     * @param message messaggio da scrivere
+     */
+    private void writeMessage(Output out, Message message) {
+        if (message.getRequestId() != 0) {
+            out.ensure(1 + Long.BYTES);
+            out.buffer.put(REQUEST_ID).putLong(message.getRequestId());
+        }
+        if (message.getRequest() != null) {
+            out.ensure(2);
+            out.buffer.put(REQUEST).put((byte) message.getRequest().ordinal());
+        }
+        if (message.getResponse() != null) {
+            out.ensure(2);
+            out.buffer.put(RESPONSE).put((byte) message.getResponse().ordinal());
+        }
+        if (message.getProtocolVersion() != 0) {
+            out.ensure(1 + Integer.BYTES);
+            out.buffer.put(PROTOCOL_VERSION).putInt(message.getProtocolVersion());
+        }
+        if (message.getTimestamp() != 0) {
+            out.ensure(1 + Long.BYTES);
+            out.buffer.put(TIMESTAMP).putLong(message.getTimestamp());
+        }
+        if (message.getEvent() != null) {
+            out.ensure(2);
+            out.buffer.put(EVENT).put((byte) message.getEvent().ordinal());
+        }
+        if (message.getVersion() != 0) {
+            out.ensure(1 + Long.BYTES);
+            out.buffer.put(VERSION).putLong(message.getVersion());
+        }
+        if (message.getOffset() != 0) {
+            out.ensure(1 + Long.BYTES);
+            out.buffer.put(OFFSET).putLong(message.getOffset());
+        }
+        writeStringField(out, NICKNAME, message.getNickname());
+        writeStringField(out, PASSWORD, message.getPassword());
+        writeStringField(out, PROJECT_NAME, message.getProjectName());
+        writeStringField(out, NEW_MEMBER, message.getNewMember());
+        writeStringField(out, CARD_NAME, message.getCardName());
+        writeStringField(out, DESCRIPTION, message.getDescription());
+        writeStringField(out, SOURCE_LIST, message.getSourceList());
+        writeStringField(out, DEST_LIST, message.getDestList());
+        writeStringField(out, HISTORY, message.getHistory());
+        writeStringField(out, TEXT, message.getText());
+        if (message.getRoster() != null) {
+            out.put(ROSTER);
+            writeRoster(out, message.getRoster());
+        }
+        if (message.getProjects() != null) {
+            out.put(PROJECTS);
+            out.putInt(message.getProjects().size());
+            for (Project project : message.getProjects())
+                writeProject(out, project);
+        }
+        if (message.getChats() != null) {
+            out.put(CHATS);
+            out.putInt(message.getChats().size());
+            for (Chat chat : message.getChats())
+                writeChat(out, chat);
+        }
+        if (message.getMembers() != null) {
+            out.put(MEMBERS);
+            writeStrings(out, message.getMembers());
+        }
+        if (message.getChatMessages() != null) {
+            out.put(CHAT_MESSAGES);
+            writeStrings(out, message.getChatMessages());
+        }
+        if (message.getCards() != null) {
+            out.put(CARDS);
+            out.putInt(message.getCards().size());
+            for (Card card : message.getCards())
+                writeCard(out, card);
+        }
+        if (message.getCard() != null) {
+            out.put(CARD);
+            writeCard(out, message.getCard());
+        }
+        if (message.getOperations() != null) {
+            out.put(OPERATIONS);
+            out.putInt(message.getOperations().size());
+            for (Message operation : message.getOperations())
+                writeMessage(out, operation);
+        }
+        if (message.getResponses() != null) {
+            out.put(RESPONSES);
+            out.putInt(message.getResponses().size());
+            out.ensure(message.getResponses().size());
+            for (ResponseType response : message.getResponses())
+                out.buffer.put((byte) response.ordinal());
+        }
+        out.put(END);
+    }
+
+    /**
+     * legge i campi del messaggio fino al byte END
+     *
+     * @param in buffer di ingresso
+     * @param nested true se il messaggio è un'operazione di un BATCH
+     * @return messaggio letto
+     * @throws IOException campo sconosciuto, lunghezza non valida o operazioni annidate
+     */
+    private Message readMessage(ByteBuffer in, boolean nested) throws IOException {
+        Message message = new Message();
+        byte field;
+        while ((field = in.get()) != END) {
+            switch (field) {
+                case REQUEST_ID : message.setRequestId(in.getLong()); break;
+                case REQUEST : message.setRequest(readOrdinal(in, requestTypes)); break;
+                case RESPONSE : message.setResponse(readOrdinal(in, responseTypes)); break;
+                case PROTOCOL_VERSION : message.setProtocolVersion(in.getInt()); break;
+                case TIMESTAMP : message.setTimestamp(in.getLong()); break;
+                case EVENT : message.setEvent(readOrdinal(in, eventTypes)); break;
+                case VERSION : message.setVersion(in.getLong()); break;
+                case OFFSET : message.setOffset(in.getLong()); break;
+                case NICKNAME : message.setNickname(readString(in)); break;
+                case PASSWORD : message.setPassword(readString(in)); break;
+                case PROJECT_NAME : message.setProjectName(readString(in)); break;
+                case NEW_MEMBER : message.setNewMember(readString(in)); break;
+                case CARD_NAME : message.setCardName(readString(in)); break;
+                case DESCRIPTION : message.setDescription(readString(in)); break;
+                case SOURCE_LIST : message.setSourceList(readString(in)); break;
+                case DEST_LIST : message.setDestList(readString(in)); break;
+                case HISTORY : message.setHistory(readString(in)); break;
+                case TEXT : message.setText(readString(in)); break;
+                case ROSTER : message.setRoster(readRoster(in)); break;
+                case PROJECTS :
+                    int projectsCount = readCount(in, MIN_PROJECT);
+                    ArrayList<Project> projects = new ArrayList<>(projectsCount);
+                    for (int i = 0; i < projectsCount; i++)
+                        projects.add(readProject(in));
+                    message.setProjects(projects);
+                    break;
+                case CHATS :
+                    int chatsCount = readCount(in, MIN_CHAT);
+                    ArrayList<Chat> chats = new ArrayList<>(chatsCount);
+                    for (int i = 0; i < chatsCount; i++)
+                        chats.add(readChat(in));
+                    message.setChats(chats);
+                    break;
+                case MEMBERS : message.setMembers(readStrings(in)); break;
+                case CHAT_MESSAGES : message.setChatMessages(readStrings(in)); break;
+                case CARDS :
+                    int cardsCount = readCount(in, MIN_CARD);
+                    ArrayList<Card> cards = new ArrayList<>(cardsCount);
+                    for (int i = 0; i < cardsCount; i++)
+                        cards.add(readCard(in));
+                    message.setCards(cards);
+                    break;
+                case CARD : message.setCard(readCard(in)); break;
+                case OPERATIONS :
+                    if (nested)
+                        throw new IOException("BinaryCodec: operazioni annidate in un BATCH");
+                    int operationsCount = readCount(in, MIN_MESSAGE);
+                    ArrayList<Message> operations = new ArrayList<>(operationsCount);
+                    for (int i = 0; i < operationsCount; i++)
+                        operations.add(readMessage(in, true));
+                    message.setOperations(operations);
+                    break;
+                case RESPONSES :
+                    int responsesCount = readCount(in, 1);
+                    ArrayList<ResponseType> responses = new ArrayList<>(responsesCount);
+                    for (int i = 0; i < responsesCount; i++)
+                        responses.add(readOrdinal(in, responseTypes));
+                    message.setResponses(responses);
+                    break;
+                default :
+                    throw new IOException("BinaryCodec: campo sconosciuto " + field);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * scrive i nomi degli utenti seguiti dalla bitmap dello stato online
+     */
+    private void writeRoster(Output out, Roster roster) {
+        out.putInt(roster.size());
+        for (String nickname : roster.getNicknames())
+            out.putString(nickname);
+        long[] online = roster.getOnline();
+        out.ensure(Integer.BYTES + online.length * Long.BYTES);
+        out.buffer.putInt(online.length);
+        for (long word : online)
+            out.buffer.putLong(word);
+    }
+
+    private Roster readRoster(ByteBuffer in) throws IOException {
+        String[] nicknames = new String[readCount(in, MIN_STRING)];
+        for (int i = 0; i < nicknames.length; i++)
+            nicknames[i] = readString(in);
+        long[] online = new long[readCount(in, Long.BYTES)];
+        for (int i = 0; i < online.length; i++)
+            online[i] = in.getLong();
+        return new Roster(nicknames, online);
+    }
+
+    /**
+     * scrive il progetto con membri, card e indirizzo della chat.
+     * Le liste di stato delle card vengono ricostruite in lettura dalla posizione di ogni card
+     */
+    private void writeProject(Output out, Project project) {
+        out.putString(project.getName());
+        writeStrings(out, project.getMembers());
+        out.putInt(project.getCards().size());
+        for (Card card : project.getCards())
+            writeCard(out, card);
+        byte[] address = project.getChatAddress() == null ? new byte[0] : project.getChatAddress().getAddress();
+        out.put((byte) address.length);
+        out.ensure(address.length + Integer.BYTES);
+        out.buffer.put(address).putInt(project.getChatPort());
+    }
+
+    private Project readProject(ByteBuffer in) throws IOException {
+        Project project = new Project(readString(in));
+        for (String member : readStrings(in))
+            project.addMember(member);
+        int cardsCount = readCount(in, MIN_CARD);
+        for (int i = 0; i < cardsCount; i++)
+            project.addCard(readCard(in));
+        byte[] address = readAddress(in);
+        if (address.length > 0)
+            project.setChatAddress(InetAddress.getByAddress(address));
+        project.setChatPort(in.getInt());
+        return project;
+    }
+
+    /**
+     * scrive la chat senza i messaggi, che vengono ricevuti dal client
+     */
+    private void writeChat(Output out, Chat chat) {
+        out.putString(chat.getProject());
+        byte[] address = chat.getAddress() == null ? new byte[0] : chat.getAddress().getAddress();
+        out.put((byte) address.length);
+        out.ensure(address.length + Integer.BYTES);
+        out.buffer.put(address).putInt(chat.getPort());
+    }
+
+    private Chat readChat(ByteBuffer in) throws IOException {
+        String project = readString(in);
+        byte[] address = readAddress(in);
+        int port = in.getInt();
+        if (address.length == 0)
+            return new Chat(project);
+        return new Chat(InetAddress.getByAddress(address), port, project);
+    }
+
+    /**
+     * scrive la card con lo stato come ordinale e le transizioni già codificate in long
+     */
+    private void writeCard(Output out, Card card) {
+        out.putString(card.getName());
+        out.putString(card.getDescription());
+        int transitions = card.getTransitionsCount();
+        out.ensure(1 + Integer.BYTES + transitions * Long.BYTES);
+        out.buffer.put((byte) card.getStatus().ordinal()).putInt(transitions);
+        for (int i = 0; i < transitions; i++)
+            out.buffer.putLong(card.getTransition(i));
+    }
+
+    private Card readCard(ByteBuffer in) throws IOException {
+        String name = readString(in);
+        String description = readString(in);
+        Card.Status status = readOrdinal(in, cardStatuses);
+        long[] transitions = new long[readCount(in, Long.BYTES)];
+        for (int i = 0; i < transitions.length; i++)
+            transitions[i] = in.getLong();
+        return new Card(name, description, status, transitions);
+    }
+
+    private void writeStringField(Output out, byte field, String value) {
+        if (value != null) {
+            out.put(field);
+            out.putString(value);
+        }
+    }
+
+    private void writeStrings(Output out, ArrayList<String> strings) {
+        out.putInt(strings.size());
+        for (String string : strings)
+            out.putString(string);
+    }
+
+    private ArrayList<String> readStrings(ByteBuffer in) throws IOException {
+        int count = readCount(in, MIN_STRING);
+        ArrayList<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            strings.add(readString(in));
+        return strings;
+    }
+
+    private String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > in.remaining())
+            throw new IOException("BinaryCodec: lunghezza stringa non valida " + length);
+        if (in.hasArray()) {
+            String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return string;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * legge il numero di elementi di una lista e verifica che possa stare nei bytes rimasti
+     *
+     * @param in buffer di ingresso
+     * @param elementSize bytes minimi occupati da un elemento
+     * @return numero di elementi
+     * @throws IOException numero negativo o maggiore di quelli contenuti nel frame
+     */
+    private static int readCount(ByteBuffer in, int elementSize) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / elementSize)
+            throw new IOException("BinaryCodec: numero di elementi non valido " + count);
+        return count;
+    }
+
+    /**
+     * @param in buffer di ingresso
+     * @param values valori dell'enumerazione
+     * @return valore corrispondente all'ordinale letto
+     * @throws IOException ordinale fuori dall'enumerazione
+     */
+    private static <T> T readOrdinal(ByteBuffer in, T[] values) throws IOException {
+        int ordinal = in.get();
+        if (ordinal < 0 || ordinal >= values.length)
+            throw new IOException("BinaryCodec: ordinale non valido " + ordinal);
+        return values[ordinal];
+    }
+
+    /**
+     * @param in buffer di ingresso
+     * @return indirizzo della chat, vuoto se assente
+     * @throws IOException lunghezza diversa da quella di un indirizzo IPv4 o IPv6
+     */
+    private static byte[] readAddress(ByteBuffer in) throws IOException {
+        int length = in.get();
+        if (length != 0 && length != 4 && length != 16)
+            throw new IOException("BinaryCodec: lunghezza indirizzo non valida " + length);
+        byte[] address = new byte[length];
+        in.get(address);
+        return address;
+    }
+
+    /**
+     * Output modella il buffer di uscita della codifica, preso dal pool
+     * e sostituito con uno più grande quando lo spazio non basta
+     */
+    private static class Output {
+
+        /** pool da cui prendere i buffer */
+        private final BufferPool pool;
+
+        /** buffer in scrittura */
+        private ByteBuffer buffer;
+
+        Output(BufferPool pool) {
+            this.pool = pool;
+            this.buffer = pool.acquire(4096);
+        }
+
+        /**
+         * garantisce che nel buffer ci siano almeno size bytes liberi
+         *
+         * @param size numero di bytes da scrivere
+         */
+        void ensure(int size) {
+            if (buffer.remaining() >= size)
+                return;
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < size)
+                capacity *= 2;
+            ByteBuffer bigger = pool.acquire(capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        void put(byte value) {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.fram3.worth.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool modella un pool di ByteBuffer riutilizzabili, organizzati in classi di dimensione
+ * potenza di due, in modo da non allocare un nuovo buffer per ogni messaggio ricevuto o inviato.
+ * I buffer del pool possono essere diretti, così le operazioni di I/O sui canali evitano la copia
+ * in un buffer temporaneo; i buffer troppo grandi per il pool sono sempre nello heap
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class BufferPool {
+
+    /** dimensione minima di un buffer del pool (2^MIN_SHIFT bytes) */
+    private static final int MIN_SHIFT = 8;
+
+    /** dimensione massima di un buffer conservato nel pool (2^MAX_SHIFT bytes), i più grandi non vengono riutilizzati */
+    private static final int MAX_SHIFT = 22;
+
+    /** pool condiviso dal processo */
+    private static final BufferPool shared = new BufferPool(64, true);
+
+    /** pool che non conserva buffer, per i buffer condivisi che non vengono mai restituiti */
+    private static final BufferPool unpooled = new BufferPool(0, false);
+
+    /** code di buffer liberi, una per ogni classe di dimensione */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeBuffers;
+
+    /** numero di buffer liberi per ogni classe di dimensione */
+    private final AtomicInteger[] freeCounts;
+
+    /** numero massimo di buffer liberi conservati per ogni classe di dimensione */
+    private final int maxPerClass;
+
+    /** true se i buffer del pool sono allocati fuori dallo heap */
+    private final boolean direct;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPerClass, boolean direct) {
+        this.maxPerClass = maxPerClass;
+        this.direct = direct;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        freeBuffers = new ConcurrentLinkedQueue[classes];
+        freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     *
+     * @return pool condiviso dal processo
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     *
+     * @return pool che alloca ogni volta un nuovo buffer nello heap e non conserva i buffer restituiti,
+     *         da usare per i buffer condivisi tra più connessioni che il garbage collector libera
+     *         quando l'ultima connessione li ha scritti
+     */
+    public static BufferPool unpooled() {
+        return unpooled;
+    }
+
+    /**
+     * restituisce un buffer pronto per la scrittura con limit uguale alla dimensione richiesta
+     *
+     * @param size numero di bytes richiesti
+     * @return buffer con almeno size bytes di capacità
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < freeBuffers.length) {
+            ByteBuffer buffer = freeBuffers[sizeClass].poll();
+            if (buffer != null) {
+                freeCounts[sizeClass].decrementAndGet();
+                buffer.clear().limit(size);
+                return buffer;
+            }
+            int capacity = 1 << (sizeClass + MIN_SHIFT);
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            return buffer.limit(size);
+        }
+        //buffer troppo grande per essere conservato nel pool
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * restituisce il buffer al pool. Il buffer non deve più essere usato dal chiamante
+     *
+     * @param buffer buffer da riutilizzare
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        int capacity = buffer.capacity();
+        //accetto solamente buffer allocati dal pool (capacità potenza di due),
+        //i buffer in sola lettura sono viste condivise tra più connessioni e non vanno riutilizzati
+        if (Integer.bitCount(capacity) != 1 || buffer.isDirect() != direct || buffer.isReadOnly())
+            return;
+        int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (sizeClass < 0 || sizeClass >= freeBuffers.length)
+            return;
+        if (freeCounts[sizeClass].incrementAndGet() <= maxPerClass)
+            freeBuffers[sizeClass].add(buffer);
+        else
+            freeCounts[sizeClass].decrementAndGet();
+    }
+
+    /**
+     * @param size numero di bytes richiesti
+     * @return indice della classe di dimensione che può contenere size bytes
+     */
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT))
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,51 @@
+package com.fram3.worth.utils;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ByteBufferReader modella un Reader che decodifica in UTF-8 i bytes di un ByteBuffer
+ * completo, senza copiarli prima in una String
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ByteBufferReader extends Reader {
+
+    /** bytes da decodificare */
+    private final ByteBuffer buffer;
+
+    /** decoder UTF-8 */
+    private final CharsetDecoder decoder;
+
+    /** true quando il decoder è stato svuotato alla fine dei bytes */
+    private boolean flushed;
+
+    public ByteBufferReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0)
+            return 0;
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        //il buffer contiene tutto il messaggio, quindi l'input è sempre completo
+        decoder.decode(buffer, out, true);
+        if (!buffer.hasRemaining() && !flushed && out.hasRemaining())
+            flushed = decoder.flush(out).isUnderflow();
+        int count = out.position() - off;
+        return count == 0 && flushed ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
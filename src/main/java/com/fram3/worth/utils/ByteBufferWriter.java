@@ -0,0 +1,136 @@
+package com.fram3.worth.utils;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ByteBufferWriter modella un Writer che codifica i caratteri in UTF-8 direttamente in un
+ * ByteBuffer del pool, sostituito con uno più grande quando lo spazio non basta.
+ * Permette di serializzare in JSON senza passare da una String e da un array di byte intermedi
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ByteBufferWriter extends Writer {
+
+    /** pool da cui prendere i buffer */
+    private final BufferPool pool;
+
+    /** encoder UTF-8 */
+    private final CharsetEncoder encoder;
+
+    /** caratteri in attesa di essere codificati */
+    private final CharBuffer chars;
+
+    /** buffer in scrittura */
+    private ByteBuffer buffer;
+
+    public ByteBufferWriter(BufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(1024);
+        this.buffer = pool.acquire(initialCapacity);
+    }
+
+    /**
+     * riserva dei bytes all'inizio del buffer, ad esempio per una dimensione da scrivere alla fine
+     *
+     * @param size numero di bytes da riservare
+     */
+    public void reserve(int size) {
+        ensure(size);
+        buffer.position(buffer.position() + size);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        while (len > 0) {
+            int count = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, count);
+            off += count;
+            len -= count;
+            if (!chars.hasRemaining())
+                encode(false);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        while (len > 0) {
+            int count = Math.min(len, chars.remaining());
+            chars.put(str, off, off + count);
+            off += count;
+            len -= count;
+            if (!chars.hasRemaining())
+                encode(false);
+        }
+    }
+
+    @Override
+    public void write(int c) {
+        chars.put((char) c);
+        if (!chars.hasRemaining())
+            encode(false);
+    }
+
+    @Override
+    public void flush() {
+        encode(false);
+    }
+
+    /**
+     * completa la codifica e restituisce il buffer. Il writer non va più usato
+     *
+     * @return buffer con i bytes scritti, con position alla fine dei bytes
+     */
+    public ByteBuffer finish() {
+        encode(true);
+        while (encoder.flush(buffer).isOverflow())
+            ensure(buffer.capacity());
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * codifica i caratteri in attesa. Un surrogato alto alla fine resta in attesa del successivo
+     *
+     * @param endOfInput true se non arriveranno altri caratteri
+     */
+    private void encode(boolean endOfInput) {
+        chars.flip();
+        CoderResult result;
+        while ((result = encoder.encode(chars, buffer, endOfInput)).isOverflow())
+            ensure(Math.max(chars.remaining() * 3, 64));
+        chars.compact();
+        if (result.isError())
+            chars.clear();
+    }
+
+    /**
+     * garantisce che nel buffer ci siano almeno size bytes liberi
+     *
+     * @param size numero di bytes da scrivere
+     */
+    private void ensure(int size) {
+        if (buffer.remaining() >= size)
+            return;
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < size)
+            capacity *= 2;
+        ByteBuffer bigger = pool.acquire(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        pool.release(buffer);
+        buffer = bigger;
+    }
+}
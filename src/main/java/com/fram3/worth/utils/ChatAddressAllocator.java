@@ -0,0 +1,169 @@
+package com.fram3.worth.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatAddressAllocator modella l'assegnazione degli indirizzi multicast e delle porte delle chat dei progetti.
+ * Ogni chat occupa uno slot, che corrisponde all'indirizzo 239.0.0.0 + slot + 1 e alla porta portBase + slot:
+ * le porte sono distinte perchè un client riceve tutte le chat sulla stessa macchina.
+ * Gli slot mai usati vengono assegnati in ordine con un contatore, quelli rilasciati dai progetti cancellati
+ * finiscono in una lista libera e vengono riusati solo quando i nuovi sono esauriti, così una chat appena
+ * cancellata resta inutilizzata il più a lungo possibile.
+ * La lista libera è uno stack senza lock: ogni slot ricorda il successivo nella lista e la testa
+ * riporta un numero di versione, così un'assegnazione e un rilascio concorrenti non si confondono (ABA).
+ * Assegnazione e rilascio costano O(1) e non usano monitor
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ChatAddressAllocator {
+
+    /** indirizzo 239.0.0.0, da cui partono gli indirizzi delle chat */
+    private static final int BASE_ADDRESS = 239 << 24;
+
+    /** numero di indirizzi multicast disponibili, da 239.0.0.1 a 239.255.255.255 */
+    private static final int ADDRESSES = (1 << 24) - 1;
+
+    /** maschera del riferimento allo slot in testa alla lista libera */
+    private static final long SLOT_MASK = 0xFFFFFFFFL;
+
+    /** porta del primo slot */
+    private final int portBase;
+
+    /** numero di slot */
+    private final int capacity;
+
+    /** primo slot mai assegnato */
+    private final AtomicInteger fresh;
+
+    /** testa della lista libera: versione nei 32 bit alti, slot + 1 nei bassi (0 se la lista è vuota) */
+    private final AtomicLong freeHead;
+
+    /** per ogni slot nella lista libera, lo slot successivo + 1 (0 se è l'ultimo) */
+    private final AtomicIntegerArray freeNext;
+
+    /** slot assegnati */
+    private final AtomicInteger allocated;
+
+    /**
+     *
+     * @param portBase porta del primo slot
+     * @param portCount numero di porte utilizzabili a partire da portBase
+     */
+    public ChatAddressAllocator(int portBase, int portCount) {
+        this.portBase = portBase;
+        this.capacity = Math.max(0, Math.min(ADDRESSES, Math.min(portCount, 65536 - portBase)));
+        this.fresh = new AtomicInteger();
+        this.freeHead = new AtomicLong();
+        this.freeNext = new AtomicIntegerArray(capacity);
+        this.allocated = new AtomicInteger();
+    }
+
+    /**
+     * assegna uno slot, preferendo quelli mai usati a quelli rilasciati
+     *
+     * @return slot assegnato, -1 se tutti gli slot sono assegnati
+     */
+    public int allocate() {
+        int slot;
+        while ((slot = fresh.get()) < capacity) {
+            if (fresh.compareAndSet(slot, slot + 1)) {
+                allocated.incrementAndGet();
+                return slot;
+            }
+        }
+        while (true) {
+            long head = freeHead.get();
+            int top = (int) (head & SLOT_MASK);
+            if (top == 0)
+                return -1;
+            //se nel frattempo la testa è cambiata il successivo letto può non essere valido, la versione lo rileva
+            int next = freeNext.get(top - 1);
+            if (freeHead.compareAndSet(head, nextVersion(head) | next)) {
+                allocated.incrementAndGet();
+                return top - 1;
+            }
+        }
+    }
+
+    /**
+     * rilascia uno slot assegnato, che verrà riusato quando gli slot mai usati saranno esauriti
+     *
+     * @param slot slot da rilasciare
+     */
+    public void release(int slot) {
+        if (slot < 0 || slot >= capacity)
+            return;
+        while (true) {
+            long head = freeHead.get();
+            freeNext.set(slot, (int) (head & SLOT_MASK));
+            if (freeHead.compareAndSet(head, nextVersion(head) | (slot + 1))) {
+                allocated.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param slot slot assegnato
+     * @return indirizzo multicast dello slot
+     */
+    public InetAddress address(int slot) {
+        int address = BASE_ADDRESS + slot + 1;
+        try {
+            return InetAddress.getByAddress(new byte[] {
+                    (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address });
+        } catch (UnknownHostException e) {
+            //non accade con un indirizzo di 4 byte
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     *
+     * @param slot slot assegnato
+     * @return porta dello slot
+     */
+    public int port(int slot) {
+        return portBase + slot;
+    }
+
+    /**
+     *
+     * @param port porta di una chat
+     * @return slot corrispondente alla porta, -1 se la porta non appartiene a nessuno slot
+     */
+    public int slotOf(int port) {
+        int slot = port - portBase;
+        return slot >= 0 && slot < capacity ? slot : -1;
+    }
+
+    /**
+     *
+     * @return slot assegnati
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     *
+     * @return numero di slot
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param head testa della lista libera
+     * @return versione successiva a quella della testa, nei 32 bit alti
+     */
+    private static long nextVersion(long head) {
+        return ((head >>> 32) + 1) << 32;
+    }
+}
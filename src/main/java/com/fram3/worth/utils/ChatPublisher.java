@@ -0,0 +1,254 @@
+package com.fram3.worth.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatPublisher modella l'invio dei messaggi sulle chat multicast dei progetti.
+ * Chi invia un messaggio lo accoda in una coda limitata e torna subito, senza aprire un socket:
+ * un solo thread preleva i messaggi a blocchi e li invia tutti con lo stesso DatagramChannel non bloccante.
+ * Se il buffer di invio del socket è pieno il thread attende che si liberi per un tempo limitato,
+ * se la coda è piena il messaggio viene scartato. Il prefisso dei messaggi di sistema è codificato una sola volta
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ChatPublisher implements Runnable {
+
+    /** prefisso dei messaggi inviati dal servizio, già codificato */
+    private static final byte[] SYSTEM_PREFIX = "Messaggio da WORTH: \"".getBytes(StandardCharsets.UTF_8);
+
+    /** suffisso dei messaggi inviati dal servizio, già codificato */
+    private static final byte[] SYSTEM_SUFFIX = "\"".getBytes(StandardCharsets.UTF_8);
+
+    /** numero massimo di attese del buffer di invio per un messaggio prima di scartarlo */
+    private static final int MAX_SEND_ATTEMPTS = 10;
+
+    /** millisecondi di attesa del buffer di invio */
+    private static final int SEND_WAIT_MILLIS = 10;
+
+    /** publisher condiviso dal processo */
+    private static final ChatPublisher shared = new ChatPublisher(Integer.getInteger("worth.chatQueue", 4096),
+            Integer.getInteger("worth.chatBatch", 64));
+
+    /** messaggi in attesa di essere inviati */
+    private final ArrayBlockingQueue<Datagram> queue;
+
+    /** numero massimo di messaggi prelevati dalla coda e inviati in un blocco */
+    private final int batchSize;
+
+    /** canale da cui vengono inviati tutti i messaggi, aperto dal thread di invio */
+    private DatagramChannel channel;
+
+    /** selettore su cui il thread di invio attende che il buffer di invio si liberi */
+    private Selector selector;
+
+    /** messaggi accodati */
+    private final AtomicLong queued;
+
+    /** messaggi inviati */
+    private final AtomicLong sent;
+
+    /** messaggi scartati perchè la coda era piena o l'invio non è riuscito */
+    private final AtomicLong dropped;
+
+    public ChatPublisher(int queueCapacity, int batchSize) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.queued = new AtomicLong();
+        this.sent = new AtomicLong();
+        this.dropped = new AtomicLong();
+        Thread sender = new Thread(this, "ChatPublisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     *
+     * @return publisher condiviso dal processo
+     */
+    public static ChatPublisher shared() {
+        return shared;
+    }
+
+    /**
+     * accoda un messaggio del servizio, preceduto dal prefisso "Messaggio da WORTH"
+     *
+     * @param address indirizzo multicast della chat
+     * @param port porta della chat
+     * @param message testo del messaggio
+     * @return true se il messaggio è stato accodato, false se è stato scartato
+     */
+    public boolean publishSystem(InetAddress address, int port, String message) {
+        return publish(address, port, systemMessage(message));
+    }
+
+    /**
+     * codifica un messaggio del servizio, preceduto dal prefisso "Messaggio da WORTH"
+     *
+     * @param message testo del messaggio
+     * @return messaggio codificato in UTF-8
+     */
+    public static byte[] systemMessage(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] datagram = new byte[SYSTEM_PREFIX.length + text.length + SYSTEM_SUFFIX.length];
+        System.arraycopy(SYSTEM_PREFIX, 0, datagram, 0, SYSTEM_PREFIX.length);
+        System.arraycopy(text, 0, datagram, SYSTEM_PREFIX.length, text.length);
+        System.arraycopy(SYSTEM_SUFFIX, 0, datagram, SYSTEM_PREFIX.length + text.length, SYSTEM_SUFFIX.length);
+        return datagram;
+    }
+
+    /**
+     * codifica un messaggio di un utente
+     *
+     * @param nickname nome utente che invia il messaggio
+     * @param message testo del messaggio
+     * @return messaggio codificato in UTF-8
+     */
+    public static byte[] userMessage(String nickname, String message) {
+        return (nickname + " ha detto: " + "\"" + message + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * accoda un messaggio già codificato
+     *
+     * @param address indirizzo multicast della chat
+     * @param port porta della chat
+     * @param datagram contenuto del messaggio
+     * @return true se il messaggio è stato accodato, false se è stato scartato
+     */
+    public boolean publish(InetAddress address, int port, byte[] datagram) {
+        if (address == null || !queue.offer(new Datagram(new InetSocketAddress(address, port), datagram))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     *
+     * @return messaggi accodati
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     *
+     * @return messaggi inviati
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     *
+     * @return messaggi scartati perchè la coda era piena o l'invio non è riuscito
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * ciclo del thread di invio: attende il primo messaggio, preleva insieme ad esso
+     * quelli già in coda fino a un blocco e li invia uno dopo l'altro
+     */
+    @Override
+    public void run() {
+        ArrayList<Datagram> batch = new ArrayList<>(batchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                send(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * invia un blocco di messaggi, aprendo il canale se necessario
+     *
+     * @param batch messaggi da inviare
+     */
+    private void send(ArrayList<Datagram> batch) {
+        try {
+            if (channel == null || !channel.isOpen())
+                open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            dropped.addAndGet(batch.size());
+            return;
+        }
+        for (Datagram datagram : batch) {
+            try {
+                if (send(datagram))
+                    sent.incrementAndGet();
+                else
+                    dropped.incrementAndGet();
+            } catch (IOException e) {
+                e.printStackTrace();
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * invia un messaggio. Se il buffer di invio è pieno attende che si liberi sul selettore
+     *
+     * @param datagram messaggio da inviare
+     * @return true se il messaggio è stato inviato, false se il buffer di invio è rimasto pieno
+     * @throws IOException errore nell'invio
+     */
+    private boolean send(Datagram datagram) throws IOException {
+        for (int attempt = 0; attempt < MAX_SEND_ATTEMPTS; attempt++) {
+            if (channel.send(datagram.payload, datagram.target) > 0)
+                return true;
+            selector.select(SEND_WAIT_MILLIS);
+            selector.selectedKeys().clear();
+        }
+        return false;
+    }
+
+    /**
+     * apre il canale non bloccante e lo registra sul selettore per l'attesa del buffer di invio
+     *
+     * @throws IOException errore nell'apertura del canale
+     */
+    private void open() throws IOException {
+        if (selector == null)
+            selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Datagram modella un messaggio in coda con la chat a cui è destinato
+     */
+    private static class Datagram {
+
+        /** indirizzo e porta della chat */
+        private final InetSocketAddress target;
+
+        /** contenuto del messaggio */
+        private final ByteBuffer payload;
+
+        Datagram(InetSocketAddress target, byte[] payload) {
+            this.target = target;
+            this.payload = ByteBuffer.wrap(payload);
+        }
+    }
+}
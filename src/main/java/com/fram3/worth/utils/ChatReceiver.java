@@ -0,0 +1,283 @@
+package com.fram3.worth.utils;
+
+import com.fram3.worth.Chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ChatReceiver modella la ricezione dei messaggi di tutte le chat dei progetti di cui fa parte l'utente,
+ * salvandoli nei messaggi non letti della Chat per consultarli in seguito.
+ * Per ogni chat un DatagramChannel non bloccante si unisce al gruppo multicast tramite una MembershipKey,
+ * tutti i canali sono registrati su un solo selettore servito da un solo thread,
+ * che riceve i messaggi sempre nello stesso buffer.
+ * Le chat vengono aggiunte e rimosse dal thread del receiver, al quale arrivano tramite una coda
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ChatReceiver implements Runnable {
+
+    /** dimensione massima di un messaggio ricevuto */
+    private static final int MAX_DATAGRAM_SIZE = 8192;
+
+    /** selettore su cui sono registrati i canali delle chat */
+    private final Selector selector;
+
+    /** buffer in cui vengono ricevuti tutti i messaggi */
+    private final ByteBuffer buffer;
+
+    /** interfaccia di rete su cui unirsi ai gruppi multicast */
+    private final NetworkInterface networkInterface;
+
+    /** chiavi dei canali delle chat indicizzate per nome del progetto, usate solo dal thread del receiver */
+    private final HashMap<String, SelectionKey> chats;
+
+    /** chat da aggiungere (true) o rimuovere (false), in attesa del thread del receiver */
+    private final ConcurrentLinkedQueue<Change> changes;
+
+    /** thread del receiver */
+    private Thread thread;
+
+    public ChatReceiver() throws IOException {
+        this.selector = Selector.open();
+        this.buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        this.networkInterface = multicastInterface();
+        this.chats = new HashMap<>();
+        this.changes = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * avvia il thread del receiver
+     */
+    public void start() {
+        thread = new Thread(this, "ChatReceiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * inizia a ricevere i messaggi della chat
+     *
+     * @param chat chat da aggiungere
+     */
+    public void join(Chat chat) {
+        changes.add(new Change(chat, true));
+        selector.wakeup();
+    }
+
+    /**
+     * smette di ricevere i messaggi della chat
+     *
+     * @param chat chat da rimuovere
+     */
+    public void leave(Chat chat) {
+        changes.add(new Change(chat, false));
+        selector.wakeup();
+    }
+
+    /**
+     * interrompe il thread del receiver, che lascia tutti i gruppi e chiude i canali
+     */
+    public void close() {
+        if (thread == null)
+            return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * ciclo del receiver: applica le chat aggiunte e rimosse e riceve i messaggi dai canali pronti.
+     * Un errore nella ricezione da un canale chiude solo la chat di quel canale,
+     * un errore del selettore termina il receiver e chiude tutte le chat
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                applyChanges();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid() || !key.isReadable())
+                        continue;
+                    try {
+                        receive(key);
+                    } catch (IOException e) {
+                        Chat chat = ((Membership) key.attachment()).chat;
+                        System.err.println("ChatReceiver: errore nella ricezione della chat del progetto "
+                                + chat.getProject() + ", chat chiusa");
+                        e.printStackTrace();
+                        chats.remove(chat.getProject());
+                        closeChat(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : chats.values())
+                closeChat(key);
+            chats.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * aggiunge e rimuove le chat richieste dall'ultima selezione
+     */
+    private void applyChanges() {
+        Change change;
+        while ((change = changes.poll()) != null) {
+            String project = change.chat.getProject();
+            if (change.join && !chats.containsKey(project)) {
+                try {
+                    chats.put(project, openChat(change.chat));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (!change.join && chats.containsKey(project)) {
+                closeChat(chats.remove(project));
+            }
+        }
+    }
+
+    /**
+     * apre il canale della chat, lo unisce al gruppo multicast e lo registra sul selettore
+     *
+     * @param chat chat da aprire
+     * @return chiave del canale, con la chat e la sua membership come attachment
+     * @throws IOException errore nell'apertura del canale o nell'unione al gruppo
+     */
+    private SelectionKey openChat(Chat chat) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(chat.getPort()));
+            channel.configureBlocking(false);
+            MembershipKey membership = channel.join(chat.getAddress(), networkInterface);
+            return channel.register(selector, SelectionKey.OP_READ, new Membership(chat, membership));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * lascia il gruppo multicast della chat e chiude il suo canale
+     *
+     * @param key chiave del canale della chat
+     */
+    private void closeChat(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        ((Membership) key.attachment()).key.drop();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * riceve tutti i messaggi in attesa sul canale della chat, riutilizzando lo stesso buffer
+     *
+     * @param key chiave del canale pronto per la lettura
+     * @throws IOException errore nella ricezione
+     */
+    private void receive(SelectionKey key) throws IOException {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Chat chat = ((Membership) key.attachment()).chat;
+        buffer.clear();
+        while (channel.receive(buffer) != null) {
+            buffer.flip();
+            chat.getMessages().offer(StandardCharsets.UTF_8.decode(buffer).toString().trim());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * sceglie l'interfaccia di rete su cui unirsi ai gruppi multicast: quella indicata da worth.chatInterface,
+     * altrimenti la prima interfaccia attiva che supporta il multicast, preferendo quelle diverse dal loopback
+     *
+     * @return interfaccia di rete per il multicast
+     * @throws SocketException nessuna interfaccia disponibile
+     */
+    private static NetworkInterface multicastInterface() throws SocketException {
+        String name = System.getProperty("worth.chatInterface");
+        if (name != null) {
+            NetworkInterface named = NetworkInterface.getByName(name);
+            if (named == null)
+                throw new SocketException("ChatReceiver: interfaccia " + name + " inesistente");
+            return named;
+        }
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast() || !candidate.getInetAddresses().hasMoreElements())
+                continue;
+            if (!candidate.isLoopback())
+                return candidate;
+            loopback = candidate;
+        }
+        if (loopback == null)
+            throw new SocketException("ChatReceiver: nessuna interfaccia di rete con multicast");
+        return loopback;
+    }
+
+    /**
+     * Membership modella una chat ricevuta con la sua appartenenza al gruppo multicast
+     */
+    private static class Membership {
+
+        /** chat in cui memorizzare i messaggi ricevuti */
+        private final Chat chat;
+
+        /** appartenenza del canale al gruppo multicast della chat */
+        private final MembershipKey key;
+
+        Membership(Chat chat, MembershipKey key) {
+            this.chat = chat;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Change modella una chat da aggiungere o rimuovere
+     */
+    private static class Change {
+
+        /** chat da aggiungere o rimuovere */
+        private final Chat chat;
+
+        /** true se la chat va aggiunta, false se va rimossa */
+        private final boolean join;
+
+        Change(Chat chat, boolean join) {
+            this.chat = chat;
+            this.join = join;
+        }
+    }
+}
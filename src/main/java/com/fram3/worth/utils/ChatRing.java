@@ -0,0 +1,104 @@
+package com.fram3.worth.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ChatRing modella i messaggi ricevuti su una chat e non ancora letti dall'utente, in un buffer
+ * circolare di capacità limitata con un solo produttore (il receiver delle chat) e un solo consumatore
+ * (il thread che legge la chat). Produttore e consumatore non usano lock: ognuno avanza il proprio indice
+ * e lo pubblica all'altro solo dopo aver scritto o liberato le posizioni che ha usato.
+ * Quando il buffer è pieno i nuovi messaggi vengono scartati e contati
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class ChatRing {
+
+    /** posizioni del buffer, in numero potenza di due */
+    private final String[] slots;
+
+    /** maschera per ridurre un indice ad una posizione del buffer */
+    private final int mask;
+
+    /** indice del prossimo messaggio da leggere, avanzato solo dal consumatore */
+    private final AtomicLong head;
+
+    /** indice della prossima posizione da scrivere, avanzato solo dal produttore */
+    private final AtomicLong tail;
+
+    /** ultimo valore di head letto dal produttore, per non leggerlo ad ogni messaggio */
+    private long cachedHead;
+
+    /** messaggi scartati perchè il buffer era pieno */
+    private final AtomicLong overflows;
+
+    /**
+     *
+     * @param capacity numero massimo di messaggi non letti, arrotondato alla potenza di due successiva
+     */
+    public ChatRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new String[size];
+        this.mask = size - 1;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.overflows = new AtomicLong();
+    }
+
+    /**
+     * aggiunge un messaggio, invocato solamente dal produttore
+     *
+     * @param message messaggio ricevuto
+     * @return true se il messaggio è stato aggiunto, false se il buffer è pieno
+     */
+    public boolean offer(String message) {
+        long position = tail.get();
+        if (position - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (position - cachedHead >= slots.length) {
+                overflows.incrementAndGet();
+                return false;
+            }
+        }
+        slots[(int) position & mask] = message;
+        //il consumatore vede il messaggio solo dopo che è stato scritto
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * consuma tutti i messaggi presenti, in ordine di arrivo, invocato solamente dal consumatore
+     *
+     * @param consumer azione da eseguire su ogni messaggio
+     * @return numero di messaggi consumati
+     */
+    public int drain(Consumer<String> consumer) {
+        long first = head.get();
+        long last = tail.get();
+        for (long position = first; position < last; position++) {
+            int slot = (int) position & mask;
+            consumer.accept(slots[slot]);
+            slots[slot] = null;
+        }
+        //il produttore riusa le posizioni solo dopo che sono state liberate
+        head.lazySet(last);
+        return (int) (last - first);
+    }
+
+    /**
+     *
+     * @return capacità del buffer
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     *
+     * @return messaggi scartati perchè il buffer era pieno
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+}
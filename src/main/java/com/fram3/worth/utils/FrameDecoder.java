@@ -0,0 +1,89 @@
+package com.fram3.worth.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * FrameDecoder modella la ricostruzione dei messaggi del protocollo, composti da un intero
+ * con la dimensione del messaggio seguito dal messaggio stesso.
+ * Il decoder mantiene lo stato tra una read e l'altra, quindi l'intestazione e il messaggio
+ * possono arrivare spezzati in un numero qualsiasi di segmenti. Ogni connessione ha il proprio decoder
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class FrameDecoder {
+
+    /** buffer che contiene la dimensione del messaggio */
+    private final ByteBuffer sizeBuffer;
+
+    /** pool da cui prendere i buffer per i messaggi */
+    private final BufferPool pool;
+
+    /** dimensione massima accettata per un messaggio */
+    private final int maxFrameSize;
+
+    /** buffer del messaggio in ricezione, null finchè non è stata letta tutta l'intestazione */
+    private ByteBuffer dataBuffer;
+
+    public FrameDecoder(BufferPool pool, int maxFrameSize) {
+        this.sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * legge dal canale proseguendo dal punto in cui si era fermata la read precedente.
+     * Con un canale non bloccante ritorna null se il messaggio non è ancora completo,
+     * con un canale bloccante ogni invocazione avanza di almeno un segmento
+     *
+     * @param channel canale da cui leggere
+     * @return il messaggio completo pronto per la lettura (da restituire al pool con
+     *         BufferPool.release), oppure null se il messaggio non è ancora completo
+     * @throws IOException errore di I/O, canale chiuso oppure messaggio troppo grande
+     */
+    public ByteBuffer read(ReadableByteChannel channel) throws IOException {
+        if (dataBuffer == null) {
+            if (channel.read(sizeBuffer) == -1)
+                throw new IOException("FrameDecoder: connessione chiusa");
+            if (sizeBuffer.hasRemaining())
+                return null;
+            sizeBuffer.flip();
+            int size = sizeBuffer.getInt();
+            sizeBuffer.clear();
+            if (size < 0 || size > maxFrameSize)
+                throw new IOException("FrameDecoder: dimensione messaggio non valida " + size);
+            dataBuffer = pool.acquire(size);
+        }
+        if (dataBuffer.hasRemaining() && channel.read(dataBuffer) == -1)
+            throw new IOException("FrameDecoder: connessione chiusa");
+        if (dataBuffer.hasRemaining())
+            return null;
+        //messaggio completo, lo restituisco e preparo il decoder per il successivo
+        ByteBuffer frame = dataBuffer.flip();
+        dataBuffer = null;
+        return frame;
+    }
+
+    /**
+     * legge un messaggio completo da un canale bloccante
+     *
+     * @param channel canale bloccante da cui leggere
+     * @return il messaggio completo pronto per la lettura
+     * @throws IOException errore di I/O, canale chiuso oppure messaggio troppo grande
+     */
+    public ByteBuffer readFully(ReadableByteChannel channel) throws IOException {
+        ByteBuffer frame;
+        while ((frame = read(channel)) == null);
+        return frame;
+    }
+
+    /**
+     * restituisce al pool l'eventuale messaggio parziale, da usare quando si chiude la connessione
+     */
+    public void release() {
+        pool.release(dataBuffer);
+        dataBuffer = null;
+    }
+}
@@ -0,0 +1,80 @@
+package com.fram3.worth.utils;
+
+import com.fram3.worth.Card;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * JsonCodec modella la codifica JSON dei messaggi, tramite la libreria Gson.
+ * È la codifica usata all'apertura della connessione e resta disponibile come
+ * alternativa leggibile alla codifica binaria, utile per il debug.
+ * Il messaggio viene scritto e letto in streaming direttamente dai buffer del pool
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class JsonCodec implements MessageCodec {
+
+    /** istanza Gson condivisa, thread-safe, che conserva i type adapter già costruiti */
+    public static final Gson GSON = new GsonBuilder().registerTypeAdapterFactory(new CardAdapterFactory()).create();
+
+    /** istanza condivisa, il codec non ha stato */
+    static final JsonCodec INSTANCE = new JsonCodec();
+
+    private JsonCodec() {}
+
+    @Override
+    public ByteBuffer encode(Message message, BufferPool pool) {
+        ByteBufferWriter writer = new ByteBufferWriter(pool, 4096);
+        //spazio per la dimensione, scritta alla fine
+        writer.reserve(Integer.BYTES);
+        GSON.toJson(message, Message.class, new JsonWriter(writer));
+        ByteBuffer buffer = writer.finish();
+        buffer.putInt(0, buffer.position() - Integer.BYTES);
+        return buffer.flip();
+    }
+
+    @Override
+    public Message decode(ByteBuffer frame) throws IOException {
+        try {
+            return GSON.fromJson(new JsonReader(new ByteBufferReader(frame)), Message.class);
+        } catch (JsonParseException e) {
+            throw new IOException("JsonCodec: messaggio non valido", e);
+        }
+    }
+
+    /**
+     * CardAdapterFactory crea l'adapter delle card, che delega la codifica a quello di Gson
+     * scrivendo le sole transizioni valide di ogni card, senza le posizioni libere in coda all'array
+     */
+    private static class CardAdapterFactory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Card.class)
+                return null;
+            TypeAdapter<Card> delegate = gson.getDelegateAdapter(this, TypeToken.get(Card.class));
+            return (TypeAdapter<T>) new TypeAdapter<Card>() {
+                @Override
+                public void write(JsonWriter out, Card card) throws IOException {
+                    delegate.write(out, card != null ? card.trimmed() : null);
+                }
+
+                @Override
+                public Card read(JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
+    }
+}
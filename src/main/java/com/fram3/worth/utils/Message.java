@@ -1,8 +1,10 @@
 package com.fram3.worth.utils;
 
-import com.fram3.worth.User;
+import com.fram3.worth.Roster;
 import com.fram3.worth.Card;
+import com.fram3.worth.Chat;
 import com.fram3.worth.Project;
+import com.fram3.worth.Worth.EventType;
 import com.fram3.worth.Worth.RequestType;
 import com.fram3.worth.Worth.ResponseType;
 
@@ -21,9 +23,10 @@ public class Message implements Serializable {
     /**
      * campi che si possono inserire nel messaggio
      */
+    private long requestId;
     private RequestType request;
     private ResponseType response;
-    private User user;
+    private Roster roster;
     private ArrayList<Project> projects;
     private ArrayList<String> members;
     private ArrayList<Card> cards;
@@ -36,6 +39,17 @@ public class Message implements Serializable {
     private String description;
     private String sourceList;
     private String destList;
+    private ArrayList<Message> operations;
+    private ArrayList<ResponseType> responses;
+    private int protocolVersion;
+    private String history;
+    private long timestamp;
+    private EventType event;
+    private long version;
+    private ArrayList<Chat> chats;
+    private String text;
+    private long offset;
+    private ArrayList<String> chatMessages;
 
     //tutti i campi sono settati in seguito alla creazione del messaggio
     //utilizzato dal server
@@ -47,6 +61,22 @@ public class Message implements Serializable {
         this.request = request;
     }
 
+    /**
+     *
+     * @return identificativo della richiesta, ripetuto dal server nel responso
+     */
+    public long getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     *
+     * @param requestId identificativo della richiesta, usato per associare il responso alla richiesta
+     */
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
     /**
      *
      * @return request fatta dal client
@@ -55,6 +85,14 @@ public class Message implements Serializable {
         return this.request;
     }
 
+    /**
+     *
+     * @param request richiesta, usato nella deserializzazione del messaggio
+     */
+    public void setRequest(RequestType request) {
+        this.request = request;
+    }
+
     /**
      *
      * @return  response del server
@@ -73,19 +111,19 @@ public class Message implements Serializable {
 
     /**
      *
-     * @return  user settato dal server (a seguito operazione di login)
+     * @return  utenti registrati con il loro stato, settati dal server (a seguito operazione di login)
      */
-    public User getUser(){
-        return this.user;
+    public Roster getRoster(){
+        return this.roster;
     }
 
 
     /**
      *
-     * @param user  user salvato nella lista degli utenti registrati
+     * @param roster  utenti registrati con il loro stato
      */
-    public void setUser(User user){
-        this.user = user;
+    public void setRoster(Roster roster){
+        this.roster = roster;
     }
 
     /**
@@ -279,4 +317,182 @@ public class Message implements Serializable {
     public void setDestList(String destList) {
         this.destList = destList;
     }
+
+    /**
+     *
+     * @return operazioni contenute in una richiesta BATCH
+     */
+    public ArrayList<Message> getOperations() {
+        return this.operations;
+    }
+
+    /**
+     *
+     * @param operations operazioni da eseguire con una sola richiesta BATCH
+     */
+    public void setOperations(ArrayList<Message> operations) {
+        this.operations = operations;
+    }
+
+    /**
+     *
+     * @return responsi delle operazioni di una richiesta BATCH
+     */
+    public ArrayList<ResponseType> getResponses() {
+        return this.responses;
+    }
+
+    /**
+     *
+     * @param responses responsi delle operazioni di una richiesta BATCH, nello stesso ordine delle operazioni
+     */
+    public void setResponses(ArrayList<ResponseType> responses) {
+        this.responses = responses;
+    }
+
+    /**
+     *
+     * @return versione del protocollo proposta dal client o scelta dal server (HANDSHAKE)
+     */
+    public int getProtocolVersion() {
+        return this.protocolVersion;
+    }
+
+    /**
+     *
+     * @param protocolVersion versione del protocollo proposta dal client o scelta dal server (HANDSHAKE)
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     *
+     * @return storico testuale degli spostamenti della card (GET_CARD_HISTORY)
+     */
+    public String getHistory() {
+        return this.history;
+    }
+
+    /**
+     *
+     * @param history storico testuale degli spostamenti della card (GET_CARD_HISTORY)
+     */
+    public void setHistory(String history) {
+        this.history = history;
+    }
+
+    /**
+     *
+     * @return istante in millisecondi in cui è stata applicata la modifica (record del journal)
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     *
+     * @param timestamp istante in millisecondi in cui è stata applicata la modifica (record del journal)
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     *
+     * @return tipo di evento inviato dal server, null se il messaggio è un responso
+     */
+    public EventType getEvent() {
+        return this.event;
+    }
+
+    /**
+     *
+     * @param event tipo di evento che il server invia al client senza una richiesta
+     */
+    public void setEvent(EventType event) {
+        this.event = event;
+    }
+
+    /**
+     *
+     * @return numero di versione della callback trasportata dall'evento
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     *
+     * @param version numero di versione della callback trasportata dall'evento
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     *
+     * @return chat dei progetti dell'utente trasportate dall'evento
+     */
+    public ArrayList<Chat> getChats() {
+        return this.chats;
+    }
+
+    /**
+     *
+     * @param chats chat dei progetti dell'utente trasportate dall'evento
+     */
+    public void setChats(ArrayList<Chat> chats) {
+        this.chats = chats;
+    }
+
+    /**
+     *
+     * @return testo del messaggio da inviare sulla chat di progetto
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     *
+     * @param text testo del messaggio da inviare sulla chat di progetto
+     */
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     *
+     * @return offset nello storico della chat: il primo da leggere nella richiesta,
+     *         il successivo all'ultimo letto nel responso
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     *
+     * @param offset offset nello storico della chat: il primo da leggere nella richiesta,
+     *               il successivo all'ultimo letto nel responso
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     *
+     * @return messaggi letti dallo storico della chat
+     */
+    public ArrayList<String> getChatMessages() {
+        return this.chatMessages;
+    }
+
+    /**
+     *
+     * @param chatMessages messaggi letti dallo storico della chat
+     */
+    public void setChatMessages(ArrayList<String> chatMessages) {
+        this.chatMessages = chatMessages;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.fram3.worth.utils;
+
+import com.fram3.worth.Worth.EventType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MessageCodec è l'interfaccia delle codifiche usate per i messaggi scambiati tra client e server.
+ * Ogni connessione inizia con la codifica JSON, il client può poi negoziare con una richiesta
+ * HANDSHAKE la versione del protocollo, e quindi la codifica, da usare per il resto della connessione
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public interface MessageCodec {
+
+    /** versione del protocollo con codifica JSON, usata all'apertura della connessione */
+    int JSON_VERSION = 0;
+
+    /** versione del protocollo con codifica binaria */
+    int BINARY_VERSION = 1;
+
+    /** versione più recente del protocollo supportata */
+    int LATEST_VERSION = BINARY_VERSION;
+
+    /**
+     * serializza il messaggio in un buffer del pool che contiene la dimensione
+     * del messaggio seguita dal messaggio vero e proprio
+     *
+     * @param message messaggio da serializzare
+     * @param pool pool da cui prendere il buffer
+     * @return buffer pronto per la lettura, da restituire al pool dopo la scrittura
+     */
+    ByteBuffer encode(Message message, BufferPool pool);
+
+    /**
+     * deserializza il messaggio contenuto nel buffer (senza la dimensione)
+     *
+     * @param frame buffer che contiene il messaggio, pronto per la lettura
+     * @return messaggio deserializzato
+     * @throws IOException messaggio non valido per questa codifica
+     */
+    Message decode(ByteBuffer frame) throws IOException;
+
+    /**
+     * serializza un evento CHAT_MESSAGE a partire dal testo già codificato in UTF-8,
+     * in un buffer fuori dal pool che può essere condiviso tra più connessioni e non va restituito.
+     * Di default il testo viene convertito in stringa e l'evento serializzato con encode()
+     *
+     * @param projectName nome progetto della chat
+     * @param text testo del messaggio in UTF-8
+     * @return buffer pronto per la lettura con la dimensione seguita dall'evento
+     */
+    default ByteBuffer encodeChatMessage(String projectName, byte[] text) {
+        Message event = new Message();
+        event.setEvent(EventType.CHAT_MESSAGE);
+        event.setProjectName(projectName);
+        event.setText(new String(text, StandardCharsets.UTF_8));
+        return encode(event, BufferPool.unpooled());
+    }
+
+    /**
+     *
+     * @param version versione del protocollo
+     * @return codifica corrispondente alla versione del protocollo
+     */
+    static MessageCodec forVersion(int version) {
+        if (version == BINARY_VERSION)
+            return BinaryCodec.INSTANCE;
+        return JsonCodec.INSTANCE;
+    }
+}
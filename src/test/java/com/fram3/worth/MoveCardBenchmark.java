@@ -0,0 +1,133 @@
+package com.fram3.worth;
+
+import com.fram3.worth.Worth.ResponseType;
+import com.fram3.worth.server.ServerImpl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MoveCardBenchmark misura il throughput di moveCard con un numero crescente di thread,
+ * ognuno dei quali sposta le cards di un proprio progetto, e lo confronta con lo stesso numero
+ * di thread che spostano le cards di un unico progetto condiviso.
+ * Con i lock per progetto il throughput su progetti separati deve crescere con i thread,
+ * mentre sul progetto condiviso le scritture restano serializzate dal lock del progetto.
+ * Le modifiche restano in memoria (nessun journal), così viene misurata solo la contesa sui lock.
+ * Al termine controlla che con il numero massimo di thread misurato il throughput su progetti separati
+ * sia almeno MIN_SCALING_PER_CORE volte il throughput con un thread per ogni core usato, e termina
+ * con codice 1 se la soglia non è raggiunta. Con un solo core disponibile la misura non può scalare
+ * e il controllo verifica solo che il throughput non crolli rispetto a un thread.
+ * Il pom non include un framework di test, quindi il controllo non viene eseguito da mvn test:
+ * java -cp target/classes:target/test-classes:lib/gson-2.8.6.jar com.fram3.worth.MoveCardBenchmark
+ *      [thread massimi] [millisecondi per misura]
+ *
+ * @author Francesco Amodeo
+ * @version 1.0
+ */
+public class MoveCardBenchmark {
+
+    /** cards per progetto, ogni thread sposta a turno tutte le cards del progetto */
+    private static final int CARDS = 64;
+
+    /** scalabilità minima su progetti separati per ogni core usato dai thread */
+    private static final double MIN_SCALING_PER_CORE = 0.35;
+
+    /** scalabilità minima quando i thread non possono andare in parallelo, il throughput non deve crollare */
+    private static final double MIN_SCALING = 0.7;
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int millis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        WorthImpl worth = new WorthImpl(new ServerImpl());
+        for (int i = 0; i < maxThreads; i++)
+            createProject(worth, "bench" + i, "project" + i);
+        createProject(worth, "shared", "shared");
+        for (int i = 0; i < maxThreads; i++)
+            worth.addMember("shared", "shared", "bench" + i);
+        //prime misure per scaldare la JVM, non riportate: la misura con un thread è la base della scalabilità
+        //e non deve essere penalizzata dalla compilazione just in time
+        run(worth, 1, millis, false);
+        run(worth, maxThreads, millis, true);
+        run(worth, 1, millis, false);
+        System.out.printf("%8s %16s %8s %16s%n", "thread", "separati ops/s", "scala", "condiviso ops/s");
+        double base = 0;
+        double scaling = 0;
+        int measured = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double separate = run(worth, threads, millis, false);
+            double shared = run(worth, threads, millis, true);
+            if (threads == 1)
+                base = separate;
+            scaling = separate / base;
+            measured = threads;
+            System.out.printf("%8d %16.0f %7.2fx %16.0f%n", threads, separate, scaling, shared);
+        }
+        int cores = Math.min(measured, Runtime.getRuntime().availableProcessors());
+        double expected = Math.max(MIN_SCALING, MIN_SCALING_PER_CORE * cores);
+        boolean passed = scaling >= expected;
+        System.out.printf("%s: %d thread su %d core, scala %.2fx, soglia %.2fx%n",
+                passed ? "OK" : "FALLITO", measured, cores, scaling, expected);
+        //termina anche i thread del servizio avviati durante la misura
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * registra l'utente e crea un progetto con CARDS cards portate nella lista INPROGRESS
+     */
+    private static void createProject(WorthImpl worth, String nickname, String projectName) {
+        worth.registerUser(new User(nickname, "benchmark"));
+        worth.createProject(nickname, projectName);
+        for (int i = 0; i < CARDS; i++) {
+            worth.addCard(nickname, projectName, "card" + i, "benchmark");
+            worth.moveCard(nickname, projectName, "card" + i, "todo", "inprogress");
+        }
+    }
+
+    /**
+     * esegue moveCard con il numero di thread indicato per millis millisecondi
+     *
+     * @param worth servizio su cui spostare le cards
+     * @param threads numero di thread
+     * @param millis durata della misura
+     * @param shared true se tutti i thread usano il progetto condiviso
+     * @return spostamenti al secondo
+     */
+    private static double run(WorthImpl worth, int threads, int millis, boolean shared)
+            throws InterruptedException {
+        LongAdder moves = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String nickname = shared ? "shared" : "bench" + t;
+            String projectName = shared ? "shared" : "project" + t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                for (int i = 0; !stop.get(); i = (i + 1) % CARDS) {
+                    //ogni card va avanti e indietro tra INPROGRESS e TOBEREVISED; con il progetto condiviso
+                    //un altro thread può averla già spostata, anche quel tentativo conta come operazione
+                    String card = "card" + i;
+                    if (worth.moveCard(nickname, projectName, card, "inprogress", "toberevised").getResponse()
+                            != ResponseType.OK)
+                        worth.moveCard(nickname, projectName, card, "toberevised", "inprogress");
+                    done++;
+                }
+                moves.add(done);
+            }, "Bench-" + t);
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        return moves.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}